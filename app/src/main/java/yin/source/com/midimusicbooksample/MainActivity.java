@@ -30,6 +30,8 @@ import java.io.IOException;
 import java.io.OutputStream;
 import java.io.UnsupportedEncodingException;
 import java.net.URLEncoder;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 import yin.source.com.midimusicbook.midi.baseBean.MidiFile;
 import yin.source.com.midimusicbook.midi.baseBean.MidiOptions;
@@ -50,6 +52,7 @@ public class MainActivity extends AppCompatActivity {
     private MusicBook sheet; /* The sheet music */ // 乐谱
     private MidiFile midifile; /* The midi file to play */ // 需要播放的midi文件
     private MidiOptions options; /* The options for sheet music and sound */ // 乐谱和声音的选项
+    private ExecutorService layoutExecutor; /* Creates the symbols of the tracks in parallel */ // 并行创建各音轨符号的线程池
 
 
     private Button rewindButton;
@@ -97,6 +100,8 @@ public class MainActivity extends AppCompatActivity {
     public void onCreate(Bundle state) {
         super.onCreate(state);
         setContentView(R.layout.activity_main);
+        layoutExecutor = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors());
+        MusicBook.setLayoutExecutor(layoutExecutor);
         createPlayerButton();
 //        player = (MidiPlayer) findViewById(R.id.midi_player);
         player = new MidiPlayer(getApplicationContext());
@@ -164,7 +169,7 @@ public class MainActivity extends AppCompatActivity {
         fastFwdButton = (Button) findViewById(R.id.btn_fast_forward);
         settingsButton = (Button) findViewById(R.id.btn_setting);
         rewindButton = (Button) findViewById(R.id.btn_rewind);
-//        speedBar = (SeekBar) findViewById(R.id.seek_speed);
+        speedBar = (SeekBar) findViewById(R.id.seek_speed);
         speedText = (TextView) findViewById(R.id.tv_speed);
         btnPause = findViewById(R.id.btn_pause);
         btnRestart = findViewById(R.id.btn_restart);
@@ -208,18 +213,31 @@ public class MainActivity extends AppCompatActivity {
                 player.play();
             }
         });
-//        speedBar.setOnSeekBarChangeListener(new SeekBar.OnSeekBarChangeListener() {
-//            public void onProgressChanged(SeekBar bar, int progress,
-//                                          boolean fromUser) {
-//                speedText.setText("Speed: " + String.format("%03d", progress) + "%");
-//            }
-//
-//            public void onStartTrackingTouch(SeekBar bar) {
-//            }
-//
-//            public void onStopTrackingTouch(SeekBar bar) {
-//            }
-//        });
+        speedBar.setOnSeekBarChangeListener(new SeekBar.OnSeekBarChangeListener() {
+            private boolean tracking;
+            /**
+             * True while the bar is dragged.  The speed is only set when it
+             * is released, as each change may render the song again. // 拖动时只更新标签，松开后再设置速度
+             */
+
+            public void onProgressChanged(SeekBar bar, int progress,
+                                          boolean fromUser) {
+                int speed = Math.max(MidiPlayer.MinSpeed, Math.min(progress, MidiPlayer.MaxSpeed));
+                speedText.setText("Speed: " + String.format("%03d", speed) + "%");
+                if (!tracking) {
+                    player.setSpeed(speed);
+                }
+            }
+
+            public void onStartTrackingTouch(SeekBar bar) {
+                tracking = true;
+            }
+
+            public void onStopTrackingTouch(SeekBar bar) {
+                tracking = false;
+                player.setSpeed(bar.getProgress());
+            }
+        });
 
     }
 
@@ -246,7 +264,22 @@ public class MainActivity extends AppCompatActivity {
         } else {
             piano.setVisibility(View.VISIBLE);
         }
-        sheet.init(midifile, options);
+        sheet.initAsync(midifile, options, new MusicBook.LayoutListener() {
+            @Override
+            public void onLayoutStage(String stage, int measures, long nanos) {
+                Log.d(TAG, "layout " + stage + " (" + measures + " measures) " + nanos / 1000000.0 + " ms");
+            }
+
+            @Override
+            public void onLayoutPublished(int measures, int staffs, boolean complete) {
+                Log.d(TAG, "layout shown: " + measures + " measures, " + staffs + " staffs" + (complete ? ", complete" : ""));
+            }
+
+            @Override
+            public void onLayoutFail(String text) {
+                Toast.makeText(getApplicationContext(), "layout fail " + text, Toast.LENGTH_SHORT).show();
+            }
+        });
         sheet.setPlayer(player);
         piano.setMidiFile(midifile, options, player);
         piano.setShadeColors(options.colorLeftHandShade, options.colorRightHandShade);
@@ -341,6 +374,10 @@ public class MainActivity extends AppCompatActivity {
             options.scrollVert = true;
             createSheetMusic(options);
         }
+        if (!sheet.isLayoutComplete()) {
+            /* The pages need the whole song laid out now */
+            sheet.init(midifile, options);
+        }
         try {
             int numpages = sheet.getTotalPages();
             for (int page = 1; page <= numpages; page++) {
@@ -437,4 +474,12 @@ public class MainActivity extends AppCompatActivity {
         }
         super.onPause();
     }
+
+    @Override
+    protected void onDestroy() {
+        sheet.cancelLayout();
+        MusicBook.setLayoutExecutor(null);
+        layoutExecutor.shutdown();
+        super.onDestroy();
+    }
 }
@@ -3,6 +3,9 @@ package yin.source.com.midimusicbook.midi.baseBean;
 
 /**
  * Created by ZB-OK on 2017/1/18.
+ * <p/>
+ * One press of the sustain pedal (controller 64) on a channel, from the
+ * pedal down to the pedal up, in pulses. // 一次踏板踩下到抬起的区间
  */
 public class FootBoard {
 
@@ -11,6 +14,7 @@ public class FootBoard {
     private int endTime;
     private int endTimeInMills;
     private int velocity;
+    private int channel;
     private TimeSignature timeSignature;
 
     public FootBoard(int startTime, TimeSignature timeSignature) {
@@ -64,6 +68,14 @@ public class FootBoard {
         this.velocity = velocity;
     }
 
+    public int getChannel() {
+        return channel;
+    }
+
+    public void setChannel(int channel) {
+        this.channel = channel;
+    }
+
     public TimeSignature getTimeSignature() {
         return timeSignature;
     }
@@ -74,6 +86,7 @@ public class FootBoard {
                 "startTime=" + startTime +
                 ", endTime=" + endTime +
                 ", velocity=" + velocity +
+                ", channel=" + channel +
                 '}';
     }
 
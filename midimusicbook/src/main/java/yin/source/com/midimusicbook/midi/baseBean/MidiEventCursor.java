@@ -0,0 +1,266 @@
+package yin.source.com.midimusicbook.midi.baseBean;
+
+import yin.source.com.midimusicbook.exception.MidiFileException;
+
+/**
+ * @class MidiEventCursor
+ * The MidiEventCursor walks over the events of an MTrk chunk, straight
+ * from the bytes of a MidiFileReader.  It decodes the delta times,
+ * running status and event fields into its own fields, so no object is
+ * created per event.
+ * MidiEventCursor直接从MidiFileReader的字节中遍历音轨块的事件，
+ * 解析出的delta时间、running status和事件字段保存在自身的字段中，每个事件不创建任何对象
+ * <p/>
+ * Usage:
+ * MidiEventCursor cursor = new MidiEventCursor(file);
+ * cursor.startTrack();
+ * while (cursor.next()) {
+ * if (cursor.eventFlag() == MidiFile.EventNoteOn) { ... cursor.data1() ... }
+ * }
+ * <p/>
+ * The payload of a sysex or meta event can be read with readPayload()
+ * before the next call to next(); otherwise it is skipped.  For a byte[]
+ * reader, payloadOffset() is the offset of the payload in getData().
+ * <p/>
+ * If the file ends between two events, next() returns false and
+ * getTruncation() returns the error, so the events read so far can be
+ * kept.  Other errors (an unknown event, a file ending inside an event)
+ * are thrown as a MidiFileException.
+ */
+public class MidiEventCursor {
+
+    private final MidiFileReader file;
+    private int trackEnd;
+    /**
+     * The file offset where the current MTrk chunk ends // 当前音轨块结束的位置
+     */
+    private int tick;
+    /**
+     * The start time of the current event, in pulses // 当前事件的开始时间
+     */
+    private int deltaTime;
+    private byte status;
+    /**
+     * The status byte of the current event, including the channel // 当前事件的状态字节(包括通道)
+     */
+    private boolean hasEventflag;
+    /**
+     * False if the current event uses the status of the previous event (running status)
+     */
+    private byte data1;
+    private byte data2;
+    private int metaType;
+    /**
+     * The meta event type, or -1 if the current event isn't a meta event
+     */
+    private int payloadOffset;
+    private int payloadLength;
+    private boolean payloadPending;
+    /**
+     * True if the payload of the current event hasn't been read or skipped yet
+     */
+    private MidiFileException truncation;
+    /**
+     * The error if the file ended inside the track, or null // 文件在音轨中间结束时的错误
+     */
+
+    /**
+     * Create a cursor over the given reader.  Call startTrack() when the
+     * reader is at the start of an MTrk header.
+     */
+    public MidiEventCursor(MidiFileReader file) {
+        this.file = file;
+        this.trackEnd = file.getOffset();
+        this.metaType = -1;
+    }
+
+    /**
+     * Read the MTrk header at the reader's offset, and move the cursor
+     * before the first event of the track.  Return the track length.
+     */
+    public int startTrack() {
+        String id = file.readAscii(4);
+        if (!id.equals("MTrk")) {
+            throw new MidiFileException("Bad MTrk header", file.getOffset() - 4);
+        }
+        int trackLen = file.readInt();
+        trackEnd = trackLen + file.getOffset();
+        tick = 0;
+        deltaTime = 0;
+        status = 0;
+        metaType = -1;
+        payloadLength = 0;
+        payloadPending = false;
+        truncation = null;
+        return trackLen;
+    }
+
+    /**
+     * Move to the next event of the track.  Return false at the end of the
+     * track, or if the file ends before the next event.  Upon returning
+     * false, the reader is at the start of the next MTrk header.
+     */
+    public boolean next() {
+        if (payloadPending) {
+            payloadPending = false;
+            file.skip(payloadLength);
+        }
+        if (file.getOffset() >= trackEnd) {
+            return false;
+        }
+        byte peekevent;
+        try {
+            deltaTime = file.readVariableLength();
+            tick += deltaTime;
+            peekevent = file.Peek();
+        } catch (MidiFileException e) {
+            // If the midi file is truncated here, we can still recover.
+            truncation = e;
+            trackEnd = file.getOffset();
+            return false;
+        }
+
+        hasEventflag = false;
+        if (peekevent < 0) {
+            hasEventflag = true;
+            status = file.readByte();
+        }
+        metaType = -1;
+        payloadLength = 0;
+
+        byte eventFlag = eventFlag();
+        if (eventFlag == MidiFile.EventNoteOn || eventFlag == MidiFile.EventNoteOff ||
+                eventFlag == MidiFile.EventKeyPressure || eventFlag == MidiFile.EventControlChange ||
+                eventFlag == MidiFile.EventPitchBend) {
+            data1 = file.readByte();
+            data2 = file.readByte();
+        } else if (eventFlag == MidiFile.EventProgramChange || eventFlag == MidiFile.EventChannelPressure) {
+            data1 = file.readByte();
+            data2 = 0;
+        } else if (eventFlag == MidiFile.SysexEvent1 || eventFlag == MidiFile.SysexEvent2) {
+            data1 = 0;
+            data2 = 0;
+            payloadLength = file.readVariableLength();
+            payloadOffset = file.getOffset();
+            payloadPending = true;
+        } else if (eventFlag == MidiFile.MetaEvent) {
+            data1 = file.readByte();
+            data2 = 0;
+            metaType = data1;
+            payloadLength = file.readVariableLength();
+            payloadOffset = file.getOffset();
+            payloadPending = true;
+        } else {
+            throw new MidiFileException("Unknown event " + status, file.getOffset() - 1);
+        }
+        return true;
+    }
+
+    /**
+     * Read the payload of the current sysex or meta event into dest, at
+     * the given offset.  This can be done once per event, before next().
+     */
+    public void readPayload(byte[] dest, int offset) {
+        if (!payloadPending) {
+            throw new MidiFileException("The payload was already read", file.getOffset());
+        }
+        payloadPending = false;
+        file.readBytes(dest, offset, payloadLength);
+    }
+
+    /**
+     * Return the time of the current event, in pulses from the start of the track
+     */
+    public int tick() {
+        return tick;
+    }
+
+    /**
+     * Return the pulses between the previous event and the current one
+     */
+    public int deltaTime() {
+        return deltaTime;
+    }
+
+    /**
+     * Return the status byte of the current event, including the channel
+     */
+    public byte status() {
+        return status;
+    }
+
+    /**
+     * Return the event type without the channel, e.g. EventNoteOn, or the
+     * whole status byte for sysex and meta events
+     */
+    public byte eventFlag() {
+        if ((status & 0xF0) == 0xF0) {
+            return status;
+        }
+        return (byte) (status & 0xF0);
+    }
+
+    /**
+     * Return the channel of a channel event, or 0 for sysex/meta events
+     */
+    public int channel() {
+        if ((status & 0xF0) == 0xF0) {
+            return 0;
+        }
+        return status & 0x0F;
+    }
+
+    public boolean hasEventflag() {
+        return hasEventflag;
+    }
+
+    /**
+     * Return the first data byte: the note number, controller number,
+     * instrument, etc.  For meta events this is the meta event type.
+     */
+    public byte data1() {
+        return data1;
+    }
+
+    /**
+     * Return the second data byte: the velocity, controller value, etc
+     */
+    public byte data2() {
+        return data2;
+    }
+
+    /**
+     * Return the meta event type, or -1 if the current event isn't a meta event
+     */
+    public int metaType() {
+        return metaType;
+    }
+
+    /**
+     * Return the file offset of the payload of the current sysex or meta event
+     */
+    public int payloadOffset() {
+        return payloadOffset;
+    }
+
+    /**
+     * Return the payload length of the current event, 0 for channel events
+     */
+    public int payloadLength() {
+        return payloadLength;
+    }
+
+    /**
+     * Return the current file offset of the reader
+     */
+    public int getOffset() {
+        return file.getOffset();
+    }
+
+    /**
+     * Return the error if the file ended inside the track, or null
+     */
+    public MidiFileException getTruncation() {
+        return truncation;
+    }
+}
@@ -0,0 +1,378 @@
+package yin.source.com.midimusicbook.midi.baseBean;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * @class MidiEventOverlay
+ * The MidiEventOverlay applies the sound options to the midi events of a
+ * song while they are read, without copying or changing the events:
+ * MidiEventOverlay在读取midi事件时应用声音设置，不复制也不修改原事件:
+ * - A tempo event is added at the start of each track // 在每个音轨开头加入一个速度事件
+ * - Every tempo event is replaced by the playback tempo // 所有速度事件替换为播放速度
+ * - The note numbers are transposed // 移调
+ * - The instruments are changed per track, or per channel // 按音轨或按通道更换乐器
+ * - The notes of silent channels get a velocity of 0 // 静音通道的音符力度设为0
+ * - Tracks that aren't played are left out // 去掉不播放的音轨
+ * - The song starts at the pause time.  Notes before it are dropped,
+ * other events before it are moved to time 0, and only the last value
+ * of each controller before it is kept. // 从暂停时间开始播放
+ * - If an end time is set, the song stops there: the notes still
+ * sounding get a NoteOff, and every track ends exactly at the end time,
+ * so the file can be repeated without a gap. // 设置结束时间时在该时间结束，用于无缝循环播放
+ * <p/>
+ * Walk over the events of a track with startTrack() and next().  The
+ * state of the walk is kept in the overlay, so it uses the same memory
+ * whatever the number of events.  MidiFileWriter writes the events
+ * this way, and apply() copies them into new tables.
+ * 通过startTrack()和next()遍历一个音轨的事件，遍历状态保存在overlay中，所需内存与事件数无关
+ */
+public class MidiEventOverlay {
+
+    private static final byte[] NoPayload = new byte[0];
+
+    private final int playbackTempo;
+    /**
+     * The tempo of every tempo event, in microseconds per quarter note // 所有速度事件的速度
+     */
+    private final int transpose;
+    private final int pauseTime;
+    private boolean[] keepTracks;
+    /**
+     * The tracks to include, or null to include them all // 包含的音轨，为null时包含全部
+     */
+    private int[] trackInstruments;
+    private int[] channelInstruments;
+    /**
+     * The instrument to use per track or per channel, or null to keep
+     * the instruments of the song // 每个音轨或每个通道使用的乐器，为null时不变
+     */
+    private boolean[] silentChannels;
+    /**
+     * The channels whose notes get a velocity of 0, or null // 音符力度设为0的通道
+     */
+    private int endTime;
+    /**
+     * The time to stop at, in pulses, or 0 to play to the end // 结束时间，为0时播放到结尾
+     */
+
+    private MidiEventTable events;
+    private int tracknum;
+    private int next;
+    /**
+     * The index of the next event to read, or -1 before the start tempo // 下一个要读取的事件
+     */
+    private int source;
+    /**
+     * The index of the current event in the table, or -1 for the added tempo event
+     */
+    private int tick;
+    private byte status;
+    private byte data1;
+    private byte data2;
+    private int tempo;
+    private final byte[] controlValues = new byte[16 * 128];
+    private final boolean[] controlSent = new boolean[16 * 128];
+    /**
+     * The last value of each controller before the pause time, and
+     * whether it was already read // 暂停时间之前每个控制器的最后一个值，以及是否已经读取
+     */
+    private final boolean[] sounding = new boolean[16 * 128];
+    private int closeKey;
+    /**
+     * With an end time, the notes sounding at the current event, and the
+     * next key to check for a NoteOff at the end // 设置结束时间时正在发声的音符，以及结束时下一个要检查的音符
+     */
+
+    /**
+     * Create an overlay.
+     *
+     * @param playbackTempo The tempo to play at, in microseconds per
+     *                      quarter note.  It replaces every tempo event,
+     *                      so the song plays at one tempo.
+     * @param transpose     The amount to transpose the notes by
+     * @param pauseTime     The time to start playing at, in pulses
+     */
+    public MidiEventOverlay(int playbackTempo, int transpose, int pauseTime) {
+        this.playbackTempo = playbackTempo;
+        this.transpose = transpose;
+        this.pauseTime = pauseTime;
+    }
+
+    /**
+     * Include only the tracks that are true in the given array
+     */
+    public void setKeepTracks(boolean[] keepTracks) {
+        this.keepTracks = keepTracks;
+    }
+
+    /**
+     * Change the instrument of each program change to the instrument of its track
+     */
+    public void setTrackInstruments(int[] trackInstruments) {
+        this.trackInstruments = trackInstruments;
+    }
+
+    /**
+     * Change the instrument of each program change to the instrument of its channel
+     */
+    public void setChannelInstruments(int[] channelInstruments) {
+        this.channelInstruments = channelInstruments;
+    }
+
+    /**
+     * Silence the notes of the channels that are true in the given array
+     */
+    public void setSilentChannels(boolean[] silentChannels) {
+        this.silentChannels = silentChannels;
+    }
+
+    /**
+     * Stop the song at the given time, in pulses (see the class comment).
+     * It must be after the pause time.  0 plays to the end of the song.
+     */
+    public void setEndTime(int endTime) {
+        this.endTime = endTime;
+    }
+
+    /**
+     * Transpose the given note number, keeping it in the range 0 to 127
+     */
+    static byte TransposeNote(byte notenumber, int amount) {
+        int num = notenumber + amount;
+        if (num < 0)
+            num = 0;
+        if (num > 127)
+            num = 127;
+        return (byte) num;
+    }
+
+    private static int ControlKey(MidiEventTable events, int index) {
+        return events.getChannel(index) * 128 + (events.getData1(index) & 0x7F);
+    }
+
+    /**
+     * Return true if the given track is played
+     */
+    public boolean includesTrack(int tracknum) {
+        return keepTracks == null || keepTracks[tracknum];
+    }
+
+    /**
+     * Return the number of tracks played, out of the given number
+     */
+    public int countTracks(int trackCount) {
+        int count = 0;
+        for (int tracknum = 0; tracknum < trackCount; tracknum++) {
+            if (includesTrack(tracknum)) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Start walking over the events of the given track.  The first event
+     * is the added tempo event.
+     */
+    public void startTrack(MidiEventTable events, int tracknum) {
+        this.events = events;
+        this.tracknum = tracknum;
+        next = -1;
+        closeKey = 0;
+        Arrays.fill(controlSent, false);
+        Arrays.fill(sounding, false);
+        /* The ticks of a track never decrease */
+        for (int i = 0; i < events.size() && events.getTick(i) < pauseTime; i++) {
+            if (events.getEventFlag(i) == MidiFile.EventControlChange) {
+                controlValues[ControlKey(events, i)] = events.getData2(i);
+            }
+        }
+    }
+
+    /**
+     * Move to the next event of the track, with the options applied.
+     * Return false at the end of the track.
+     */
+    public boolean next() {
+        if (next < 0) {
+            next = 0;
+            source = -1;
+            tick = pauseTime > 0 ? 0 : -pauseTime;
+            status = MidiFile.MetaEvent;
+            data1 = MidiFile.MetaEventTempo;
+            data2 = 0;
+            tempo = playbackTempo;
+            return true;
+        }
+        while (next < events.size()) {
+            int i = next++;
+            byte eventFlag = events.getEventFlag(i);
+            data2 = events.getData2(i);
+            int eventTick = events.getTick(i);
+            if (endTime > 0) {
+                if (eventTick >= endTime) {
+                    /* The ticks of a track never decrease, so the rest is skipped too */
+                    next = events.size();
+                    break;
+                } else if (events.getMetaevent(i) == MidiFile.MetaEventEndOfTrack) {
+                    /* Every track ends at the end time instead */
+                    continue;
+                }
+            }
+            if (eventTick < pauseTime) {
+                if (eventFlag == MidiFile.EventNoteOn || eventFlag == MidiFile.EventNoteOff) {
+                    /* skip NoteOn/NoteOff event */
+                    continue;
+                } else if (eventFlag == MidiFile.EventControlChange) {
+                    /* Keep the first control change, with the latest value */
+                    int key = ControlKey(events, i);
+                    if (controlSent[key]) {
+                        continue;
+                    }
+                    controlSent[key] = true;
+                    data2 = controlValues[key];
+                }
+                tick = 0;
+            } else {
+                tick = eventTick - pauseTime;
+            }
+            source = i;
+            status = events.getStatus(i);
+            data1 = events.getData1(i);
+            tempo = 0;
+
+            int channel = events.getChannel(i);
+            if (eventFlag == MidiFile.EventNoteOn || eventFlag == MidiFile.EventNoteOff) {
+                data1 = TransposeNote(data1, transpose);
+                if (silentChannels != null && silentChannels[channel]) {
+                    data2 = 0;
+                }
+                if (endTime > 0) {
+                    sounding[channel * 128 + data1] = eventFlag == MidiFile.EventNoteOn && data2 != 0;
+                }
+            } else if (eventFlag == MidiFile.EventKeyPressure) {
+                data1 = TransposeNote(data1, transpose);
+            } else if (eventFlag == MidiFile.EventProgramChange) {
+                if (trackInstruments != null) {
+                    data1 = (byte) trackInstruments[tracknum];
+                } else if (channelInstruments != null) {
+                    data1 = (byte) channelInstruments[channel];
+                }
+            } else if (events.getMetaevent(i) == MidiFile.MetaEventTempo) {
+                tempo = playbackTempo;
+            }
+            return true;
+        }
+        return endTime > 0 && nextEndEvent();
+    }
+
+    /**
+     * Move to the next event added at the end time: a NoteOff for each
+     * note still sounding, then the end of the track.  Return false when
+     * they are all read.
+     */
+    private boolean nextEndEvent() {
+        while (closeKey < sounding.length && !sounding[closeKey]) {
+            closeKey++;
+        }
+        if (closeKey > sounding.length) {
+            return false;
+        }
+        source = -1;
+        tick = endTime - pauseTime;
+        tempo = 0;
+        data2 = 0;
+        if (closeKey < sounding.length) {
+            sounding[closeKey] = false;
+            status = MidiEventTable.Status(MidiFile.EventNoteOff, closeKey / 128);
+            data1 = (byte) (closeKey % 128);
+        } else {
+            status = MidiFile.MetaEvent;
+            data1 = MidiFile.MetaEventEndOfTrack;
+        }
+        closeKey++;
+        return true;
+    }
+
+    /**
+     * Return the time of the current event, in pulses from the pause time
+     */
+    public int tick() {
+        return tick;
+    }
+
+    public byte status() {
+        return status;
+    }
+
+    public byte data1() {
+        return data1;
+    }
+
+    public byte data2() {
+        return data2;
+    }
+
+    /**
+     * Return true if the current event is a tempo event.  Its tempo,
+     * the playback tempo, is tempo(), and its payload must not be used.
+     */
+    public boolean isTempo() {
+        return status == MidiFile.MetaEvent && data1 == MidiFile.MetaEventTempo;
+    }
+
+    /**
+     * Return the tempo of the current tempo event
+     */
+    public int tempo() {
+        return tempo;
+    }
+
+    /**
+     * Return the index of the current event in the track's table, or -1
+     * for an event added by the overlay: the tempo event at the start of
+     * the track, and with an end time the NoteOffs and end of track (which
+     * have no payload).  The payload of other sysex and meta events is
+     * read from the table.
+     */
+    public int sourceIndex() {
+        return source;
+    }
+
+    /**
+     * Copy the given tracks with the options applied into new tables
+     */
+    public ArrayList<MidiEventTable> apply(List<MidiEventTable> tracks) {
+        ArrayList<MidiEventTable> result = new ArrayList<>(countTracks(tracks.size()));
+        for (int tracknum = 0; tracknum < tracks.size(); tracknum++) {
+            if (!includesTrack(tracknum)) {
+                continue;
+            }
+            MidiEventTable events = tracks.get(tracknum);
+            MidiEventTable newevents = new MidiEventTable(events.size() + 1);
+            startTrack(events, tracknum);
+            while (next()) {
+                if (source < 0) {
+                    if (isTempo()) {
+                        newevents.addTempo(tick, tempo);
+                    } else if (status == MidiFile.MetaEvent) {
+                        newevents.addMeta(tick, status, data1, NoPayload, 0, 0, true);
+                    } else {
+                        newevents.add(tick, status, data1, data2, true);
+                    }
+                    continue;
+                }
+                int e = newevents.add(events, source, tick);
+                newevents.setData1(e, data1);
+                newevents.setData2(e, data2);
+                if (isTempo()) {
+                    newevents.setTempo(e, tempo);
+                }
+            }
+            result.add(newevents);
+        }
+        return result;
+    }
+}
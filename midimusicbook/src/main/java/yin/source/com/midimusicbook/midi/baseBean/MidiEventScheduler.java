@@ -0,0 +1,432 @@
+package yin.source.com.midimusicbook.midi.baseBean;
+
+import java.util.List;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * @class MidiEventScheduler
+ * The MidiEventScheduler plays the midi events of a song itself, on a
+ * thread of its own, sending each channel message to a MidiOutputSink
+ * when it is due.  Unlike a rendered file played by the MediaPlayer, the
+ * tempo, the transpose amount and the muted tracks can be changed while
+ * playing (setOptions()), without rendering anything again.
+ * MidiEventScheduler在自己的线程中播放歌曲的midi事件，每条通道消息到时发送给MidiOutputSink。
+ * 与MediaPlayer播放生成的文件不同，播放时可以改变速度、移调和静音的音轨，不需要重新生成文件
+ * <p/>
+ * The events of all the tracks are merged in time order while playing.
+ * The instruments, and the program changes and controllers before the
+ * start, are applied by one MidiEventOverlay per track (see
+ * MidiFile.CreateLiveOverlay()).  The events are timed the way
+ * MidiFile.Write() plays them, at one tempo (see
+ * MidiFile.getPlaybackTempoMap()), scaled by options.tempo / song tempo.
+ * 播放时按时间顺序合并所有音轨的事件。乐器以及开始位置之前的音色和控制器由每个音轨的MidiEventOverlay处理，
+ * 事件的时间与MidiFile.Write()生成的文件一致(单一速度)，再按options.tempo与歌曲速度之比缩放
+ * <p/>
+ * The thread sleeps until shortly before each event, and spins for the
+ * rest (setSpinNanos()).  How late each event was sent is added to a
+ * MidiJitterHistogram.  Sinks that schedule timestamped messages
+ * themselves (e.g. a midi port) can be sent the events ahead of time
+ * (setLeadNanos()), so the lateness of the thread doesn't reach the sound.
+ * 线程休眠到每个事件之前，再自旋等待剩余的时间，每个事件发送的延迟记录在MidiJitterHistogram中。
+ * 能够按时间戳调度消息的输出(如midi端口)可以提前收到事件，线程的延迟就不会影响声音
+ * <p/>
+ * Notes that are sounding when their track is muted, or when playing
+ * stops, get a NoteOff, so no note hangs.
+ * 音轨被静音或停止播放时，正在发声的音符会收到NoteOff
+ */
+public class MidiEventScheduler {
+
+    public static final long DefaultSpinNanos = 200000;
+
+    private final MidiFile midifile;
+    private final MidiOutputSink sink;
+    private final List<MidiEventTable> tables;
+    private final TempoMap tempoMap;
+    private final int songTempo;
+    private final MidiJitterHistogram jitter = new MidiJitterHistogram();
+
+    private final Object lock = new Object();
+    private MidiOptions options;
+    private double scale;
+    /**
+     * The real time per time of the song, options.tempo / song tempo // 实际时间与歌曲时间之比
+     */
+    private int transpose;
+    private final boolean[] mutedTracks;
+    private final boolean[] mutedChannels = new boolean[16];
+    private int optionsVersion;
+    /**
+     * The options set by setOptions(), guarded by lock.  optionsVersion
+     * changes each time they are set. // 由setOptions()设置的选项
+     */
+    private long anchorNanos;
+    private long anchorMicros;
+    /**
+     * The time of the song (in microseconds, not scaled) that was playing
+     * at anchorNanos.  Moved to the current time when the tempo changes.
+     * // anchorNanos时刻播放到的歌曲时间，改变速度时移到当前时间
+     */
+    private int stopPulse;
+    /**
+     * The pulse time where playing stopped // 停止播放时的脉冲时间
+     */
+    private volatile long spinNanos = DefaultSpinNanos;
+    private volatile long leadNanos;
+
+    private Thread thread;
+    private volatile boolean running;
+    private volatile long eventsSent;
+
+    private MidiEventOverlay[] overlays;
+    private int[] headTicks;
+    /**
+     * The current event of each track and its time in pulses, or -1 at
+     * the end of the track // 每个音轨的当前事件及其脉冲时间，音轨结束时为-1
+     */
+    private short[][] sounding;
+    /**
+     * For each track, the note sent + 1 for each channel * 128 + note
+     * number of the song, or 0 if it isn't sounding // 每个音轨正在发声的音符(发送的音符+1)
+     */
+    private int startPulse;
+    private int playVersion;
+    private int playTranspose;
+    private final boolean[] playMutedTracks;
+    private final boolean[] playMutedChannels = new boolean[16];
+    /**
+     * The options in use by the playing thread // 播放线程正在使用的选项
+     */
+
+    public MidiEventScheduler(MidiFile midifile, MidiOptions options, MidiOutputSink sink) {
+        this.midifile = midifile;
+        this.sink = sink;
+        tables = midifile.getEventTables();
+        tempoMap = midifile.getPlaybackTempoMap();
+        songTempo = midifile.getTime().getTempo();
+        mutedTracks = new boolean[tables.size()];
+        playMutedTracks = new boolean[tables.size()];
+        setOptions(options);
+    }
+
+    /**
+     * Change the tempo, transpose amount and muted tracks, also while
+     * playing.  The other options (instruments, end time) are used by the
+     * next start().
+     */
+    public void setOptions(MidiOptions options) {
+        Thread playing;
+        synchronized (lock) {
+            if (running) {
+                /* Keep the current position, and go on at the new tempo */
+                long now = System.nanoTime();
+                anchorMicros = SongMicrosAt(now);
+                anchorNanos = now;
+            }
+            this.options = options.copy();
+            scale = (double) options.tempo / songTempo;
+            transpose = options.transpose;
+            midifile.FindMuted(options, mutedTracks, mutedChannels);
+            optionsVersion++;
+            playing = thread;
+        }
+        if (playing != null) {
+            LockSupport.unpark(playing);
+        }
+    }
+
+    /**
+     * Return the time of the song (in microseconds, not scaled) that is
+     * playing at the given time.  Must hold the lock.
+     */
+    private long SongMicrosAt(long nanos) {
+        return anchorMicros + (long) ((nanos - anchorNanos) / 1000.0 / scale);
+    }
+
+    /**
+     * Return when the given time of the song is due.  Must hold the lock.
+     */
+    private long DueNanos(long songMicros) {
+        return anchorNanos + (long) ((songMicros - anchorMicros) * 1000.0 * scale);
+    }
+
+    /**
+     * Start playing at the given pulse time, on a new thread.  Stops
+     * first if already playing.
+     */
+    public void start(int pulse) {
+        stop();
+        synchronized (lock) {
+            options.pauseTime = Math.max(pulse, 0);
+            startPulse = options.pauseTime;
+            overlays = new MidiEventOverlay[tables.size()];
+            headTicks = new int[tables.size()];
+            sounding = new short[tables.size()][16 * 128];
+            for (int tracknum = 0; tracknum < tables.size(); tracknum++) {
+                overlays[tracknum] = midifile.CreateLiveOverlay(options);
+                overlays[tracknum].startTrack(tables.get(tracknum), tracknum);
+                Advance(tracknum);
+            }
+            playVersion = optionsVersion - 1;
+            anchorMicros = tempoMap.tickToMicros(startPulse);
+            anchorNanos = System.nanoTime();
+            running = true;
+            thread = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    Play();
+                }
+            }, "MidiEventScheduler");
+            /* On Android, the highest java priority maps to the priority of the display thread */
+            thread.setPriority(Thread.MAX_PRIORITY);
+            thread.start();
+        }
+    }
+
+    /**
+     * Stop playing, and wait for the thread to end.  The notes still
+     * sounding get a NoteOff.  Does nothing if not playing.
+     */
+    public void stop() {
+        Thread playing;
+        synchronized (lock) {
+            playing = thread;
+            thread = null;
+            if (running) {
+                stopPulse = CurrentPulse();
+                running = false;
+            }
+        }
+        if (playing == null) {
+            return;
+        }
+        LockSupport.unpark(playing);
+        boolean interrupted = false;
+        while (playing.isAlive()) {
+            try {
+                playing.join();
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Play the events until the end of the song, or until stop() is called.
+     * Runs on the scheduler's thread.
+     */
+    private void Play() {
+        try {
+            while (running) {
+                int tracknum = NextTrack();
+                if (tracknum < 0) {
+                    break;
+                }
+                long due = WaitUntilDue(tempoMap.tickToMicros(headTicks[tracknum]));
+                if (!running) {
+                    break;
+                }
+                jitter.add(System.nanoTime() - due);
+                Send(tracknum, due + leadNanos);
+                Advance(tracknum);
+            }
+        } finally {
+            for (int tracknum = 0; tracknum < sounding.length; tracknum++) {
+                NotesOff(tracknum, true);
+            }
+            synchronized (lock) {
+                if (running) {
+                    stopPulse = CurrentPulse();
+                    running = false;
+                }
+            }
+        }
+    }
+
+    /**
+     * Return the track whose current event is the earliest, or -1 if all
+     * the tracks have ended.  On a tie, the first track wins.
+     */
+    private int NextTrack() {
+        int result = -1;
+        for (int tracknum = 0; tracknum < headTicks.length; tracknum++) {
+            if (headTicks[tracknum] >= 0 && (result < 0 || headTicks[tracknum] < headTicks[result])) {
+                result = tracknum;
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Move the given track to its next channel message, skipping the
+     * meta and sysex events.
+     */
+    private void Advance(int tracknum) {
+        MidiEventOverlay overlay = overlays[tracknum];
+        while (overlay.next()) {
+            if ((overlay.status() & 0xF0) != 0xF0) {
+                headTicks[tracknum] = startPulse + overlay.tick();
+                return;
+            }
+        }
+        headTicks[tracknum] = -1;
+    }
+
+    /**
+     * Wait until the given time of the song is due, less the lead time,
+     * applying the options that change meanwhile.  Sleep until spinNanos
+     * before, then spin.  Return the time waited for.
+     */
+    private long WaitUntilDue(long songMicros) {
+        long due;
+        while (true) {
+            boolean changed;
+            synchronized (lock) {
+                changed = playVersion != optionsVersion;
+                if (changed) {
+                    playVersion = optionsVersion;
+                    playTranspose = transpose;
+                    System.arraycopy(mutedTracks, 0, playMutedTracks, 0, mutedTracks.length);
+                    System.arraycopy(mutedChannels, 0, playMutedChannels, 0, mutedChannels.length);
+                }
+                due = DueNanos(songMicros) - leadNanos;
+            }
+            if (changed) {
+                for (int tracknum = 0; tracknum < sounding.length; tracknum++) {
+                    NotesOff(tracknum, false);
+                }
+            }
+            long wait = due - System.nanoTime();
+            if (!running || wait <= spinNanos) {
+                break;
+            }
+            /* Woken early by setOptions() or stop(), the due time is computed again */
+            LockSupport.parkNanos(this, wait - spinNanos);
+        }
+        while (running && System.nanoTime() < due) {
+            Thread.yield();
+        }
+        return due;
+    }
+
+    /**
+     * Send the current event of the given track, with the transpose
+     * amount and the muted tracks applied.
+     */
+    private void Send(int tracknum, long timestamp) {
+        MidiEventOverlay overlay = overlays[tracknum];
+        byte status = overlay.status();
+        byte data1 = overlay.data1();
+        byte data2 = overlay.data2();
+        byte eventFlag = (byte) (status & 0xF0);
+        int channel = status & 0x0F;
+        boolean muted = playMutedTracks[tracknum] || playMutedChannels[channel];
+        short[] notes = sounding[tracknum];
+        int key = channel * 128 + (data1 & 0x7F);
+
+        if (eventFlag == MidiFile.EventNoteOn && data2 != 0) {
+            if (muted) {
+                return;
+            }
+            byte note = MidiEventOverlay.TransposeNote(data1, playTranspose);
+            notes[key] = (short) (note + 1);
+            SendMessage(status, note, data2, timestamp);
+        } else if (eventFlag == MidiFile.EventNoteOn || eventFlag == MidiFile.EventNoteOff) {
+            /* Turn off the note that was sent, even if the transpose amount changed since */
+            if (notes[key] != 0) {
+                SendMessage(status, (byte) (notes[key] - 1), data2, timestamp);
+                notes[key] = 0;
+            }
+        } else if (eventFlag == MidiFile.EventKeyPressure) {
+            if (!muted && notes[key] != 0) {
+                SendMessage(status, (byte) (notes[key] - 1), data2, timestamp);
+            }
+        } else {
+            /* Controllers and program changes are sent for muted tracks too,
+             * so the sound is right when they are unmuted */
+            SendMessage(status, data1, data2, timestamp);
+        }
+    }
+
+    /**
+     * Send a NoteOff for the notes of the given track that are sounding:
+     * all of them, or only those that are muted.
+     */
+    private void NotesOff(int tracknum, boolean all) {
+        short[] notes = sounding[tracknum];
+        for (int key = 0; key < notes.length; key++) {
+            if (notes[key] != 0 && (all || playMutedTracks[tracknum] || playMutedChannels[key / 128])) {
+                SendMessage(MidiEventTable.Status(MidiFile.EventNoteOff, key / 128), (byte) (notes[key] - 1),
+                        (byte) 0, System.nanoTime() + leadNanos);
+                notes[key] = 0;
+            }
+        }
+    }
+
+    private void SendMessage(byte status, byte data1, byte data2, long timestamp) {
+        sink.send(status, data1, data2, timestamp);
+        eventsSent++;
+    }
+
+    /**
+     * Return the pulse time playing now.  Must hold the lock.
+     */
+    private int CurrentPulse() {
+        return (int) tempoMap.microsToTick(SongMicrosAt(System.nanoTime()));
+    }
+
+    /**
+     * Return the pulse time playing now, or where playing stopped
+     */
+    public int getCurrentPulse() {
+        synchronized (lock) {
+            return running ? CurrentPulse() : stopPulse;
+        }
+    }
+
+    /**
+     * Return true from start() until the end of the song or stop()
+     */
+    public boolean isPlaying() {
+        return running;
+    }
+
+    /**
+     * Sleep until this long before each event, and spin for the rest.
+     * 0 only sleeps, which saves power but is later by the timer slack
+     * of the system.
+     */
+    public void setSpinNanos(long spinNanos) {
+        this.spinNanos = spinNanos;
+    }
+
+    /**
+     * Send each event this long before it is due, with its due time as
+     * the timestamp.  Only for sinks that schedule the messages themselves.
+     */
+    public void setLeadNanos(long leadNanos) {
+        this.leadNanos = leadNanos;
+    }
+
+    /**
+     * Return how late the events were sent
+     */
+    public MidiJitterHistogram getJitterHistogram() {
+        return jitter;
+    }
+
+    /**
+     * Return the number of messages sent to the sink
+     */
+    public long getEventCount() {
+        return eventsSent;
+    }
+
+    @Override
+    public String toString() {
+        return "MidiEventScheduler{playing=" + running + ", pulse=" + getCurrentPulse() + ", events=" + eventsSent
+                + ", " + jitter + '}';
+    }
+}
@@ -0,0 +1,400 @@
+package yin.source.com.midimusicbook.midi.baseBean;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+
+/**
+ * @class MidiEventTable
+ * The MidiEventTable stores the raw midi events of one track as parallel
+ * primitive arrays (one column per field) instead of one MidiEvent object
+ * per event.
+ * MidiEventTable以若干个基本类型数组(每个字段一列)保存一条音轨的原始midi事件，
+ * 而不是为每个事件创建一个MidiEvent对象
+ * <p/>
+ * For each event the table keeps:
+ * - tick    The absolute time of the event, in pulses // 事件的绝对时间，单位:tick
+ * - status  The status byte, including the channel (e.g. 0x93) // 状态字节,包含通道
+ * - data1   The first data byte (note number, controller number,
+ * program, high byte of the pitch bend), or the metaevent code
+ * for meta events // 第一个数据字节，元事件时为元事件码
+ * - data2   The second data byte (velocity, controller value, pressure,
+ * low byte of the pitch bend) // 第二个数据字节
+ * - payload The offset and length of the raw bytes of sysex and meta
+ * events, stored back to back in a single byte[] // 系统事件和元事件的数据在一个共享byte[]中的位置
+ * <p/>
+ * The delta time of an event is the difference between its tick and the
+ * tick of the previous event, so it isn't stored.
+ * 事件的delta时间等于它与前一个事件的tick之差，所以不单独保存
+ * <p/>
+ * Use toMidiEvents() for code that still wants MidiEvent objects.
+ */
+public class MidiEventTable {
+
+    private int count;
+    /**
+     * The number of events // 事件数量
+     */
+    private int[] ticks;
+    private byte[] statuses;
+    private byte[] data1;
+    private byte[] data2;
+    private boolean[] hasEventflags;
+    /**
+     * False if the event used the previous status (running status)
+     */
+    private int[] payloadOffsets;
+    private int[] payloadLengths;
+    private byte[] payload;
+    /**
+     * The raw bytes of all the sysex/meta events // 所有系统事件和元事件的原始数据
+     */
+    private int payloadSize;
+
+    public MidiEventTable() {
+        this(20);
+    }
+
+    public MidiEventTable(int capacity) {
+        capacity = Math.max(capacity, 4);
+        ticks = new int[capacity];
+        statuses = new byte[capacity];
+        data1 = new byte[capacity];
+        data2 = new byte[capacity];
+        hasEventflags = new boolean[capacity];
+        payloadOffsets = new int[capacity];
+        payloadLengths = new int[capacity];
+        payload = new byte[64];
+        count = 0;
+        payloadSize = 0;
+    }
+
+    /**
+     * Return the status byte for the given event type and channel
+     */
+    public static byte Status(byte eventFlag, int channel) {
+        if (eventFlag == MidiFile.SysexEvent1 || eventFlag == MidiFile.SysexEvent2 ||
+                eventFlag == MidiFile.MetaEvent) {
+            return eventFlag;
+        }
+        return (byte) (eventFlag + channel);
+    }
+
+    private void ensureCapacity(int size) {
+        if (size <= ticks.length) {
+            return;
+        }
+        int capacity = Math.max(size, ticks.length * 2);
+        ticks = Arrays.copyOf(ticks, capacity);
+        statuses = Arrays.copyOf(statuses, capacity);
+        data1 = Arrays.copyOf(data1, capacity);
+        data2 = Arrays.copyOf(data2, capacity);
+        hasEventflags = Arrays.copyOf(hasEventflags, capacity);
+        payloadOffsets = Arrays.copyOf(payloadOffsets, capacity);
+        payloadLengths = Arrays.copyOf(payloadLengths, capacity);
+    }
+
+    private int reservePayload(int length) {
+        if (payloadSize + length > payload.length) {
+            payload = Arrays.copyOf(payload, Math.max(payloadSize + length, payload.length * 2));
+        }
+        int offset = payloadSize;
+        payloadSize += length;
+        return offset;
+    }
+
+    /**
+     * Add a channel event (NoteOn, ControlChange, etc).
+     * Return the index of the new event.
+     */
+    public int add(int tick, byte status, byte d1, byte d2, boolean hasEventflag) {
+        ensureCapacity(count + 1);
+        ticks[count] = tick;
+        statuses[count] = status;
+        data1[count] = d1;
+        data2[count] = d2;
+        hasEventflags[count] = hasEventflag;
+        payloadOffsets[count] = 0;
+        payloadLengths[count] = 0;
+        return count++;
+    }
+
+    /**
+     * Add a sysex or meta event, reading its payload of the given length
+     * from the file.  For sysex events the metaevent code is ignored.
+     * Return the index of the new event.
+     */
+    public int addMeta(int tick, byte status, byte metaevent, MidiFileReader file, int length,
+                       boolean hasEventflag) {
+        int offset = reservePayload(length);
+        file.readBytes(payload, offset, length);
+        return addMetaAt(tick, status, metaevent, offset, length, hasEventflag);
+    }
+
+    /**
+     * Add a sysex or meta event whose payload is in the given array.
+     * Return the index of the new event.
+     */
+    public int addMeta(int tick, byte status, byte metaevent, byte[] value, int valueOffset, int length,
+                       boolean hasEventflag) {
+        int offset = reservePayload(length);
+        System.arraycopy(value, valueOffset, payload, offset, length);
+        return addMetaAt(tick, status, metaevent, offset, length, hasEventflag);
+    }
+
+    /**
+     * Add the current event of the cursor, reading its payload if it has one.
+     * Return the index of the new event.
+     */
+    public int add(MidiEventCursor cursor) {
+        byte status = cursor.status();
+        if ((status & 0xF0) != 0xF0) {
+            return add(cursor.tick(), status, cursor.data1(), cursor.data2(), cursor.hasEventflag());
+        }
+        int length = cursor.payloadLength();
+        int offset = reservePayload(length);
+        cursor.readPayload(payload, offset);
+        return addMetaAt(cursor.tick(), status, cursor.data1(), offset, length, cursor.hasEventflag());
+    }
+
+    private int addMetaAt(int tick, byte status, byte metaevent, int offset, int length,
+                          boolean hasEventflag) {
+        ensureCapacity(count + 1);
+        ticks[count] = tick;
+        statuses[count] = status;
+        data1[count] = (status == MidiFile.MetaEvent) ? metaevent : 0;
+        data2[count] = 0;
+        hasEventflags[count] = hasEventflag;
+        payloadOffsets[count] = offset;
+        payloadLengths[count] = length;
+        return count++;
+    }
+
+    /**
+     * Add a Tempo meta event, with the given tempo in microseconds per
+     * quarter note. Return the index of the new event.
+     */
+    public int addTempo(int tick, int tempo) {
+        int offset = reservePayload(3);
+        payload[offset] = (byte) ((tempo >> 16) & 0xFF);
+        payload[offset + 1] = (byte) ((tempo >> 8) & 0xFF);
+        payload[offset + 2] = (byte) (tempo & 0xFF);
+        return addMetaAt(tick, MidiFile.MetaEvent, MidiFile.MetaEventTempo, offset, 3, true);
+    }
+
+    /**
+     * Copy the event at the given index of another table to the end of
+     * this table, with a new tick. Return the index of the new event.
+     */
+    public int add(MidiEventTable other, int index, int tick) {
+        if (other.IsMeta(index)) {
+            return addMeta(tick, other.statuses[index], other.data1[index], other.payload,
+                    other.payloadOffsets[index], other.payloadLengths[index], other.hasEventflags[index]);
+        }
+        return add(tick, other.statuses[index], other.data1[index], other.data2[index],
+                other.hasEventflags[index]);
+    }
+
+    /**
+     * Return a copy of this table that shares nothing with it
+     */
+    public MidiEventTable copy() {
+        MidiEventTable table = new MidiEventTable(count);
+        table.count = count;
+        System.arraycopy(ticks, 0, table.ticks, 0, count);
+        System.arraycopy(statuses, 0, table.statuses, 0, count);
+        System.arraycopy(data1, 0, table.data1, 0, count);
+        System.arraycopy(data2, 0, table.data2, 0, count);
+        System.arraycopy(hasEventflags, 0, table.hasEventflags, 0, count);
+        System.arraycopy(payloadOffsets, 0, table.payloadOffsets, 0, count);
+        System.arraycopy(payloadLengths, 0, table.payloadLengths, 0, count);
+        table.payload = Arrays.copyOf(payload, Math.max(payloadSize, 1));
+        table.payloadSize = payloadSize;
+        return table;
+    }
+
+    public int size() {
+        return count;
+    }
+
+    public int getTick(int index) {
+        return ticks[index];
+    }
+
+    public void setTick(int index, int tick) {
+        ticks[index] = tick;
+    }
+
+    /**
+     * Return the time between the previous event and this one
+     */
+    public int getDeltaTime(int index) {
+        return index == 0 ? ticks[0] : ticks[index] - ticks[index - 1];
+    }
+
+    public byte getStatus(int index) {
+        return statuses[index];
+    }
+
+    /**
+     * Return the event type (EventNoteOn, MetaEvent, etc) without the channel
+     */
+    public byte getEventFlag(int index) {
+        byte status = statuses[index];
+        if ((status & 0xF0) == 0xF0) {
+            return status;
+        }
+        return (byte) (status & 0xF0);
+    }
+
+    /**
+     * Return the channel of a channel event, or 0 for sysex/meta events
+     */
+    public int getChannel(int index) {
+        byte status = statuses[index];
+        if ((status & 0xF0) == 0xF0) {
+            return 0;
+        }
+        return status & 0x0F;
+    }
+
+    public byte getData1(int index) {
+        return data1[index];
+    }
+
+    public void setData1(int index, byte value) {
+        data1[index] = value;
+    }
+
+    public byte getData2(int index) {
+        return data2[index];
+    }
+
+    public void setData2(int index, byte value) {
+        data2[index] = value;
+    }
+
+    public boolean hasEventflag(int index) {
+        return hasEventflags[index];
+    }
+
+    /**
+     * Return true if this is a sysex or meta event
+     */
+    public boolean IsMeta(int index) {
+        byte status = statuses[index];
+        return status == MidiFile.MetaEvent || status == MidiFile.SysexEvent1 ||
+                status == MidiFile.SysexEvent2;
+    }
+
+    /**
+     * Return the metaevent code, or -1 if this isn't a meta event.
+     */
+    public int getMetaevent(int index) {
+        return statuses[index] == MidiFile.MetaEvent ? data1[index] : -1;
+    }
+
+    public int getPayloadOffset(int index) {
+        return payloadOffsets[index];
+    }
+
+    public int getPayloadLength(int index) {
+        return payloadLengths[index];
+    }
+
+    /**
+     * Return the array holding the payload bytes of all events.  Use
+     * getPayloadOffset() and getPayloadLength() to find an event's bytes.
+     */
+    public byte[] getPayload() {
+        return payload;
+    }
+
+    /**
+     * Return the number of payload bytes used by all events
+     */
+    public int getPayloadSize() {
+        return payloadSize;
+    }
+
+    /**
+     * Return the tempo (microseconds per quarter note) of a Tempo meta event
+     */
+    public int getTempo(int index) {
+        int offset = payloadOffsets[index];
+        return ((payload[offset] & 0xFF) << 16) |
+                ((payload[offset + 1] & 0xFF) << 8) |
+                (payload[offset + 2] & 0xFF);
+    }
+
+    /**
+     * Change the tempo of a Tempo meta event
+     */
+    public void setTempo(int index, int tempo) {
+        int offset = payloadOffsets[index];
+        payload[offset] = (byte) ((tempo >> 16) & 0xFF);
+        payload[offset + 1] = (byte) ((tempo >> 8) & 0xFF);
+        payload[offset + 2] = (byte) (tempo & 0xFF);
+    }
+
+    /**
+     * Return the event at the given index as a new MidiEvent
+     */
+    public MidiEvent toMidiEvent(int index) {
+        MidiEvent mevent = new MidiEvent();
+        mevent.DeltaTime = getDeltaTime(index);
+        mevent.StartTime = ticks[index];
+        mevent.HasEventflag = hasEventflags[index];
+        byte eventFlag = getEventFlag(index);
+        mevent.EventFlag = eventFlag;
+        mevent.Channel = (byte) getChannel(index);
+        byte d1 = data1[index];
+        byte d2 = data2[index];
+        if (eventFlag == MidiFile.EventNoteOn || eventFlag == MidiFile.EventNoteOff) {
+            mevent.Notenumber = d1;
+            mevent.Velocity = d2;
+        } else if (eventFlag == MidiFile.EventKeyPressure) {
+            mevent.Notenumber = d1;
+            mevent.KeyPressure = d2;
+        } else if (eventFlag == MidiFile.EventControlChange) {
+            mevent.ControlNum = d1;
+            mevent.ControlValue = d2;
+        } else if (eventFlag == MidiFile.EventProgramChange) {
+            mevent.Instrument = d1;
+        } else if (eventFlag == MidiFile.EventChannelPressure) {
+            mevent.ChanPressure = d1;
+        } else if (eventFlag == MidiFile.EventPitchBend) {
+            mevent.PitchBend = (short) (((d1 & 0xFF) << 8) | (d2 & 0xFF));
+        } else {
+            if (eventFlag == MidiFile.MetaEvent) {
+                mevent.Metaevent = d1;
+            }
+            int length = payloadLengths[index];
+            mevent.Metalength = length;
+            mevent.Value = Arrays.copyOfRange(payload, payloadOffsets[index], payloadOffsets[index] + length);
+            if (mevent.Metaevent == MidiFile.MetaEventTimeSignature) {
+                mevent.Numerator = mevent.Value[0];
+                mevent.Denominator = (byte) Math.pow(2, mevent.Value[1]);
+            } else if (mevent.Metaevent == MidiFile.MetaEventTempo) {
+                mevent.Tempo = getTempo(index);
+            }
+        }
+        return mevent;
+    }
+
+    /**
+     * Return all the events as MidiEvent objects.  This is a snapshot,
+     * changing the returned events doesn't change the table.
+     */
+    public ArrayList<MidiEvent> toMidiEvents() {
+        ArrayList<MidiEvent> result = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            result.add(toMidiEvent(i));
+        }
+        return result;
+    }
+
+    @Override
+    public String toString() {
+        return "MidiEventTable{count=" + count + ", payloadSize=" + payloadSize + '}';
+    }
+}
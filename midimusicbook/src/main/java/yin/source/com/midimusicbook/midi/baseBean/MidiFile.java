@@ -6,16 +6,23 @@ package yin.source.com.midimusicbook.midi.baseBean;
 
 import android.app.Activity;
 import android.net.Uri;
-import android.util.Log;
 
 
 import java.io.File;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.UnsupportedEncodingException;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
+import java.util.Comparator;
 import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
 
 import yin.source.com.midimusicbook.exception.MidiFileException;
 import yin.source.com.midimusicbook.utils.IOUtil;
@@ -382,9 +389,9 @@ public class MidiFile {
     /**
      * The Midi file name
      */
-    private ArrayList<ArrayList<MidiEvent>> allEvents;
+    private ArrayList<MidiEventTable> eventTables;
     /**
-     * The raw MidiEvents, one list per track
+     * The raw midi events, one table per track
      */
     private ArrayList<MidiTrack> tracks;
     /**
@@ -398,6 +405,16 @@ public class MidiFile {
     /**
      * The time signature 拍子记号
      */
+    private TempoMap tempoMap;
+    /**
+     * Converts between pulses and milliseconds, following the tempo changes
+     * // 根据速度变化在脉冲和毫秒之间换算
+     */
+    private TempoMap playbackTempoMap;
+    /**
+     * Converts between pulses and milliseconds at the one tempo Write()
+     * plays the song at // 按Write()播放时的单一速度在脉冲和毫秒之间换算
+     */
     private int quarterNote;
     /**
      * The number of pulses per quarter note 每个四分之一音符的脉冲数
@@ -409,34 +426,177 @@ public class MidiFile {
      */
     private boolean trackPerChannel;
 
+    private MidiFileReader unparsed;
+    /**
+     * The reader of lazily opened data whose events haven't been parsed yet
+     */
+    private File unparsedFile;
+    private long unparsedLength;
+    private long unparsedModified;
+    /**
+     * A lazily opened local file whose events haven't been parsed yet, its
+     * length and its modification time.  Only the File is kept, not its
+     * mapping, so scanning a large library doesn't keep thousands of files
+     * mapped.  The chunk offsets are in the header.
+     * 延迟打开、尚未解析的本地文件及其长度和修改时间，只保存File而不保存内存映射
+     */
+    private MidiFileHeader header;
+    /**
+     * The cheap metadata of the file // 文件的元数据
+     */
+
+    private static volatile ExecutorService parseExecutor;
+    /**
+     * The executor used to parse the tracks in parallel, or null to parse
+     * them one after another // 并行解析音轨所用的线程池，为null时按顺序解析
+     */
+
+    /**
+     * Parse the MTrk chunks of midi files on the given executor, one task
+     * per track.  Pass null to go back to parsing the tracks one after
+     * another, which is the default.  The result is the same either way.
+     * 设置并行解析音轨所用的线程池，传入null则按顺序解析(默认)，两种方式的解析结果相同
+     */
+    public static void setParseExecutor(ExecutorService executor) {
+        parseExecutor = executor;
+    }
+
+    private static volatile MidiParseListener parseListener = MidiParseListener.None;
+    /**
+     * The listener that receives the parse diagnostics // 接收解析诊断信息的监听器
+     */
+
+    /**
+     * Report the event counts, byte counts, timings and recovered
+     * truncations of every midi file parsed from now on to the given
+     * listener, e.g. a MidiParseMetrics.  Pass null to stop, which is the
+     * default; nothing is measured then.
+     * 设置接收解析诊断信息(事件数、字节数、耗时、截断恢复)的监听器，传入null则停止(默认)，此时不做任何统计
+     */
+    public static void setParseListener(MidiParseListener listener) {
+        parseListener = listener != null ? listener : MidiParseListener.None;
+    }
+
     /**
      * Create a new MidiFile from the byte[]
      */
     public MidiFile(byte[] rawData, String fileName) {
         this.fileName = fileName;
         // outHData(rawData);
-        parse(rawData);
+        parse(new MidiFileReader(rawData));
         // outHData(rawData);
         // count8090(rawData);
     }
 
+    /**
+     * Create a new MidiFile by streaming the given input.  The file is never
+     * copied onto the heap in one piece.  The caller closes the stream.
+     * 以流的方式解析midi文件，不会把整个文件读入内存。输入流由调用者关闭
+     */
+    public MidiFile(InputStream inputStream, String fileName) {
+        this.fileName = fileName;
+        parse(new MidiFileReader(inputStream));
+    }
 
     public MidiFile(Uri uri, String fileName, Activity activity) {
         this.fileName = fileName;
-        byte[] byteDataByUri = IOUtil.getByteDataByUri(uri, activity);
-        if (byteDataByUri == null) {
-            throw new MidiFileException("getByteDataByUri return null");
+        InputStream inputStream = null;
+        try {
+            inputStream = IOUtil.getInputStreamByUri(uri, activity);
+            parse(new MidiFileReader(inputStream));
+        } catch (IOException e) {
+            throw new MidiFileException("Cannot open " + uri + ": " + e.getMessage());
+        } finally {
+            IOUtil.closeQuietly(inputStream);
         }
-        parse(byteDataByUri);
     }
 
+    /**
+     * Create a new MidiFile from a local file.  The file is memory mapped,
+     * so it is paged in by the OS instead of being copied onto the heap.
+     * 本地文件使用内存映射的方式解析
+     */
     public MidiFile(File file, String fileName) {
         this.fileName = fileName;
-        byte[] byteDataByUri = IOUtil.getByteDataByFile(file);
-        if (byteDataByUri == null) {
-            throw new MidiFileException("getByteDataByUri return null");
+        parse(new MidiFileReader(file));
+    }
+
+    /**
+     * Create a MidiFile whose events aren't parsed yet, see OpenLazily()
+     */
+    private MidiFile(String fileName) {
+        this.fileName = fileName;
+    }
+
+    /**
+     * Open a local midi file lazily.  Only the MThd header, the chunk
+     * offsets and the cheap metadata (see getHeader()) are read now.  The
+     * events are parsed the first time the tracks, events or times of the
+     * song are needed, e.g. by getTracks().  Use this to scan many files
+     * for a song list.  The mapping used to read the header is dropped;
+     * the file is mapped again when the events are parsed.
+     * 延迟打开本地midi文件：现在只读取头信息和元数据，第一次需要音轨、事件或时间时才完整解析。
+     * 用于扫描大量文件生成歌曲列表
+     */
+    public static MidiFile OpenLazily(File file, String fileName) {
+        MidiFile midiFile = new MidiFile(fileName);
+        midiFile.header = MidiFileHeader.Read(new MidiFileReader(file));
+        midiFile.unparsedFile = file;
+        midiFile.unparsedLength = file.length();
+        midiFile.unparsedModified = file.lastModified();
+        return midiFile;
+    }
+
+    /**
+     * Open the midi file in the given data lazily, see OpenLazily(File, String)
+     */
+    public static MidiFile OpenLazily(byte[] rawData, String fileName) {
+        MidiFileReader file = new MidiFileReader(rawData);
+        MidiFile midiFile = new MidiFile(fileName);
+        midiFile.header = MidiFileHeader.Read(file.duplicate(0));
+        midiFile.unparsed = file;
+        return midiFile;
+    }
+
+    /**
+     * Parse the events of a lazily opened file, if that hasn't been done yet
+     */
+    private synchronized void ensureParsed() {
+        if (unparsedFile != null) {
+            /* The chunk offsets of the header must still match the file.
+             * A rewrite that keeps the length within the resolution of the
+             * modification time (up to 2 seconds on FAT) isn't detected. */
+            if (unparsedFile.length() != unparsedLength
+                    || unparsedFile.lastModified() != unparsedModified) {
+                throw new MidiFileException("The file " + unparsedFile + " changed since it was opened", 0);
+            }
+            parse(new MidiFileReader(unparsedFile));
+            unparsedFile = null;
+        }
+        if (unparsed != null) {
+            parse(unparsed);
+            unparsed = null;
         }
-        parse(byteDataByUri);
+    }
+
+    /**
+     * Return true if the events of this file have been parsed
+     */
+    public synchronized boolean isParsed() {
+        return unparsed == null && unparsedFile == null;
+    }
+
+    /**
+     * Return the cheap metadata of this file: track names, instruments,
+     * first tempo, time and key signature, and end time.  For a lazily
+     * opened file this doesn't parse the events.
+     */
+    public synchronized MidiFileHeader getHeader() {
+        if (header == null) {
+            ensureParsed();
+            header = MidiFileHeader.FromEvents(eventTables, trackMode, quarterNote);
+        }
+        return header;
     }
 
     /**
@@ -485,262 +645,6 @@ public class MidiFile {
         }
     }
 
-    /**
-     * Write a 4-byte integer to data[offset : offset+4]
-     */
-    private static void IntToBytes(int value, byte[] data, int offset) {
-        data[offset] = (byte) ((value >> 24) & 0xFF);
-        data[offset + 1] = (byte) ((value >> 16) & 0xFF);
-        data[offset + 2] = (byte) ((value >> 8) & 0xFF);
-        data[offset + 3] = (byte) (value & 0xFF);
-    }
-
-    /**
-     * Calculate the track length (in bytes) given a list of Midi events
-     */
-    private static int GetTrackLength(ArrayList<MidiEvent> events) {
-        int len = 0;
-        byte[] buf = new byte[1024];
-        for (MidiEvent mevent : events) {
-            len += VarlenToBytes(mevent.DeltaTime, buf, 0);
-            len += 1;  /* for eventflag */
-            switch (mevent.EventFlag) {
-                case EventNoteOn:
-                    len += 2;
-                    break;
-                case EventNoteOff:
-                    len += 2;
-                    break;
-                case EventKeyPressure:
-                    len += 2;
-                    break;
-                case EventControlChange:
-                    len += 2;
-                    break;
-                case EventProgramChange:
-                    len += 1;
-                    break;
-                case EventChannelPressure:
-                    len += 1;
-                    break;
-                case EventPitchBend:
-                    len += 2;
-                    break;
-
-                case SysexEvent1:
-                case SysexEvent2:
-                    len += VarlenToBytes(mevent.Metalength, buf, 0);
-                    len += mevent.Metalength;
-                    break;
-                case MetaEvent:
-                    len += 1;
-                    len += VarlenToBytes(mevent.Metalength, buf, 0);
-                    len += mevent.Metalength;
-                    break;
-                default:
-                    break;
-            }
-        }
-        return len;
-    }
-
-    /**
-     * Copy len bytes from src to dest, at the given offsets
-     */
-    private static void ArrayCopy(byte[] src, int srcoffset, byte[] dest, int destoffset, int len) {
-        for (int i = 0; i < len; i++) {
-            dest[destoffset + i] = src[srcoffset + i];
-        }
-    }
-
-    /**
-     * Write the given list of Midi events to a stream/file.
-     * This method is used for sound playback, for creating new Midi files
-     * with the tempo, transpose, etc changed.
-     * <p/>
-     * Return true on success, and false on error.
-     */
-    private static void WriteEvents(FileOutputStream file, ArrayList<ArrayList<MidiEvent>> allevents,
-                                    int trackmode, int quarter) throws IOException {
-
-        byte[] buf = new byte[16384];
-
-        /* Write the MThd, len = 6, track mode, number tracks, quarter note */
-        file.write("MThd".getBytes("US-ASCII"), 0, 4);
-        IntToBytes(6, buf, 0);
-        file.write(buf, 0, 4);
-        buf[0] = (byte) (trackmode >> 8);
-        buf[1] = (byte) (trackmode & 0xFF);
-        file.write(buf, 0, 2);
-        buf[0] = 0;
-        buf[1] = (byte) allevents.size();
-        file.write(buf, 0, 2);
-        buf[0] = (byte) (quarter >> 8);
-        buf[1] = (byte) (quarter & 0xFF);
-        file.write(buf, 0, 2);
-
-        for (ArrayList<MidiEvent> list : allevents) {
-            /* Write the MTrk header and track length */
-            file.write("MTrk".getBytes("US-ASCII"), 0, 4);
-            int len = GetTrackLength(list);
-            IntToBytes(len, buf, 0);
-            file.write(buf, 0, 4);
-
-            for (MidiEvent mevent : list) {
-                int varlen = VarlenToBytes(mevent.DeltaTime, buf, 0);
-                file.write(buf, 0, varlen);
-
-                if (mevent.EventFlag == SysexEvent1 ||
-                        mevent.EventFlag == SysexEvent2 ||
-                        mevent.EventFlag == MetaEvent) {
-                    buf[0] = mevent.EventFlag;
-                } else {
-                    buf[0] = (byte) (mevent.EventFlag + mevent.Channel);
-                }
-                file.write(buf, 0, 1);
-
-                if (mevent.EventFlag == EventNoteOn) {
-                    buf[0] = mevent.Notenumber;
-                    buf[1] = mevent.Velocity;
-                    file.write(buf, 0, 2);
-                } else if (mevent.EventFlag == EventNoteOff) {
-                    buf[0] = mevent.Notenumber;
-                    buf[1] = mevent.Velocity;
-                    file.write(buf, 0, 2);
-                } else if (mevent.EventFlag == EventKeyPressure) {
-                    buf[0] = mevent.Notenumber;
-                    buf[1] = mevent.KeyPressure;
-                    file.write(buf, 0, 2);
-                } else if (mevent.EventFlag == EventControlChange) {
-                    buf[0] = mevent.ControlNum;
-                    buf[1] = mevent.ControlValue;
-                    file.write(buf, 0, 2);
-                } else if (mevent.EventFlag == EventProgramChange) {
-                    buf[0] = mevent.Instrument;
-                    file.write(buf, 0, 1);
-                } else if (mevent.EventFlag == EventChannelPressure) {
-                    buf[0] = mevent.ChanPressure;
-                    file.write(buf, 0, 1);
-                } else if (mevent.EventFlag == EventPitchBend) {
-                    buf[0] = (byte) (mevent.PitchBend >> 8);
-                    buf[1] = (byte) (mevent.PitchBend & 0xFF);
-                    file.write(buf, 0, 2);
-                } else if (mevent.EventFlag == SysexEvent1) {
-                    int offset = VarlenToBytes(mevent.Metalength, buf, 0);
-                    ArrayCopy(mevent.Value, 0, buf, offset, mevent.Value.length);
-                    file.write(buf, 0, offset + mevent.Value.length);
-                } else if (mevent.EventFlag == SysexEvent2) {
-                    int offset = VarlenToBytes(mevent.Metalength, buf, 0);
-                    ArrayCopy(mevent.Value, 0, buf, offset, mevent.Value.length);
-                    file.write(buf, 0, offset + mevent.Value.length);
-                } else if (mevent.EventFlag == MetaEvent && mevent.Metaevent == MetaEventTempo) {
-                    buf[0] = mevent.Metaevent;
-                    buf[1] = 3;
-                    buf[2] = (byte) ((mevent.Tempo >> 16) & 0xFF);
-                    buf[3] = (byte) ((mevent.Tempo >> 8) & 0xFF);
-                    buf[4] = (byte) (mevent.Tempo & 0xFF);
-                    file.write(buf, 0, 5);
-                } else if (mevent.EventFlag == MetaEvent) {
-                    buf[0] = mevent.Metaevent;
-                    int offset = VarlenToBytes(mevent.Metalength, buf, 1) + 1;
-                    ArrayCopy(mevent.Value, 0, buf, offset, mevent.Value.length);
-                    file.write(buf, 0, offset + mevent.Value.length);
-                }
-            }
-        }
-        file.close();
-    }
-
-    /**
-     * Clone the list of MidiEvents
-     */
-    private static ArrayList<ArrayList<MidiEvent>> CloneMidiEvents(ArrayList<ArrayList<MidiEvent>> origlist) {
-        ArrayList<ArrayList<MidiEvent>> newlist =
-                new ArrayList<ArrayList<MidiEvent>>(origlist.size());
-        for (int tracknum = 0; tracknum < origlist.size(); tracknum++) {
-            ArrayList<MidiEvent> origevents = origlist.get(tracknum);
-            ArrayList<MidiEvent> newevents = new ArrayList<MidiEvent>(origevents.size());
-            newlist.add(newevents);
-            for (MidiEvent mevent : origevents) {
-                newevents.add(mevent.Clone());
-            }
-        }
-        return newlist;
-    }
-
-    /**
-     * Create a new Midi tempo event, with the given tempo
-     */
-    private static MidiEvent CreateTempoEvent(int tempo) {
-        MidiEvent mevent = new MidiEvent();
-        mevent.DeltaTime = 0;
-        mevent.StartTime = 0;
-        mevent.HasEventflag = true;
-        mevent.EventFlag = MetaEvent;
-        mevent.Metaevent = MetaEventTempo;
-        mevent.Metalength = 3;
-        mevent.Tempo = tempo;
-        return mevent;
-    }
-
-    /**
-     * Search the events for a ControlChange event with the same
-     * channel and control number.  If a matching event is found,
-     * update the control value.  Else, add a new ControlChange event.
-     */
-    private static void UpdateControlChange(ArrayList<MidiEvent> newevents, MidiEvent changeEvent) {
-        for (MidiEvent mevent : newevents) {
-            if ((mevent.EventFlag == changeEvent.EventFlag) &&
-                    (mevent.Channel == changeEvent.Channel) &&
-                    (mevent.ControlNum == changeEvent.ControlNum)) {
-
-                mevent.ControlValue = changeEvent.ControlValue;
-                return;
-            }
-        }
-        newevents.add(changeEvent);
-    }
-
-    /**
-     * Start the Midi music at the given pause time (in pulses).
-     * Remove any NoteOn/NoteOff events that occur before the pause time.
-     * For other events, change the delta-time to 0 if they occur
-     * before the pause time.  Return the modified Midi Events.
-     */
-    private static ArrayList<ArrayList<MidiEvent>> StartAtPauseTime(ArrayList<ArrayList<MidiEvent>> list, int pauseTime) {
-        ArrayList<ArrayList<MidiEvent>> newlist = new ArrayList<ArrayList<MidiEvent>>(list.size());
-        for (int tracknum = 0; tracknum < list.size(); tracknum++) {
-            ArrayList<MidiEvent> events = list.get(tracknum);
-            ArrayList<MidiEvent> newevents = new ArrayList<MidiEvent>(events.size());
-            newlist.add(newevents);
-
-            boolean foundEventAfterPause = false;
-            for (MidiEvent mevent : events) {
-
-                if (mevent.StartTime < pauseTime) {
-                    if (mevent.EventFlag == EventNoteOn ||
-                            mevent.EventFlag == EventNoteOff) {
-
-                        /* skip NoteOn/NoteOff event */
-                    } else if (mevent.EventFlag == EventControlChange) {
-                        mevent.DeltaTime = 0;
-                        UpdateControlChange(newevents, mevent);
-                    } else {
-                        mevent.DeltaTime = 0;
-                        newevents.add(mevent);
-                    }
-                } else if (!foundEventAfterPause) {
-                    mevent.DeltaTime = (mevent.StartTime - pauseTime);
-                    newevents.add(mevent);
-                    foundEventAfterPause = true;
-                } else {
-                    newevents.add(mevent);
-                }
-            }
-        }
-        return newlist;
-    }
-
     /**
      * Shift the starttime of the notes by the given amount.
      * This is used by the Shift Notes menu to shift notes left/right.
@@ -1175,13 +1079,13 @@ public class MidiFile {
      * Split the given track into multiple tracks, separating each
      * channel into a separate track. 将所给的音轨分离成多个音轨，将每一个通道分成独立的音轨
      */
-    private static ArrayList<MidiTrack> SplitChannels(MidiTrack origtrack, ArrayList<MidiEvent> events) {
+    private static ArrayList<MidiTrack> SplitChannels(MidiTrack origtrack, MidiEventTable events) {
 
         /* Find the instrument used for each channel */
         int[] channelInstruments = new int[16];
-        for (MidiEvent mevent : events) {
-            if (mevent.EventFlag == EventProgramChange) {
-                channelInstruments[mevent.Channel] = mevent.Instrument;
+        for (int i = 0; i < events.size(); i++) {
+            if (events.getEventFlag(i) == EventProgramChange) {
+                channelInstruments[events.getChannel(i)] = events.getData1(i);
             }
         }
         channelInstruments[9] = 128; /* Channel 9 = Percussion */
@@ -1334,6 +1238,7 @@ public class MidiFile {
      * Get the list of tracks
      */
     public ArrayList<MidiTrack> getTracks() {
+        ensureParsed();
         return tracks;
     }
 
@@ -1341,6 +1246,7 @@ public class MidiFile {
      * Get the time signature
      */
     public TimeSignature getTime() {
+        ensureParsed();
         return timeSignature;
     }
 
@@ -1355,11 +1261,65 @@ public class MidiFile {
      * Get the total length (in pulses) of the song
      */
     public int getTotalPulses() {
+        ensureParsed();
         return totalPulses;
     }
 
+    /**
+     * Return the raw midi events as MidiEvent objects, one list per track.
+     * <p/>
+     * Compatibility: this used to return the lists the MidiFile plays
+     * from, so changing an event changed what Write() wrote.  The events
+     * are now kept in MidiEventTables, and the lists are built from them
+     * on every call: changing them doesn't change this MidiFile.  Use
+     * getEventTables() to read the events, and MidiOptions to change the
+     * sound.
+     * 兼容性：以前返回的是MidiFile使用的列表本身，现在每次调用都返回新的副本，修改它不会影响MidiFile
+     */
     public ArrayList<ArrayList<MidiEvent>> getAllEvents() {
-        return allEvents;
+        ensureParsed();
+        return ToMidiEvents(eventTables);
+    }
+
+    /**
+     * Return the events of the given tables as MidiEvent objects, one list
+     * per table
+     */
+    private static ArrayList<ArrayList<MidiEvent>> ToMidiEvents(ArrayList<MidiEventTable> tables) {
+        ArrayList<ArrayList<MidiEvent>> result = new ArrayList<>(tables.size());
+        for (MidiEventTable table : tables) {
+            result.add(table.toMidiEvents());
+        }
+        return result;
+    }
+
+    /**
+     * Return the tempo map, to convert between pulses and milliseconds
+     */
+    public TempoMap getTempoMap() {
+        ensureParsed();
+        return tempoMap;
+    }
+
+    /**
+     * Return the tempo map of the song as Write() plays it.  Every tempo
+     * event is replaced by options.tempo, so the song plays at one tempo;
+     * this map is at the average tempo of the song (getTime().getTempo()).
+     * Multiply its times by options.tempo / getTime().getTempo() for
+     * another options.tempo.
+     * 返回Write()播放时的速度映射：所有速度事件都替换为options.tempo，按歌曲的平均速度换算
+     */
+    public TempoMap getPlaybackTempoMap() {
+        ensureParsed();
+        return playbackTempoMap;
+    }
+
+    /**
+     * Return the raw midi events, one table per track
+     */
+    public ArrayList<MidiEventTable> getEventTables() {
+        ensureParsed();
+        return eventTables;
     }
 
     private void count8090(byte[] rawdata) {
@@ -1390,13 +1350,18 @@ public class MidiFile {
      * - The Time Signature of the song // 歌曲的拍子记号
      * - All the tracks in the song which contain notes. // 这个歌曲中包含音符的所有音轨
      * - The number, starttime, and duration of each note. // 每个音符的数字、开始时间、以及音长时间
+     * The MThd/MTrk chunks are decoded in order as the reader pulls the
+     * bytes in, so a streaming reader never holds more than its window.
+     * MThd/MTrk块按顺序边读边解析，流式读取时内存中只保留一个缓冲窗口
      */
-    private void parse(byte[] rawData) {
+    private void parse(MidiFileReader file) {
+        MidiParseListener listener = parseListener;
+        boolean timed = listener != MidiParseListener.None;
+        long parseStart = timed ? System.nanoTime() : 0;
         String id;
         int len;
         tracks = new ArrayList<>();
         trackPerChannel = false;
-        MidiFileReader file = new MidiFileReader(rawData);
         id = file.readAscii(4);
         if (!id.equals("MThd")) {
             throw new MidiFileException("Doesn't start with MThd", 0);
@@ -1408,14 +1373,25 @@ public class MidiFile {
         trackMode = (short) file.readShort();// midiFile文件音轨的格式类型
         int tracksNum = file.readShort();// 音轨数
         quarterNote = file.readShort();// MIDI事件的时间格式类型
-        allEvents = new ArrayList<>();
+        eventTables = new ArrayList<>();
+        ArrayList<MidiTrack> allTracks = null;
+        ExecutorService executor = parseExecutor;
+        if (executor != null && tracksNum > 1 && !file.isStreaming()) {
+            allTracks = readTracksInParallel(file, tracksNum, executor, listener);
+        }
+        if (allTracks == null) {
+            // 读取所有的音轨块
+            allTracks = new ArrayList<>(tracksNum);
+            for (int trackIndex = 0; trackIndex < tracksNum; trackIndex++) {
+                ParsedTrack parsed = parseTrack(file, trackIndex, timed);
+                Report(listener, fileName, trackIndex, parsed);
+                eventTables.add(parsed.events);
+                allTracks.add(parsed.track);
+            }
+        }
         //左右手音轨标志，偶数右手，奇数左手
         int count = 0;
-        // 读取所有的音轨块
-        for (int trackIndex = 0; trackIndex < tracksNum; trackIndex++) {
-            allEvents.add(readTrack(file));
-            // Log.i("allEvents", allEvents.get(trackIndex).size() + "");
-            MidiTrack track = new MidiTrack(allEvents.get(trackIndex), trackIndex);
+        for (MidiTrack track : allTracks) {
             ArrayList<MidiNote> notes = track.getNotes();
             if (notes.size() > 0) {
                 tracks.add(track);
@@ -1430,17 +1406,18 @@ public class MidiFile {
         long tempo = 0;// 拍子(每一个四分之一音符的毫秒数)
         int numer = 0;// 分子
         int denom = 0;// 分母
-        for (ArrayList<MidiEvent> list : allEvents) {
-            for (MidiEvent mevent : list) {
-                if (mevent.Metaevent == MetaEventTempo) {// 音符毫秒数元事件
+        for (MidiEventTable list : eventTables) {
+            byte[] payload = list.getPayload();
+            for (int i = 0; i < list.size(); i++) {
+                int metaevent = list.getMetaevent(i);
+                if (metaevent == MetaEventTempo) {// 音符毫秒数元事件
                     // Take average of all tempos
-                    tempo += mevent.Tempo;
-                    Log.i("MidiFile", mevent.Tempo + "");
+                    tempo += list.getTempo(i);
                     tempoCount++;
                 }
-                if (mevent.Metaevent == MetaEventTimeSignature && numer == 0) {// 拍子记号
-                    numer = mevent.Numerator;
-                    denom = mevent.Denominator;
+                if (metaevent == MetaEventTimeSignature && numer == 0) {// 拍子记号
+                    numer = payload[list.getPayloadOffset(i)];
+                    denom = (byte) Math.pow(2, payload[list.getPayloadOffset(i) + 1]);
                 }
             }
         }
@@ -1454,6 +1431,8 @@ public class MidiFile {
             denom = 4;
         }
         timeSignature = new TimeSignature(numer, denom, quarterNote, (int) tempo);
+        tempoMap = new TempoMap(eventTables, quarterNote);
+        playbackTempoMap = new TempoMap(timeSignature.getTempo(), quarterNote);
 
         footBoards = handleFootBoard();
 
@@ -1469,203 +1448,332 @@ public class MidiFile {
          * each channel as a separate track.// 如果我们只有一条音轨却有多个通道，将每个通道视为一个独立的音轨
          */
         if (tracks.size() == 1 && HasMultipleChannels(tracks.get(0))) {
-            tracks = SplitChannels(tracks.get(0), allEvents.get(tracks.get(0).trackNumber()));
+            tracks = SplitChannels(tracks.get(0), eventTables.get(tracks.get(0).trackNumber()));
             trackPerChannel = true;
         }
 
         CheckStartTimes(tracks);
 
-        ArrayList<MidiNote> midiNotes;
+        ApplyFootBoards(tracks, footBoards);
+
+        /* Convert the note times to milliseconds, following the tempo changes */
         for (MidiTrack midiTrack : tracks) {
-            midiNotes = midiTrack.getNotes();
-            for (MidiNote midiNote : midiNotes) {
-//                midiNote.setPulsesOfQuarterNote(timeSignature.getQuarter());
-//                midiNote.setTempo(timeSignature.getTempo());
-                for (FootBoard footBoard : footBoards) {
-                    int notePulsesOfEndTime = midiNote.getPulsesOfStartTime() + midiNote.getDuration();
-                    if (footBoard.getStartTime() < notePulsesOfEndTime && footBoard.getEndTime() > notePulsesOfEndTime) {
-                        midiNote.setPedalActionTime(footBoard.getEndTime() - notePulsesOfEndTime);
-                    }
+            for (MidiNote midiNote : midiTrack.getNotes()) {
+                int start = midiNote.getPulsesOfStartTime();
+                int end = start + midiNote.getDuration();
+                int startMillis = tempoMap.tickToMillis(start);
+                int endMillis = tempoMap.tickToMillis(end);
+                midiNote.setStartTimeInMilliSecond(startMillis);
+                midiNote.setDurationInMilliSecond(endMillis - startMillis);
+                if (midiNote.getPedalActionTime() > 0) {
+                    midiNote.setPedalActionTimeInMilliS(
+                            tempoMap.tickToMillis(end + midiNote.getPedalActionTime()) - endMillis);
                 }
             }
         }
+
+        if (timed) {
+            listener.onFileParsed(fileName, eventTables.size(), file.getOffset(),
+                    System.nanoTime() - parseStart);
+        }
     }
 
-    private List<FootBoard> handleFootBoard() {
-        List<FootBoard> footBoards = new ArrayList<>();
-        FootBoard footBoard;
-        MidiEvent preMidiEvent = allEvents.get(0).get(0);
-        MidiEvent currMidiEvent;
-        int maxIndex = 0;
-        int maxSize = 0;
-        for (int i = 0; i < allEvents.size(); i++) {
-            maxIndex = allEvents.get(i).size() > maxSize ? i : maxIndex;
-            maxSize = allEvents.get(i).size() > maxSize ? allEvents.get(i).size() : maxSize;
+    /**
+     * Parse one MTrk chunk into its event table and MidiTrack.  The time
+     * taken is measured only if timed is true.
+     */
+    private ParsedTrack parseTrack(MidiFileReader file, int tracknum, boolean timed) {
+        long start = timed ? System.nanoTime() : 0;
+        ParsedTrack parsed = new ParsedTrack();
+        parsed.startOffset = file.getOffset();
+        parsed.events = readTrack(file, parsed);
+        parsed.endOffset = file.getOffset();
+        parsed.track = new MidiTrack(parsed.events, tracknum);
+        parsed.nanos = timed ? System.nanoTime() - start : 0;
+        return parsed;
+    }
+
+    /**
+     * Report a parsed track to the listener.  This is done on the parsing
+     * thread, once the track is known to be part of the result.
+     */
+    private static void Report(MidiParseListener listener, String fileName, int tracknum,
+                               ParsedTrack parsed) {
+        if (listener == MidiParseListener.None) {
+            return;
+        }
+        if (parsed.truncation != null) {
+            listener.onTruncated(fileName, tracknum, parsed.truncation);
         }
-//        Log.i("allEvents", "----------------------------------------");
+        listener.onTrackParsed(fileName, tracknum, parsed.events,
+                parsed.endOffset - parsed.startOffset, parsed.nanos);
+    }
 
-//        ArrayList<MidiEvent> midiEvents = allEvents.get(maxIndex);
-        for (List<MidiEvent> midiEvents : allEvents) {
+    /**
+     * Parse the MTrk chunks on the given executor, one task per track.
+     * The chunk lengths in the MTrk headers are used to find where each
+     * track starts, so the tracks can be decoded independently.  The
+     * results are merged in track order, so the event tables and tracks
+     * are the same as when the chunks are parsed one after another.
+     * <p/>
+     * Return the MidiTrack of every chunk, and fill the eventTables.
+     * Return null if the chunks can't be parsed this way (a truncated file,
+     * a chunk length that doesn't match its events, or a parse error).
+     * The caller then parses the file serially, which recovers or reports
+     * the error exactly as before.
+     * 通过音轨块头部的长度预先找到每个音轨的位置，并行解析后按音轨顺序合并，结果与顺序解析相同
+     */
+    private ArrayList<MidiTrack> readTracksInParallel(final MidiFileReader file, int tracksNum,
+                                                      ExecutorService executor,
+                                                      MidiParseListener listener) {
+        final boolean timed = listener != MidiParseListener.None;
+        /* Find the start of each MTrk chunk */
+        final int[] chunkStarts = new int[tracksNum + 1];
+        MidiFileReader scanner = file.duplicate(file.getOffset());
+        try {
+            for (int trackIndex = 0; trackIndex < tracksNum; trackIndex++) {
+                chunkStarts[trackIndex] = scanner.getOffset();
+                scanner.skip(4);
+                int trackLen = scanner.readInt();
+                if (trackLen < 0) {
+                    return null;
+                }
+                scanner.skip(trackLen);
+            }
+        } catch (MidiFileException e) {
+            return null;
+        }
+        chunkStarts[tracksNum] = scanner.getOffset();
 
-            for (int i = 0; i < midiEvents.size(); i++) {
-                currMidiEvent = midiEvents.get(i);
-                if (currMidiEvent.EventFlag == EventControlChange && currMidiEvent.ControlNum == '@') {
-//                if (currMidiEvent.ControlValue != preMidiEvent.ControlValue) {
-                    if (currMidiEvent.ControlValue > 30) {
-                        footBoard = new FootBoard(currMidiEvent.StartTime, timeSignature);
-                        footBoard.setVelocity(currMidiEvent.ControlValue);
-                        footBoards.add(footBoard);
-                    } else {
-                        if (footBoards.size() > 0) {
-                            footBoards.get(footBoards.size() - 1).setEndTime(currMidiEvent.StartTime);
-                        }
+        ArrayList<Future<ParsedTrack>> futures = new ArrayList<>(tracksNum);
+        try {
+            for (int trackIndex = 0; trackIndex < tracksNum; trackIndex++) {
+                final int index = trackIndex;
+                futures.add(executor.submit(new Callable<ParsedTrack>() {
+                    @Override
+                    public ParsedTrack call() {
+                        return parseTrack(file.duplicate(chunkStarts[index]), index, timed);
                     }
-                    preMidiEvent = currMidiEvent;
-//                }
+                }));
+            }
+
+            ArrayList<ParsedTrack> parsedTracks = new ArrayList<>(tracksNum);
+            for (int trackIndex = 0; trackIndex < tracksNum; trackIndex++) {
+                ParsedTrack parsed = futures.get(trackIndex).get();
+                /* The events must end where the next chunk starts */
+                if (parsed.endOffset != chunkStarts[trackIndex + 1]) {
+                    return null;
+                }
+                parsedTracks.add(parsed);
+            }
+            ArrayList<MidiTrack> result = new ArrayList<>(tracksNum);
+            for (int trackIndex = 0; trackIndex < tracksNum; trackIndex++) {
+                ParsedTrack parsed = parsedTracks.get(trackIndex);
+                Report(listener, fileName, trackIndex, parsed);
+                eventTables.add(parsed.events);
+                result.add(parsed.track);
+            }
+            file.skip(chunkStarts[tracksNum] - file.getOffset());
+            return result;
+        } catch (RejectedExecutionException e) {
+            return null;
+        } catch (ExecutionException e) {
+            return null;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return null;
+        } finally {
+            for (Future<ParsedTrack> future : futures) {
+                future.cancel(true);
+            }
+        }
+    }
+
+    /**
+     * The result of parsing one MTrk chunk, see parseTrack()
+     */
+    private static class ParsedTrack {
+        MidiEventTable events;
+        MidiTrack track;
+        int startOffset;
+        int endOffset;
+        long nanos;
+        MidiFileException truncation;
+        /**
+         * The error if the file ends inside this track, or null
+         */
+    }
+
+    /**
+     * Find the sustain pedal (controller 64) presses of each channel.  The
+     * pedal events of all the tracks are merged in time order first (the
+     * first track first on a tie), since several tracks may use the same
+     * channel and its pedal.  A press starts when the value goes above 30
+     * while the pedal of that channel is up, and ends at the next value
+     * of 30 or less on the same channel.  Repeated "down" values (half
+     * pedal changes) don't start a new press, and a pedal that is still
+     * down at the end of the song is released at the last event.
+     * Return the presses sorted by start time.
+     * 合并所有音轨的踏板事件(控制器64)后按时间扫描一次，找出每个通道的踏板区间，按开始时间排序返回
+     */
+    private List<FootBoard> handleFootBoard() {
+        /* Collect the pedal events, sorted by time, keeping the track order */
+        int total = 0;
+        int songEnd = 0;
+        for (MidiEventTable midiEvents : eventTables) {
+            for (int i = 0; i < midiEvents.size(); i++) {
+                if (midiEvents.getEventFlag(i) == EventControlChange && midiEvents.getData1(i) == '@') {
+                    total++;
                 }
             }
+            if (midiEvents.size() > 0) {
+                songEnd = Math.max(songEnd, midiEvents.getTick(midiEvents.size() - 1));
+            }
+        }
+        long[] keys = new long[total];
+        byte[] channels = new byte[total];
+        byte[] values = new byte[total];
+        int n = 0;
+        for (MidiEventTable midiEvents : eventTables) {
+            for (int i = 0; i < midiEvents.size(); i++) {
+                if (midiEvents.getEventFlag(i) == EventControlChange && midiEvents.getData1(i) == '@') {
+                    keys[n] = ((long) midiEvents.getTick(i) << 32) | n;
+                    channels[n] = (byte) midiEvents.getChannel(i);
+                    values[n] = midiEvents.getData2(i);
+                    n++;
+                }
+            }
+        }
+        Arrays.sort(keys);
 
+        List<FootBoard> footBoards = new ArrayList<>();
+        FootBoard[] pressed = new FootBoard[16];
+        for (long key : keys) {
+            int tick = (int) (key >>> 32);
+            int channel = channels[(int) key];
+            byte controlValue = values[(int) key];
+            if (controlValue > 30) {
+                if (pressed[channel] == null) {
+                    pressed[channel] = new FootBoard(tick, timeSignature);
+                    pressed[channel].setVelocity(controlValue);
+                    pressed[channel].setChannel(channel);
+                }
+            } else if (pressed[channel] != null) {
+                AddFootBoard(footBoards, pressed[channel], tick);
+                pressed[channel] = null;
+            }
+        }
+        for (FootBoard footBoard : pressed) {
+            if (footBoard != null) {
+                AddFootBoard(footBoards, footBoard, songEnd);
+            }
         }
-        //todo 调试解析结果发现每一条有效数据伴随着一条开始时间大于零，结束时间等于零的多余数据，待解决
+        Collections.sort(footBoards, new Comparator<FootBoard>() {
+            @Override
+            public int compare(FootBoard x, FootBoard y) {
+                if (x.getStartTime() != y.getStartTime()) {
+                    return x.getStartTime() - y.getStartTime();
+                }
+                return x.getChannel() - y.getChannel();
+            }
+        });
         return footBoards;
     }
 
     /**
-     * Parse a single Midi track into a list of MidiEvents.
-     * Entering this function, the file offset should be at the start of
-     * the MTrk header.  Upon exiting, the file offset should be at the
-     * start of the next MTrk header.
-     */
-    private ArrayList<MidiEvent> readTrack(MidiFileReader file) {
-        ArrayList<MidiEvent> result = new ArrayList<MidiEvent>(20);
-        int startTime = 0;
-        String id = file.readAscii(4);
-
-        if (!id.equals("MTrk")) {
-            throw new MidiFileException("Bad MTrk header", file.getOffset() - 4);
-        }
-        int trackLen = file.readInt();
-        int trackEnd = trackLen + file.getOffset();
-
-        byte eventFlag = 0;
-        int channel0 = 0;
-        int channel1 = 0;
-        while (file.getOffset() < trackEnd) {
-            // If the midi file is truncated here, we can still recover.
-            // Just return what we've parsed so far.
-            int startoffset, deltaTime;
-            byte peekevent;
-            try {
-                startoffset = file.getOffset();
-                deltaTime = file.readVariableLength();
-                startTime += deltaTime;
-                peekevent = file.Peek();
-            } catch (MidiFileException e) {
-                return result;
+     * Release the pedal at the given time, and add the press to the list.
+     * A press that doesn't last any time is dropped.
+     */
+    private void AddFootBoard(List<FootBoard> footBoards, FootBoard footBoard, int endTime) {
+        if (endTime > footBoard.getStartTime()) {
+            footBoard.setEndTime(endTime);
+            footBoard.setStartTimeInMills(tempoMap.tickToMillis(footBoard.getStartTime()));
+            footBoard.setEndTimeInMills(tempoMap.tickToMillis(endTime));
+            footBoards.add(footBoard);
+        }
+    }
+
+    /**
+     * Set the pedal action time of every note that ends while the sustain
+     * pedal of its channel is down: the note keeps sounding until the
+     * pedal is released.  The notes are sorted by end time and swept once
+     * together with the pedal presses of each channel, which are sorted
+     * by start time.
+     * 将所有音符按结束时间排序，与每个通道的踏板区间一起扫描一次，设置音符的踏板作用时间
+     */
+    private static void ApplyFootBoards(ArrayList<MidiTrack> tracks, List<FootBoard> footBoards) {
+        if (footBoards.isEmpty()) {
+            return;
+        }
+        ArrayList<MidiNote> notes = new ArrayList<>();
+        for (MidiTrack track : tracks) {
+            notes.addAll(track.getNotes());
+        }
+        Collections.sort(notes, new Comparator<MidiNote>() {
+            @Override
+            public int compare(MidiNote x, MidiNote y) {
+                return (x.getPulsesOfStartTime() + x.getDuration()) - (y.getPulsesOfStartTime() + y.getDuration());
             }
+        });
 
-            MidiEvent midiEvent = new MidiEvent();
-            result.add(midiEvent);
-            midiEvent.DeltaTime = deltaTime;// 现在这个事件距离上一个事件的时间,单位:tick
-            midiEvent.StartTime = startTime;// 这个事件开始的绝对时间,单位:tick
+        /* The pedal presses of each channel, in order */
+        ArrayList<ArrayList<FootBoard>> channelBoards = new ArrayList<>(16);
+        for (int channel = 0; channel < 16; channel++) {
+            channelBoards.add(new ArrayList<FootBoard>());
+        }
+        for (FootBoard footBoard : footBoards) {
+            channelBoards.get(footBoard.getChannel()).add(footBoard);
+        }
+        int[] next = new int[16];
 
-            // if (peekevent >= EventNoteOff) {
-            if (peekevent < 0) {
-                midiEvent.HasEventflag = true;// 如果使用之前的事件标记则为false
-                eventFlag = file.readByte();
+        for (MidiNote note : notes) {
+            int channel = note.getChannel();
+            if (channel < 0 || channel >= 16) {
+                continue;
             }
-
-            //Log.e("debug",  "offset " + startoffset +
-            //                " event " + eventFlag + " " + EventName(eventFlag) +
-            //                " start " + startTime + " delta " + midiEvent.DeltaTime);
-
-            if (eventFlag >= EventNoteOn && eventFlag < EventNoteOn + 16) {// 声音开启的情况,状态位为"001",考虑16个通道
-                midiEvent.EventFlag = EventNoteOn;// 状态"开"
-                midiEvent.Channel = ((byte) (eventFlag - EventNoteOn));// 通道
-                midiEvent.Notenumber = file.readByte();// 按哪个键
-                midiEvent.Velocity = file.readByte();// 音速
-            } else if (eventFlag >= EventNoteOff && eventFlag < EventNoteOff + 16) {// 声音关闭的情况,状态位为"000",考虑16个通道
-                midiEvent.EventFlag = EventNoteOff;// 状态"关"
-                midiEvent.Channel = ((byte) (eventFlag - EventNoteOff));// 通道
-                midiEvent.Notenumber = file.readByte();// 按哪个键
-                midiEvent.Velocity = file.readByte();// 音速
-            } else if (eventFlag >= EventKeyPressure &&
-                    eventFlag < EventKeyPressure + 16) {// 音键压力,状态位为"010",考虑16个通道
-                midiEvent.EventFlag = EventKeyPressure;// 音键压力
-                midiEvent.Channel = ((byte) (eventFlag - EventKeyPressure));// 通道
-                midiEvent.Notenumber = file.readByte();// 按哪个键
-                midiEvent.KeyPressure = file.readByte();// 键压力
-            } else if (eventFlag >= EventControlChange &&
-                    eventFlag < EventControlChange + 16) {// 控制变化,状态位为"011",考虑16个通道
-                midiEvent.EventFlag = EventControlChange;// 控制变化
-                midiEvent.Channel = ((byte) (eventFlag - EventControlChange));// 通道
-                if (midiEvent.Channel == 0) {
-                    channel0++;
-                    Log.i("Control count0", channel0 + "");
-                } else {
-                    channel1++;
-                    Log.i("Control count1", channel1 + "");
-                }
-                Log.i("Control Channel", midiEvent.Channel + "");
-                midiEvent.ControlNum = file.readByte();// 控制器号
-                Log.i("Control ControlNum", midiEvent.ControlNum + "");
-                midiEvent.ControlValue = file.readByte();// 控制器值
-                Log.i("Control ControlValue", midiEvent.ControlValue + "");
-                Log.i("Control", "--------------------------------------------");
-            } else if (eventFlag >= EventProgramChange &&
-                    eventFlag < EventProgramChange + 16) {// 改字乐器,状态位为"100",考虑16个通道
-                midiEvent.EventFlag = EventProgramChange;// 改字乐器
-                midiEvent.Channel = ((byte) (eventFlag - EventProgramChange));// 通道
-                midiEvent.Instrument = file.readByte();// 乐器编号
-            } else if (eventFlag >= EventChannelPressure &&
-                    eventFlag < EventChannelPressure + 16) {// 通道触动压力,状态位为"101",考虑16个通道
-                midiEvent.EventFlag = EventChannelPressure;// 通道触动压力
-                midiEvent.Channel = ((byte) (eventFlag - EventChannelPressure));// 通道
-                midiEvent.ChanPressure = file.readByte();// 压力
-            } else if (eventFlag >= EventPitchBend &&
-                    eventFlag < EventPitchBend + 16) {// 弯音轮变化,状态位为"110",考虑16个通道 0xE0
-                midiEvent.EventFlag = EventPitchBend;// 弯音轮变化
-                midiEvent.Channel = ((byte) (eventFlag - EventPitchBend));// 通道
-                midiEvent.PitchBend = (short) file.readShort();// 音高
-            } else if (eventFlag == SysexEvent1) {// 状态位为"111",不考虑16个通道 0xf0 系统专用消息
-                midiEvent.EventFlag = SysexEvent1;// 系统专用消息 厂商标识号
-                midiEvent.Metalength = file.readVariableLength();
-                midiEvent.Value = file.readBytes(midiEvent.Metalength);
-            } else if (eventFlag == SysexEvent2) {// "1111 0111" 0xf7 系统专用消息的结束标记EOX
-                midiEvent.EventFlag = SysexEvent2;// 系统专用结束标记
-                midiEvent.Metalength = file.readVariableLength();
-                midiEvent.Value = file.readBytes(midiEvent.Metalength);
-            } else if (eventFlag == MetaEvent) {// "1111 1111" 0xFF 系统复位
-                midiEvent.EventFlag = MetaEvent;
-                midiEvent.Metaevent = file.readByte();
-                midiEvent.Metalength = file.readVariableLength();
-                midiEvent.Value = file.readBytes(midiEvent.Metalength);
-                if (midiEvent.Metaevent == MetaEventTimeSignature) {
-                    if (midiEvent.Metalength < 2) {
-                        throw new MidiFileException(
-                                "Meta Event Time Signature len == " + midiEvent.Metalength +
-                                        " != 4", file.getOffset());
-                    } else {
-                        midiEvent.Numerator = ((byte) midiEvent.Value[0]);
-                        midiEvent.Denominator = ((byte) Math.pow(2, midiEvent.Value[1]));
-                    }
-                } else if (midiEvent.Metaevent == MetaEventTempo) {
-                    if (midiEvent.Metalength != 3) {
-                        throw new MidiFileException(
-                                "Meta Event Tempo len == " + midiEvent.Metalength +
-                                        " != 3", file.getOffset());
-                    }
-                    midiEvent.Tempo = ((midiEvent.Value[0] & 0xFF) << 16) |
-                            ((midiEvent.Value[1] & 0xFF) << 8) |
-                            (midiEvent.Value[2] & 0xFF);
-                } else if (midiEvent.Metaevent == MetaEventEndOfTrack) {
-                    /* break;  */
+            ArrayList<FootBoard> boards = channelBoards.get(channel);
+            int endTime = note.getPulsesOfStartTime() + note.getDuration();
+            /* Skip the presses released before this note ends */
+            while (next[channel] < boards.size() && boards.get(next[channel]).getEndTime() <= endTime) {
+                next[channel]++;
+            }
+            if (next[channel] < boards.size()) {
+                FootBoard footBoard = boards.get(next[channel]);
+                if (footBoard.getStartTime() < endTime) {
+                    note.setPedalActionTime(footBoard.getEndTime() - endTime);
                 }
-            } else {
-                throw new MidiFileException("Unknown event " + midiEvent.EventFlag,
-                        file.getOffset() - 1);
             }
         }
+    }
+
+    /**
+     * Parse a single Midi track into a table of midi events.
+     * Entering this function, the file offset should be at the start of
+     * the MTrk header.  Upon exiting, the file offset should be at the
+     * start of the next MTrk header.  If the file ends inside the track,
+     * the events read so far are returned, and the error is kept in
+     * parsed.truncation.
+     */
+    private MidiEventTable readTrack(MidiFileReader file, ParsedTrack parsed) {
+        MidiEventTable result = new MidiEventTable();
+        MidiEventCursor cursor = new MidiEventCursor(file);
+        cursor.startTrack();
+        while (cursor.next()) {
+            int metaevent = cursor.metaType();
+            int metalength = cursor.payloadLength();
+            result.add(cursor);
+            if (metaevent == MetaEventTimeSignature && metalength < 2) {
+                throw new MidiFileException(
+                        "Meta Event Time Signature len == " + metalength +
+                                " != 4", file.getOffset());
+            } else if (metaevent == MetaEventTempo && metalength != 3) {
+                throw new MidiFileException(
+                        "Meta Event Tempo len == " + metalength +
+                                " != 3", file.getOffset());
+            }
+        }
+        // If the midi file is truncated, keep what we've parsed so far
+        parsed.truncation = cursor.getTruncation();
         return result;
     }
 
@@ -1682,26 +1790,37 @@ public class MidiFile {
 
     public void Write(FileOutputStream destfile, MidiOptions options)
             throws IOException {
-        ArrayList<ArrayList<MidiEvent>> newevents = allEvents;
-        if (options != null) {
-            newevents = ApplyOptionsToEvents(options);
-        }
-        WriteEvents(destfile, newevents, trackMode, quarterNote);
+        MidiFileWriter writer = new MidiFileWriter();
+        Write(writer, options);
+        writer.writeTo(destfile);
+        destfile.close();
     }
 
     /**
-     * Apply the following sound options to the midi events:
+     * Encode this Midi file into the given writer, in memory.
+     * If options is not null, apply those options to the midi events
+     * first.  Reusing the writer reuses its buffer.
+     * 将midi文件编码到给定的writer中(在内存中)，复用writer即复用其缓冲区
+     */
+    public void Write(MidiFileWriter writer, MidiOptions options) {
+        ensureParsed();
+        writer.write(eventTables, options == null ? null : CreateOverlay(options), trackMode, quarterNote);
+    }
+
+    /**
+     * Create the overlay that applies the following sound options to the
+     * midi events, without copying them (see MidiEventOverlay):
      * - The tempo (the microseconds per pulse)
      * - The instruments per track
      * - The note number (transpose value)
      * - The tracks to include
-     * Return the modified list of midi events.
+     * - The pause time to start at, and the end time to stop at
+     * 创建在不复制事件的情况下应用声音设置的overlay
      */
-    public ArrayList<ArrayList<MidiEvent>>
-    ApplyOptionsToEvents(MidiOptions options) {
-        int i;
+    private MidiEventOverlay CreateOverlay(MidiOptions options) {
+        ensureParsed();
         if (trackPerChannel) {
-            return ApplyOptionsPerChannel(options);
+            return CreateOverlayPerChannel(options);
         }
 
         /* A midifile can contain tracks with notes and tracks without notes.
@@ -1710,10 +1829,10 @@ public class MidiFile {
          * midi file has tracks without notes. Re-compute the instruments, and
          * tracks to keep.
          */
-        int num_tracks = allEvents.size();
+        int num_tracks = eventTables.size();
         int[] instruments = new int[num_tracks];
         boolean[] keeptracks = new boolean[num_tracks];
-        for (i = 0; i < num_tracks; i++) {
+        for (int i = 0; i < num_tracks; i++) {
             instruments[i] = 0;
             keeptracks[i] = true;
         }
@@ -1726,112 +1845,113 @@ public class MidiFile {
             }
         }
 
-        ArrayList<ArrayList<MidiEvent>> newevents = CloneMidiEvents(allEvents);
-
-        /* Set the tempo at the beginning of each track */
-        for (int tracknum = 0; tracknum < newevents.size(); tracknum++) {
-            MidiEvent mevent = CreateTempoEvent(options.tempo);
-            newevents.get(tracknum).add(0, mevent);
-        }
-        /* Change the note number (transpose), instrument, and tempo */
-        for (int tracknum = 0; tracknum < newevents.size(); tracknum++) {
-            for (MidiEvent mevent : newevents.get(tracknum)) {
-                int num = mevent.Notenumber + options.transpose;
-                if (num < 0)
-                    num = 0;
-                if (num > 127)
-                    num = 127;
-                mevent.Notenumber = (byte) num;
-                if (!options.useDefaultInstruments) {
-                    mevent.Instrument = (byte) instruments[tracknum];
-                }
-                mevent.Tempo = options.tempo;
-            }
-        }
-        if (options.pauseTime != 0) {
-            newevents = StartAtPauseTime(newevents, options.pauseTime);
-        }
-        /* Change the tracks to include */
-        int count = 0;
-        for (int tracknum = 0; tracknum < keeptracks.length; tracknum++) {
-            if (keeptracks[tracknum]) {
-                count++;
-            }
+        MidiEventOverlay overlay = new MidiEventOverlay(options.tempo, options.transpose, options.pauseTime);
+        overlay.setKeepTracks(keeptracks);
+        overlay.setEndTime(options.endTime);
+        if (!options.useDefaultInstruments) {
+            overlay.setTrackInstruments(instruments);
         }
-        ArrayList<ArrayList<MidiEvent>> result = new ArrayList<ArrayList<MidiEvent>>(count);
-        i = 0;
-        for (int tracknum = 0; tracknum < keeptracks.length; tracknum++) {
-            if (keeptracks[tracknum]) {
-                result.add(newevents.get(tracknum));
-                i++;
-            }
-        }
-        return result;
+        return overlay;
     }
 
     /**
-     * Apply the following sound options to the midi events:
-     * - The tempo (the microseconds per pulse)
-     * - The instruments per track
-     * - The note number (transpose value)
-     * - The tracks to include
-     * Return the modified list of midi events.
-     * <p/>
-     * This Midi file only has one actual track, but we've split that
-     * into multiple fake tracks, one per channel, and displayed that
-     * to the end-user.  So changing the instrument, and tracks to
-     * include, is implemented differently than the ApplyOptionsToEvents() method:
+     * Create the overlay for the sound options when the single track of
+     * this Midi file was split into one fake track per channel, and
+     * displayed that way to the end-user.  So changing the instrument,
+     * and tracks to include, is implemented differently than for
+     * CreateOverlay():
      * <p/>
      * - We change the instrument based on the channel, not the track.
      * - We include/exclude channels, not tracks.
      * - We exclude a channel by setting the note volume/velocity to 0.
      */
-    public ArrayList<ArrayList<MidiEvent>> ApplyOptionsPerChannel(MidiOptions options) {
+    private MidiEventOverlay CreateOverlayPerChannel(MidiOptions options) {
         /* Determine which channels to include/exclude.
          * Also, determine the instruments for each channel.
          */
         int[] instruments = new int[16];
-        boolean[] keepchannel = new boolean[16];
-        for (int i = 0; i < 16; i++) {
-            instruments[i] = 0;
-            keepchannel[i] = true;
-        }
+        boolean[] silentchannel = new boolean[16];
         for (int tracknum = 0; tracknum < tracks.size(); tracknum++) {
             MidiTrack track = tracks.get(tracknum);
             int channel = track.getNotes().get(0).getChannel();
             instruments[channel] = options.instruments[tracknum];
             if (options.tracks[tracknum] == false || options.mute[tracknum] == true) {
-                keepchannel[channel] = false;
+                silentchannel[channel] = true;
             }
         }
-        ArrayList<ArrayList<MidiEvent>> newevents = CloneMidiEvents(allEvents);
-        /* Set the tempo at the beginning of each track */
-        for (int tracknum = 0; tracknum < newevents.size(); tracknum++) {
-            MidiEvent mevent = CreateTempoEvent(options.tempo);
-            newevents.get(tracknum).add(0, mevent);
-        }
-        /* Change the note number (transpose), instrument, and tempo */
-        for (int tracknum = 0; tracknum < newevents.size(); tracknum++) {
-            for (MidiEvent mevent : newevents.get(tracknum)) {
-                int num = mevent.Notenumber + options.transpose;
-                if (num < 0)
-                    num = 0;
-                if (num > 127)
-                    num = 127;
-                mevent.Notenumber = (byte) num;
-                if (!keepchannel[mevent.Channel]) {
-                    mevent.Velocity = 0;
-                }
-                if (!options.useDefaultInstruments) {
-                    mevent.Instrument = (byte) instruments[mevent.Channel];
-                }
-                mevent.Tempo = options.tempo;
-            }
+
+        MidiEventOverlay overlay = new MidiEventOverlay(options.tempo, options.transpose, options.pauseTime);
+        overlay.setSilentChannels(silentchannel);
+        overlay.setEndTime(options.endTime);
+        if (!options.useDefaultInstruments) {
+            overlay.setChannelInstruments(instruments);
         }
-        if (options.pauseTime != 0) {
-            newevents = StartAtPauseTime(newevents, options.pauseTime);
+        return overlay;
+    }
+
+    /**
+     * Apply the sound options to the midi events, see CreateOverlay().
+     * Return the modified list of midi events, as new MidiEvent objects.
+     * Write() applies the options while writing instead, without the copy.
+     */
+    public ArrayList<ArrayList<MidiEvent>>
+    ApplyOptionsToEvents(MidiOptions options) {
+        ensureParsed();
+        return ToMidiEvents(CreateOverlay(options).apply(eventTables));
+    }
+
+    /**
+     * Apply the sound options to the midi events of a Midi file whose
+     * single track was split into one track per channel, see
+     * CreateOverlayPerChannel().  Return the modified list of midi events.
+     */
+    public ArrayList<ArrayList<MidiEvent>> ApplyOptionsPerChannel(MidiOptions options) {
+        ensureParsed();
+        return ToMidiEvents(CreateOverlayPerChannel(options).apply(eventTables));
+    }
+
+    /**
+     * Create the overlay used to play the midi events live (see
+     * MidiEventScheduler).  Only the instruments and the pause and end
+     * time of the options are applied: every track is kept, and the tempo
+     * and the notes are left as they are, since the scheduler changes
+     * them while playing.
+     * 创建实时播放所用的overlay，只应用乐器、暂停时间和结束时间，速度、移调和静音由调度器在播放时处理
+     */
+    MidiEventOverlay CreateLiveOverlay(MidiOptions options) {
+        ensureParsed();
+        MidiOptions live = options.copy();
+        live.tempo = timeSignature.getTempo();
+        live.transpose = 0;
+        Arrays.fill(live.tracks, true);
+        Arrays.fill(live.mute, false);
+        return CreateOverlay(live);
+    }
+
+    /**
+     * Find the midi tracks and channels that the given options leave out
+     * or mute, the same way as CreateOverlay() and
+     * CreateOverlayPerChannel(): by track, or by channel when the single
+     * track of this Midi file was split into one track per channel.
+     *
+     * @param mutedTracks   Set to true for each muted track of the event tables
+     * @param mutedChannels Set to true for each muted channel (16 entries)
+     */
+    void FindMuted(MidiOptions options, boolean[] mutedTracks, boolean[] mutedChannels) {
+        ensureParsed();
+        Arrays.fill(mutedTracks, false);
+        Arrays.fill(mutedChannels, false);
+        for (int tracknum = 0; tracknum < tracks.size(); tracknum++) {
+            if (options.tracks[tracknum] && !options.mute[tracknum]) {
+                continue;
+            }
+            MidiTrack track = tracks.get(tracknum);
+            if (trackPerChannel) {
+                mutedChannels[track.getNotes().get(0).getChannel()] = true;
+            } else {
+                mutedTracks[track.trackNumber()] = true;
+            }
         }
-        return newevents;
     }
 
     /**
@@ -1839,6 +1959,7 @@ public class MidiFile {
      * Return the midi tracks with the changes applied.
      */
     public ArrayList<MidiTrack> ChangeMidiNotes(MidiOptions options) {
+        ensureParsed();
         ArrayList<MidiTrack> newtracks = new ArrayList<>();
         for (int track = 0; track < tracks.size(); track++) {
             if (options.tracks[track]) {
@@ -1875,12 +1996,9 @@ public class MidiFile {
      * 4 seconds, and return the starttimes.
      */
     public ListInt GuessMeasureLength() {
+        ensureParsed();
         ListInt result = new ListInt();
 
-        int pulses_per_second = (int) (1000000.0 / timeSignature.getTempo() * timeSignature.getQuarter());
-        int minmeasure = pulses_per_second / 2;  /* The minimum measure length in pulses */
-        int maxmeasure = pulses_per_second * 4;  /* The maximum measure length in pulses */
-
         /* Get the start time of the first note in the midi file. */
         int firstnote = timeSignature.getMeasure() * 5;
         for (MidiTrack track : tracks) {
@@ -1889,8 +2007,13 @@ public class MidiFile {
             }
         }
 
+        /* Convert the times to pulses with the tempo at the first note */
+        long firstMicros = tempoMap.tickToMicros(firstnote);
+        int minmeasure = (int) tempoMap.microsToTick(firstMicros + 500000) - firstnote;  /* The minimum measure length in pulses */
+        int maxmeasure = (int) tempoMap.microsToTick(firstMicros + 4000000) - firstnote;  /* The maximum measure length in pulses */
+
         /* interval = 0.06 seconds, converted into pulses */
-        int interval = timeSignature.getQuarter() * 60000 / timeSignature.getTempo();
+        int interval = (int) tempoMap.microsToTick(firstMicros + 60000) - firstnote;
 
         for (MidiTrack track : tracks) {
             int prevtime = 0;
@@ -1922,6 +2045,7 @@ public class MidiFile {
      * Return the last start time
      */
     public int EndTime() {
+        ensureParsed();
         int lastStart = 0;
         for (MidiTrack track : tracks) {
             if (track.getNotes().size() == 0) {
@@ -1937,6 +2061,7 @@ public class MidiFile {
      * Return true if this midi file has lyrics
      */
     public boolean hasLyrics() {
+        ensureParsed();
         for (MidiTrack track : tracks) {
             if (track.getLyrics() != null) {
                 return true;
@@ -1946,11 +2071,13 @@ public class MidiFile {
     }
 
     public List<FootBoard> getFootBoards() {
+        ensureParsed();
         return footBoards;
     }
 
     @Override
     public String toString() {
+        ensureParsed();
         String result = "Midi File tracks=" + tracks.size() + " quarter=" + quarterNote + "\n";
         result += timeSignature.toString() + "\n";
         for (MidiTrack track : tracks) {
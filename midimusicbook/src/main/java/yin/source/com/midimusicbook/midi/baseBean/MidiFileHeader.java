@@ -0,0 +1,314 @@
+package yin.source.com.midimusicbook.midi.baseBean;
+
+import java.io.UnsupportedEncodingException;
+import java.util.Arrays;
+import java.util.List;
+
+import yin.source.com.midimusicbook.exception.MidiFileException;
+
+/**
+ * @class MidiFileHeader
+ * The MidiFileHeader holds the cheap metadata of a midi file, enough to
+ * show the file in a song list without parsing it:
+ * MidiFileHeader保存midi文件中开销很小的元数据，不需要完整解析就可以在歌曲列表中显示:
+ * - The track mode, number of tracks and pulses per quarter note // 音轨格式、音轨数、每个四分音符的脉冲数
+ * - The start offset of each MTrk chunk // 每个音轨块的起始位置
+ * - The name, first instrument and number of notes of each track // 每个音轨的名称、第一件乐器、音符数
+ * - The first tempo, time signature and key signature // 第一个速度、拍子记号和调号
+ * - The time of the last event, in pulses // 最后一个事件的时间
+ * <p/>
+ * Reading a header walks over the events of each track without creating
+ * any objects for them, so it is much faster than a full MidiFile parse.
+ * 读取头信息时只遍历事件而不创建事件对象，比完整解析快得多
+ */
+public class MidiFileHeader {
+
+    private int trackMode;
+    /**
+     * 0 (single track), 1 (simultaneous tracks) 2 (independent tracks)
+     */
+    private int trackCount;
+    private int quarterNote;
+    /**
+     * The number of pulses per quarter note // 每个四分音符的脉冲数
+     */
+    private int[] chunkOffsets;
+    /**
+     * The file offset of each MTrk chunk, or null if the header was built
+     * from parsed events // 每个音轨块在文件中的位置
+     */
+    private String[] trackNames;
+    private int[] instruments;
+    /**
+     * The first program change of each track, or -1 // 每个音轨的第一件乐器，没有时为-1
+     */
+    private int[] noteCounts;
+    /**
+     * The number of NoteOn events of each track // 每个音轨的音符开事件数
+     */
+    private int tempo;
+    /**
+     * The first tempo, in microseconds per quarter note // 第一个速度，每个四分音符的微秒数
+     */
+    private int numerator;
+    private int denominator;
+    /**
+     * The first time signature, 4/4 if there is none // 第一个拍子记号，没有时为4/4
+     */
+    private int keySharps;
+    /**
+     * The number of sharps (negative for flats) of the first key signature // 第一个调号的升号数(负数为降号)
+     */
+    private boolean keyMinor;
+    private boolean hasKeySignature;
+    private int endTick;
+    /**
+     * The time of the last event in the song, in pulses // 最后一个事件的时间
+     */
+
+    private MidiFileHeader(int trackMode, int trackCount, int quarterNote) {
+        this.trackMode = trackMode;
+        this.trackCount = trackCount;
+        this.quarterNote = quarterNote;
+        trackNames = new String[trackCount];
+        instruments = new int[trackCount];
+        Arrays.fill(instruments, -1);
+        noteCounts = new int[trackCount];
+        tempo = 0;
+        numerator = 0;
+        denominator = 0;
+    }
+
+    /**
+     * Read the header of the midi file.  Entering this function, the reader
+     * should be at the start of the file.  Only byte[] and mapped readers
+     * are supported, since each track is read with a duplicate of the reader.
+     * A truncated track is read up to where it ends.
+     */
+    public static MidiFileHeader Read(MidiFileReader file) {
+        String id = file.readAscii(4);
+        if (!id.equals("MThd")) {
+            throw new MidiFileException("Doesn't start with MThd", 0);
+        }
+        int len = file.readInt();
+        if (len != 6) {
+            throw new MidiFileException("Bad MThd header", 4);
+        }
+        int trackMode = file.readShort();
+        int trackCount = file.readShort();
+        int quarterNote = file.readShort();
+        MidiFileHeader header = new MidiFileHeader(trackMode, trackCount, quarterNote);
+        header.chunkOffsets = new int[trackCount];
+
+        for (int tracknum = 0; tracknum < trackCount; tracknum++) {
+            int chunkStart = file.getOffset();
+            header.chunkOffsets[tracknum] = chunkStart;
+            id = file.readAscii(4);
+            if (!id.equals("MTrk")) {
+                throw new MidiFileException("Bad MTrk header", chunkStart);
+            }
+            int trackLen = file.readInt();
+            header.ScanTrack(new MidiEventCursor(file.duplicate(chunkStart)), tracknum);
+            try {
+                file.skip(trackLen);
+            } catch (MidiFileException e) {
+                /* The last track is truncated, keep what was scanned */
+                header.trackCount = tracknum + 1;
+                header.chunkOffsets = Arrays.copyOf(header.chunkOffsets, tracknum + 1);
+                break;
+            }
+        }
+        header.SetDefaults();
+        return header;
+    }
+
+    /**
+     * Build the header from the events of an already parsed midi file
+     */
+    static MidiFileHeader FromEvents(List<MidiEventTable> tracks, int trackMode, int quarterNote) {
+        MidiFileHeader header = new MidiFileHeader(trackMode, tracks.size(), quarterNote);
+        for (int tracknum = 0; tracknum < tracks.size(); tracknum++) {
+            MidiEventTable events = tracks.get(tracknum);
+            byte[] payload = events.getPayload();
+            for (int i = 0; i < events.size(); i++) {
+                header.Event(tracknum, events.getTick(i), events.getEventFlag(i),
+                        events.getData1(i), events.getData2(i));
+                int metaevent = events.getMetaevent(i);
+                if (metaevent >= 0) {
+                    header.Meta(tracknum, metaevent, payload, events.getPayloadOffset(i),
+                            events.getPayloadLength(i));
+                }
+            }
+        }
+        header.SetDefaults();
+        return header;
+    }
+
+    /**
+     * Walk over the events of one track, starting at its MTrk header,
+     * reading only the payloads needed for the metadata.
+     */
+    private void ScanTrack(MidiEventCursor cursor, int tracknum) {
+        byte[] value = new byte[16];
+        try {
+            cursor.startTrack();
+            while (cursor.next()) {
+                Event(tracknum, cursor.tick(), cursor.status(), cursor.data1(), cursor.data2());
+                int metaevent = cursor.metaType();
+                if (metaevent >= 0 && IsWanted(metaevent)) {
+                    int length = cursor.payloadLength();
+                    if (length > value.length) {
+                        value = new byte[length];
+                    }
+                    cursor.readPayload(value, 0);
+                    Meta(tracknum, metaevent, value, 0, length);
+                }
+            }
+        } catch (MidiFileException e) {
+            /* Unknown event or truncated track, keep what was scanned */
+        }
+    }
+
+    /**
+     * Return true if the metadata uses the given meta event
+     */
+    private static boolean IsWanted(int metaevent) {
+        return metaevent == MidiFile.MetaEventSequenceName || metaevent == MidiFile.MetaEventTempo ||
+                metaevent == MidiFile.MetaEventTimeSignature || metaevent == MidiFile.MetaEventKeySignature;
+    }
+
+    /**
+     * Record an event of the given track
+     */
+    private void Event(int tracknum, int tick, byte status, byte data1, byte data2) {
+        if (tick > endTick) {
+            endTick = tick;
+        }
+        int type = (status & 0xF0) == 0xF0 ? status : status & 0xF0;
+        if (type == (MidiFile.EventNoteOn & 0xF0) && data2 > 0) {
+            noteCounts[tracknum]++;
+        } else if (type == (MidiFile.EventProgramChange & 0xF0) && instruments[tracknum] < 0) {
+            instruments[tracknum] = data1;
+        }
+    }
+
+    /**
+     * Record a meta event of the given track, with its payload
+     */
+    private void Meta(int tracknum, int metaevent, byte[] value, int offset, int length) {
+        if (metaevent == MidiFile.MetaEventSequenceName && trackNames[tracknum] == null) {
+            try {
+                trackNames[tracknum] = new String(value, offset, length, "US-ASCII");
+            } catch (UnsupportedEncodingException e) {
+                trackNames[tracknum] = new String(value, offset, length);
+            }
+        } else if (metaevent == MidiFile.MetaEventTempo && tempo == 0 && length == 3) {
+            tempo = ((value[offset] & 0xFF) << 16) |
+                    ((value[offset + 1] & 0xFF) << 8) |
+                    (value[offset + 2] & 0xFF);
+        } else if (metaevent == MidiFile.MetaEventTimeSignature && numerator == 0 && length >= 2) {
+            numerator = value[offset];
+            denominator = (int) Math.pow(2, value[offset + 1]);
+        } else if (metaevent == MidiFile.MetaEventKeySignature && !hasKeySignature && length >= 2) {
+            keySharps = value[offset];
+            keyMinor = value[offset + 1] != 0;
+            hasKeySignature = true;
+        }
+    }
+
+    private void SetDefaults() {
+        if (tempo == 0) {
+            tempo = TempoMap.DefaultTempo;
+        }
+        if (numerator <= 0 || denominator <= 0) {
+            numerator = 4;
+            denominator = 4;
+        }
+    }
+
+    public int getTrackMode() {
+        return trackMode;
+    }
+
+    public int getTrackCount() {
+        return trackCount;
+    }
+
+    public int getQuarterNote() {
+        return quarterNote;
+    }
+
+    public int[] getChunkOffsets() {
+        return chunkOffsets;
+    }
+
+    public String getTrackName(int tracknum) {
+        return trackNames[tracknum];
+    }
+
+    public int getInstrument(int tracknum) {
+        return instruments[tracknum];
+    }
+
+    public int getNoteCount(int tracknum) {
+        return noteCounts[tracknum];
+    }
+
+    /**
+     * Return the number of tracks that have notes
+     */
+    public int getTracksWithNotes() {
+        int count = 0;
+        for (int notes : noteCounts) {
+            if (notes > 0) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    public int getTempo() {
+        return tempo;
+    }
+
+    public int getNumerator() {
+        return numerator;
+    }
+
+    public int getDenominator() {
+        return denominator;
+    }
+
+    public boolean hasKeySignature() {
+        return hasKeySignature;
+    }
+
+    public int getKeySharps() {
+        return keySharps;
+    }
+
+    public boolean isKeyMinor() {
+        return keyMinor;
+    }
+
+    public int getEndTick() {
+        return endTick;
+    }
+
+    @Override
+    public String toString() {
+        return "MidiFileHeader{" +
+                "trackMode=" + trackMode +
+                ", trackCount=" + trackCount +
+                ", quarterNote=" + quarterNote +
+                ", trackNames=" + Arrays.toString(trackNames) +
+                ", instruments=" + Arrays.toString(instruments) +
+                ", noteCounts=" + Arrays.toString(noteCounts) +
+                ", tempo=" + tempo +
+                ", time=" + numerator + "/" + denominator +
+                ", keySharps=" + keySharps +
+                ", keyMinor=" + keyMinor +
+                ", endTick=" + endTick +
+                '}';
+    }
+}
@@ -2,7 +2,13 @@ package yin.source.com.midimusicbook.midi.baseBean;
 
 
 
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
 import java.io.UnsupportedEncodingException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 
 import yin.source.com.midimusicbook.exception.MidiFileException;
 
@@ -19,11 +25,27 @@ import yin.source.com.midimusicbook.exception.MidiFileException;
  *   int is described at the top of this file.
  * - skip ahead a given number of bytes
  * - Return the current offset.
+ *
+ * The reader has three backends behind the same API:
+ * - a byte[] holding the whole midi file,
+ * - a small reusable window pulled from an InputStream, so that large
+ *   files never have to be copied onto the heap in one piece,
+ * - a read-only memory mapping of a local file, which is paged in by
+ *   the OS instead of being copied at all.
+ * 读取器有三种数据来源：整个文件的byte[]、从InputStream按需读取的可复用小缓冲区、
+ * 以及本地文件的内存映射(由系统按页加载，不复制到堆内存)
  */
 
 public class MidiFileReader {
-    private byte[] data;       /** The entire midi file data */
+    /** The default size of the streaming window, in bytes */
+    private static final int StreamBufferSize = 8192;
+
+    private ByteBuffer data;   /** The midi file data, or the current streaming window */
+    private byte[] window;     /** The array backing data, null for a mapped file */
     private int parse_offset;  /** The current offset while parsing */
+    private int dataStart;     /** The file offset of data[0] */
+    private int dataLength;    /** The number of valid bytes in data */
+    private InputStream input; /** The stream being read, or null for a byte[] reader */
 
     /** Create a new MidiFileReader for the given filename */
     /** Not used
@@ -54,47 +76,208 @@ public class MidiFileReader {
 
     /** Create a new MidiFileReader from the given data */
     public MidiFileReader(byte[] bytes) {
-        data = bytes;
+        window = bytes;
+        data = ByteBuffer.wrap(bytes);
+        dataStart = 0;
+        dataLength = bytes.length;
         parse_offset = 0;
     }
 
+    /**
+     * Create a new MidiFileReader that streams the data from the given input.
+     * Only a small window of the file is kept in memory.  The caller is
+     * responsible for closing the stream.
+     * 从输入流中按需读取数据，内存中只保留一个小窗口，调用者负责关闭输入流
+     */
+    public MidiFileReader(InputStream input) {
+        this(input, StreamBufferSize);
+    }
+
+    public MidiFileReader(InputStream input, int bufferSize) {
+        if (input == null) {
+            throw new MidiFileException("inputStream is null");
+        }
+        this.input = input;
+        window = new byte[Math.max(bufferSize, 16)];
+        data = ByteBuffer.wrap(window);
+        dataStart = 0;
+        dataLength = 0;
+        parse_offset = 0;
+    }
+
+    /**
+     * Create a new MidiFileReader backed by a read-only memory mapping of
+     * the given local file.  The file is paged in by the OS on demand and
+     * is never copied onto the Java heap.
+     * 通过内存映射读取本地文件，由系统按需加载，不复制到Java堆内存
+     */
+    public MidiFileReader(File file) {
+        RandomAccessFile raf = null;
+        try {
+            raf = new RandomAccessFile(file, "r");
+            FileChannel channel = raf.getChannel();
+            data = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            dataStart = 0;
+            dataLength = data.limit();
+            parse_offset = 0;
+        } catch (IOException e) {
+            throw new MidiFileException("Cannot open file " + file + ": " + e.getMessage(), 0);
+        } finally {
+            /* The mapping stays valid after the file is closed */
+            if (raf != null) {
+                try {
+                    raf.close();
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }
+        }
+    }
+
+    /** Create a reader over data that another reader already holds */
+    private MidiFileReader(ByteBuffer data, byte[] window, int dataLength, int offset) {
+        this.data = data;
+        this.window = window;
+        this.dataStart = 0;
+        this.dataLength = dataLength;
+        this.parse_offset = offset;
+    }
+
+    /**
+     * Return a new reader over the same file data, starting at the given
+     * offset.  The data isn't copied, and each reader has its own parse
+     * offset, so several of them can be used from different threads.
+     * Only byte[] and mapped readers can be duplicated.
+     * 返回一个共享同一份数据的新读取器，各自保存解析位置，可以在不同线程中使用
+     */
+    public MidiFileReader duplicate(int offset) {
+        if (input != null) {
+            throw new MidiFileException("A streaming MidiFileReader can't be duplicated", parse_offset);
+        }
+        return new MidiFileReader(data.duplicate(), window, dataLength, offset);
+    }
+
     /** Check that the given number of bytes doesn't exceed the file size */
     private void checkRead(int amount) {
-        if (parse_offset + amount > data.length) {
-            throw new MidiFileException("File is truncated", parse_offset);
+        if (parse_offset + amount > dataStart + dataLength) {
+            if (input == null || !fill(amount)) {
+                throw new MidiFileException("File is truncated", parse_offset);
+            }
+        }
+    }
+
+    /**
+     * Make sure the streaming window holds at least the given number of
+     * bytes starting at the parse offset.  The unread bytes are moved to the
+     * front of the window, which only grows when a single read (e.g. a long
+     * sysex or meta event) is larger than the window itself.
+     * Return false if the stream ended first.
+     */
+    private boolean fill(int amount) {
+        int unread = dataStart + dataLength - parse_offset;
+        byte[] dest = window;
+        if (amount > window.length) {
+            dest = new byte[Math.max(amount, window.length * 2)];
+        }
+        System.arraycopy(window, parse_offset - dataStart, dest, 0, unread);
+        if (dest != window) {
+            window = dest;
+            data = ByteBuffer.wrap(window);
+        }
+        dataStart = parse_offset;
+        dataLength = unread;
+        try {
+            while (dataLength < amount) {
+                int len = input.read(window, dataLength, window.length - dataLength);
+                if (len <= 0) {
+                    return false;
+                }
+                dataLength += len;
+            }
+        } catch (IOException e) {
+            throw new MidiFileException("Error reading midi file: " + e.getMessage(), parse_offset);
         }
+        return true;
+    }
+
+    /** Skip the given number of bytes of the stream that were never buffered */
+    private boolean discard(long amount) {
+        try {
+            while (amount > 0) {
+                long skipped = input.skip(amount);
+                if (skipped <= 0) {
+                    if (input.read() < 0) {
+                        return false;
+                    }
+                    skipped = 1;
+                }
+                amount -= skipped;
+            }
+        } catch (IOException e) {
+            throw new MidiFileException("Error reading midi file: " + e.getMessage(), parse_offset);
+        }
+        return true;
     }
 
     /** Read the next byte in the file, but don't increment the parse offset */
     public byte Peek() {
         checkRead(1);
-        return data[parse_offset];
+        return data.get(parse_offset - dataStart);
     }
 
     /** Read a byte from the file */
     public byte readByte() {
         checkRead(1);
-        byte x = data[parse_offset];
+        byte x = data.get(parse_offset - dataStart);
         parse_offset++;
         return x;
     }
 
     /** Read the given number of bytes from the file */
     public byte[] readBytes(int amount) {
-        checkRead(amount);
         byte[] result = new byte[amount];
-        for (int i = 0; i < amount; i++) {
-            result[i] = (byte)(data[i + parse_offset]);
+        readBytes(result, 0, amount);
+        return result;
+    }
+
+    /** Read the given number of bytes from the file into dest, at the given offset */
+    public void readBytes(byte[] dest, int offset, int amount) {
+        checkRead(amount);
+        if (window != null) {
+            System.arraycopy(window, parse_offset - dataStart, dest, offset, amount);
+        } else {
+            ByteBuffer src = data.duplicate();
+            src.position(parse_offset - dataStart);
+            src.get(dest, offset, amount);
         }
         parse_offset += amount;
-        return result;
+    }
+
+    /**
+     * Return the given number of bytes as a read-only buffer, and skip over them.
+     * For a byte[] or mapped reader this is a zero-copy slice of the file data.
+     * A streaming window is reused by later reads, so in that case the bytes
+     * are copied.
+     * 返回接下来的若干字节。byte[]或内存映射时不复制数据，流式读取时需要复制
+     */
+    public ByteBuffer readSlice(int amount) {
+        if (input != null) {
+            return ByteBuffer.wrap(readBytes(amount)).asReadOnlyBuffer();
+        }
+        checkRead(amount);
+        ByteBuffer slice = data.duplicate();
+        slice.position(parse_offset - dataStart);
+        slice.limit(parse_offset - dataStart + amount);
+        parse_offset += amount;
+        return slice.slice().asReadOnlyBuffer();
     }
 
     /** Read a 16-bit short from the file */
     public int readShort() {
         checkRead(2);
-        int x = ((data[parse_offset] & 0xFF) << 8) |
-                (data[parse_offset+1] & 0xFF);
+        int pos = parse_offset - dataStart;
+        int x = ((data.get(pos) & 0xFF) << 8) |
+                (data.get(pos+1) & 0xFF);
         parse_offset += 2;
         return x;
     }
@@ -102,26 +285,33 @@ public class MidiFileReader {
     /** Read a 32-bit int from the file */
     public int readInt() {
         checkRead(4);
-        int x =  ((data[parse_offset] & 0xFF) << 24) |
-                ((data[parse_offset+1] & 0xFF) << 16) |
-                ((data[parse_offset+2] & 0xFF) << 8) |
-                (data[parse_offset+3] & 0xFF);
+        int pos = parse_offset - dataStart;
+        int x =  ((data.get(pos) & 0xFF) << 24) |
+                ((data.get(pos+1) & 0xFF) << 16) |
+                ((data.get(pos+2) & 0xFF) << 8) |
+                (data.get(pos+3) & 0xFF);
         parse_offset += 4;
         return x;
     }
 
     /** Read an ascii String with the given length */
     public String readAscii(int len) {
+        if (window == null) {
+            return ascii(readBytes(len), 0, len);
+        }
         checkRead(len);
-        String s ;
+        String s = ascii(window, parse_offset - dataStart, len);
+        parse_offset += len;
+        return s;
+    }
+
+    private static String ascii(byte[] bytes, int offset, int len) {
         try {
-            s = new String(data, parse_offset, len, "US-ASCII");
+            return new String(bytes, offset, len, "US-ASCII");
         }
         catch (UnsupportedEncodingException e) {
-            s = new String(data, parse_offset, len);
+            return new String(bytes, offset, len);
         }
-        parse_offset += len;
-        return s;
     }
 
     /** Read a variable-length integer (1 to 4 bytes). The integer ends
@@ -149,6 +339,17 @@ public class MidiFileReader {
 
     /** skip over the given number of bytes */
     public void skip(int amount) {
+        if (input != null && parse_offset + amount > dataStart + dataLength) {
+            /* Don't buffer bytes we are going to throw away */
+            int buffered = dataStart + dataLength - parse_offset;
+            if (!discard(amount - buffered)) {
+                throw new MidiFileException("File is truncated", parse_offset);
+            }
+            parse_offset += amount;
+            dataStart = parse_offset;
+            dataLength = 0;
+            return;
+        }
         checkRead(amount);
         parse_offset += amount;
     }
@@ -158,8 +359,20 @@ public class MidiFileReader {
         return parse_offset;
     }
 
-    /** Return the raw midi file byte data */
+    /** Return true if this reader streams its data instead of holding the whole file */
+    public boolean isStreaming() {
+        return input != null;
+    }
+
+    /**
+     * Return the raw midi file byte data.
+     * A streaming reader only holds a window of the file, and a mapped
+     * reader's data isn't on the heap, so they have no raw data to return.
+     */
     public byte[] getData() {
-        return data;
+        if (input != null || window == null) {
+            throw new MidiFileException("This MidiFileReader doesn't hold the whole file as a byte[]");
+        }
+        return window;
     }
 }
@@ -0,0 +1,247 @@
+package yin.source.com.midimusicbook.midi.baseBean;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * @class MidiFileWriter
+ * The MidiFileWriter encodes tables of midi events into a midi file in
+ * memory, in a single pass.  The length of each MTrk chunk is written as
+ * a placeholder and patched once the track's events are written, so the
+ * events aren't walked twice.  The result is then written out with one
+ * call, or used directly as a byte[] / ByteBuffer.
+ * MidiFileWriter在内存中一次遍历将midi事件表编码为midi文件。音轨块的长度先写入占位符，
+ * 写完该音轨的事件后再回填，所以不需要遍历两次。结果可以一次写出，或直接作为byte[]/ByteBuffer使用
+ * <p/>
+ * The buffer is kept between calls to write(), so a writer that is
+ * reused (e.g. for every press of Play) only allocates when a song is
+ * larger than any written before.
+ * 缓冲区在多次write()之间复用，只有歌曲比之前写过的都大时才重新分配
+ * <p/>
+ * Events are always written with their status byte (no running status).
+ */
+public class MidiFileWriter {
+
+    private byte[] data;
+    /**
+     * The encoded midi file, in data[0 : size] // 编码后的midi文件
+     */
+    private int size;
+    private final byte[] tempoBytes = new byte[3];
+    /**
+     * The payload of a tempo event changed by an overlay // 被overlay修改的速度事件数据
+     */
+
+    public MidiFileWriter() {
+        this(16384);
+    }
+
+    public MidiFileWriter(int capacity) {
+        data = new byte[Math.max(capacity, 64)];
+    }
+
+    /**
+     * Make room for the given number of bytes after the current size
+     */
+    private void ensureCapacity(int amount) {
+        if (size + amount > data.length) {
+            data = Arrays.copyOf(data, Math.max(size + amount, data.length * 2));
+        }
+    }
+
+    /**
+     * Replace the contents of the writer with a midi file holding the
+     * given tracks.  Return the size of the file in bytes.
+     */
+    public int write(List<MidiEventTable> tracks, int trackMode, int quarter) {
+        return write(tracks, null, trackMode, quarter);
+    }
+
+    /**
+     * Replace the contents of the writer with a midi file holding the
+     * given tracks, with the sound options of the overlay applied while
+     * the events are written.  If overlay is null, the tracks are written
+     * as they are.  Return the size of the file in bytes.
+     */
+    public int write(List<MidiEventTable> tracks, MidiEventOverlay overlay, int trackMode, int quarter) {
+        size = 0;
+        /* Most events take 4 bytes or less, so this is rarely exceeded */
+        int estimate = 14;
+        for (MidiEventTable events : tracks) {
+            estimate += 8 + (events.size() + 1) * 4 + events.getPayloadSize() + 7;
+        }
+        ensureCapacity(estimate);
+
+        /* Write the MThd, len = 6, track mode, number tracks, quarter note */
+        writeAscii("MThd");
+        writeInt(6);
+        writeShort(trackMode);
+        writeShort(overlay == null ? tracks.size() : overlay.countTracks(tracks.size()));
+        writeShort(quarter);
+
+        for (int tracknum = 0; tracknum < tracks.size(); tracknum++) {
+            if (overlay != null && !overlay.includesTrack(tracknum)) {
+                continue;
+            }
+            /* Write the MTrk header, and patch the track length afterwards */
+            writeAscii("MTrk");
+            int lengthOffset = size;
+            writeInt(0);
+            if (overlay == null) {
+                writeTrack(tracks.get(tracknum));
+            } else {
+                writeTrack(tracks.get(tracknum), tracknum, overlay);
+            }
+            int len = size - lengthOffset - 4;
+            IntToBytes(len, data, lengthOffset);
+        }
+        return size;
+    }
+
+    /**
+     * Write the events of one track
+     */
+    private void writeTrack(MidiEventTable events) {
+        byte[] payload = events.getPayload();
+        for (int i = 0; i < events.size(); i++) {
+            writeEvent(events.getDeltaTime(i), events.getStatus(i), events.getData1(i), events.getData2(i),
+                    payload, events.getPayloadOffset(i), events.getPayloadLength(i));
+        }
+    }
+
+    /**
+     * Write the events of one track, with the options of the overlay applied
+     */
+    private void writeTrack(MidiEventTable events, int tracknum, MidiEventOverlay overlay) {
+        byte[] payload = events.getPayload();
+        int prevtick = 0;
+        overlay.startTrack(events, tracknum);
+        while (overlay.next()) {
+            int delta = overlay.tick() - prevtick;
+            prevtick = overlay.tick();
+            if (overlay.isTempo()) {
+                int tempo = overlay.tempo();
+                tempoBytes[0] = (byte) ((tempo >> 16) & 0xFF);
+                tempoBytes[1] = (byte) ((tempo >> 8) & 0xFF);
+                tempoBytes[2] = (byte) (tempo & 0xFF);
+                writeEvent(delta, overlay.status(), overlay.data1(), overlay.data2(), tempoBytes, 0, 3);
+            } else if (overlay.sourceIndex() < 0) {
+                /* An event added by the overlay, without a payload */
+                writeEvent(delta, overlay.status(), overlay.data1(), overlay.data2(), payload, 0, 0);
+            } else {
+                int i = overlay.sourceIndex();
+                writeEvent(delta, overlay.status(), overlay.data1(), overlay.data2(),
+                        payload, events.getPayloadOffset(i), events.getPayloadLength(i));
+            }
+        }
+    }
+
+    /**
+     * Write one event.  The payload is only used by sysex and meta events.
+     */
+    private void writeEvent(int delta, byte status, byte data1, byte data2,
+                            byte[] payload, int payloadOffset, int length) {
+        writeVarlen(delta);
+        /* The status byte and at most two data bytes */
+        ensureCapacity(3);
+        data[size++] = status;
+
+        byte eventFlag = (status & 0xF0) == 0xF0 ? status : (byte) (status & 0xF0);
+        if (eventFlag == MidiFile.EventProgramChange || eventFlag == MidiFile.EventChannelPressure) {
+            data[size++] = data1;
+        } else if (eventFlag == MidiFile.SysexEvent1 || eventFlag == MidiFile.SysexEvent2) {
+            writeVarlen(length);
+            ensureCapacity(length);
+            System.arraycopy(payload, payloadOffset, data, size, length);
+            size += length;
+        } else if (eventFlag == MidiFile.MetaEvent) {
+            data[size++] = data1;
+            writeVarlen(length);
+            ensureCapacity(length);
+            System.arraycopy(payload, payloadOffset, data, size, length);
+            size += length;
+        } else {
+            /* NoteOn, NoteOff, KeyPressure, ControlChange, PitchBend */
+            data[size++] = data1;
+            data[size++] = data2;
+        }
+    }
+
+    /**
+     * Write a variable length number, which takes at most 4 bytes
+     */
+    private void writeVarlen(int num) {
+        ensureCapacity(4);
+        size += MidiFile.VarlenToBytes(num, data, size);
+    }
+
+    private void writeAscii(String s) {
+        ensureCapacity(s.length());
+        for (int i = 0; i < s.length(); i++) {
+            data[size++] = (byte) s.charAt(i);
+        }
+    }
+
+    private void writeShort(int value) {
+        ensureCapacity(2);
+        data[size++] = (byte) ((value >> 8) & 0xFF);
+        data[size++] = (byte) (value & 0xFF);
+    }
+
+    private void writeInt(int value) {
+        ensureCapacity(4);
+        IntToBytes(value, data, size);
+        size += 4;
+    }
+
+    /**
+     * Write a 4-byte integer to data[offset : offset+4]
+     */
+    private static void IntToBytes(int value, byte[] data, int offset) {
+        data[offset] = (byte) ((value >> 24) & 0xFF);
+        data[offset + 1] = (byte) ((value >> 16) & 0xFF);
+        data[offset + 2] = (byte) ((value >> 8) & 0xFF);
+        data[offset + 3] = (byte) (value & 0xFF);
+    }
+
+    /**
+     * Write the encoded midi file to the given stream, in a single write.
+     * The stream isn't closed.
+     */
+    public void writeTo(OutputStream out) throws IOException {
+        out.write(data, 0, size);
+    }
+
+    /**
+     * Return the size of the encoded midi file, in bytes
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Return the buffer holding the encoded midi file in its first size()
+     * bytes.  It is reused by the next write().
+     */
+    public byte[] getData() {
+        return data;
+    }
+
+    /**
+     * Return a copy of the encoded midi file
+     */
+    public byte[] toByteArray() {
+        return Arrays.copyOf(data, size);
+    }
+
+    /**
+     * Return a read-only view of the encoded midi file, without copying.
+     * It is only valid until the next write().
+     */
+    public ByteBuffer asByteBuffer() {
+        return ByteBuffer.wrap(data, 0, size).slice().asReadOnlyBuffer();
+    }
+}
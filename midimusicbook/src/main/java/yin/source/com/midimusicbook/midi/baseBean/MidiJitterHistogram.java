@@ -0,0 +1,124 @@
+package yin.source.com.midimusicbook.midi.baseBean;
+
+/**
+ * @class MidiJitterHistogram
+ * The MidiJitterHistogram counts how late the MidiEventScheduler sends
+ * each event, compared to the time it was due, in buckets from 50
+ * microseconds up to 50 milliseconds.  The buckets are fixed, so adding
+ * a value never allocates, and the histogram can be filled on the
+ * scheduler's thread while being read on another.
+ * MidiJitterHistogram统计MidiEventScheduler发送每个事件比预定时间晚了多少，分为50微秒到50毫秒的若干区间。
+ * 区间固定，添加数据时不分配内存
+ * <p/>
+ * Usage:
+ * Log.i("MidiPlayer", scheduler.getJitterHistogram().toString());
+ */
+public class MidiJitterHistogram {
+
+    private static final long[] Limits = {
+            50000, 100000, 250000, 500000, 1000000, 2000000, 5000000, 10000000, 20000000, 50000000
+    };
+    /**
+     * The upper limit of each bucket, in nanoseconds.  The last bucket
+     * holds everything later. // 每个区间的上限(纳秒)，最后一个区间包含更晚的值
+     */
+
+    private final long[] counts = new long[Limits.length + 1];
+    private long count;
+    private long sumNanos;
+    private long maxNanos;
+
+    /**
+     * Add the lateness of one event, in nanoseconds.  Early events
+     * (negative values) are counted in the first bucket.
+     */
+    public synchronized void add(long lateNanos) {
+        int bucket = 0;
+        while (bucket < Limits.length && lateNanos >= Limits[bucket]) {
+            bucket++;
+        }
+        counts[bucket]++;
+        count++;
+        sumNanos += Math.max(lateNanos, 0);
+        maxNanos = Math.max(maxNanos, lateNanos);
+    }
+
+    public synchronized long getCount() {
+        return count;
+    }
+
+    /**
+     * Return the number of buckets
+     */
+    public int getBucketCount() {
+        return counts.length;
+    }
+
+    /**
+     * Return the number of events in the given bucket
+     */
+    public synchronized long getBucketCount(int bucket) {
+        return counts[bucket];
+    }
+
+    /**
+     * Return the upper limit of the given bucket in milliseconds, or
+     * infinity for the last one
+     */
+    public double getBucketLimitMillis(int bucket) {
+        return bucket < Limits.length ? Limits[bucket] / 1e6 : Double.POSITIVE_INFINITY;
+    }
+
+    public synchronized double getMeanMillis() {
+        return count == 0 ? 0 : sumNanos / 1e6 / count;
+    }
+
+    public synchronized double getMaxMillis() {
+        return maxNanos / 1e6;
+    }
+
+    /**
+     * Return the lateness that the given fraction of the events (e.g.
+     * 0.99) didn't exceed, rounded up to the limit of its bucket, in
+     * milliseconds.  In the last bucket this is the maximum.
+     */
+    public synchronized double getPercentileMillis(double fraction) {
+        long wanted = (long) Math.ceil(fraction * count);
+        long seen = 0;
+        for (int bucket = 0; bucket < Limits.length; bucket++) {
+            seen += counts[bucket];
+            if (seen >= wanted) {
+                return Math.min(Limits[bucket], maxNanos) / 1e6;
+            }
+        }
+        return maxNanos / 1e6;
+    }
+
+    public synchronized void clear() {
+        for (int bucket = 0; bucket < counts.length; bucket++) {
+            counts[bucket] = 0;
+        }
+        count = 0;
+        sumNanos = 0;
+        maxNanos = 0;
+    }
+
+    @Override
+    public synchronized String toString() {
+        StringBuilder result = new StringBuilder(String.format(
+                "MidiJitterHistogram{count=%d, mean=%.3f ms, p50=%.3f ms, p99=%.3f ms, max=%.3f ms, buckets=[",
+                count, getMeanMillis(), getPercentileMillis(0.5), getPercentileMillis(0.99), getMaxMillis()));
+        for (int bucket = 0; bucket < counts.length; bucket++) {
+            if (bucket > 0) {
+                result.append(", ");
+            }
+            if (bucket < Limits.length) {
+                result.append('<').append(Limits[bucket] / 1e6);
+            } else {
+                result.append(">=").append(Limits[Limits.length - 1] / 1e6);
+            }
+            result.append(':').append(counts[bucket]);
+        }
+        return result.append("]}").toString();
+    }
+}
@@ -110,6 +110,10 @@ public class MidiOptions implements Serializable {
     /**
      * Start the midi music at the given pause time
      */ // 在提供的暂停时刻开始midi音乐
+    public int endTime;
+    /**
+     * Stop the midi music at the given time, 0 to play to the end
+     */ // 在提供的时刻停止midi音乐(0表示播放到结尾)
 
     public boolean playMeasuresInLoop;
     /**
@@ -172,6 +176,7 @@ public class MidiOptions implements Serializable {
 
         tempo = midifile.getTime().getTempo();// 每四分之一节拍的微秒数
         pauseTime = 0;
+        endTime = 0;
         lastMeasure = midifile.EndTime() / midifile.getTime().getMeasure();
         playMeasuresInLoop = false;
         playMeasuresInLoopStart = 0;
@@ -348,6 +353,7 @@ public class MidiOptions implements Serializable {
         result += " combine " + combineInterval;
         result += " tempo " + tempo;
         result += " pauseTime " + pauseTime;
+        result += " endTime " + endTime;
         if (time != null) {
             result += " time " + time.toString();
         }
@@ -388,6 +394,7 @@ public class MidiOptions implements Serializable {
         options.lastMeasure = lastMeasure;
         options.tempo = tempo;
         options.pauseTime = pauseTime;
+        options.endTime = endTime;
 
         options.shifttime = shifttime;
         options.largeNoteSize = largeNoteSize;
@@ -0,0 +1,28 @@
+package yin.source.com.midimusicbook.midi.baseBean;
+
+/**
+ * @class MidiOutputSink
+ * Receives the channel messages played by a MidiEventScheduler: a midi
+ * port (android.media.midi), a software synthesizer, or the
+ * MidiRecordingSink, which keeps them in memory so the timing can be
+ * checked.
+ * 接收MidiEventScheduler播放的通道消息：midi端口、软件合成器，或者保存在内存中以便检查时间的MidiRecordingSink
+ * <p/>
+ * The messages are sent on the scheduler's thread, which must not be
+ * blocked, so send() should only hand the message on.
+ * 消息在调度线程中发送，send()不应阻塞
+ */
+public interface MidiOutputSink {
+
+    /**
+     * Send one channel message: NoteOn, NoteOff, KeyPressure,
+     * ControlChange, ProgramChange, ChannelPressure or PitchBend.
+     * ProgramChange and ChannelPressure only use data1.
+     *
+     * @param timestampNanos When the message should sound, in
+     *                       System.nanoTime() time.  It is a little in the
+     *                       future if the scheduler sends ahead (see
+     *                       MidiEventScheduler.setLeadNanos()).
+     */
+    void send(byte status, byte data1, byte data2, long timestampNanos);
+}
@@ -0,0 +1,62 @@
+package yin.source.com.midimusicbook.midi.baseBean;
+
+import yin.source.com.midimusicbook.exception.MidiFileException;
+
+/**
+ * @class MidiParseListener
+ * Receives diagnostics while a MidiFile is parsed, see
+ * MidiFile.setParseListener().  The default listener, None, does nothing,
+ * and the parser skips the timing work entirely when it is used.
+ * 解析midi文件时接收诊断信息，默认的None什么也不做，此时解析器不会做任何额外的计时工作
+ * <p/>
+ * The callbacks are made on the thread that parses the file, also when
+ * the tracks are parsed in parallel (see MidiFile.setParseExecutor()),
+ * in track order.  Files parsed on different threads share the listener,
+ * so an implementation has to be thread safe.
+ * 回调在解析文件的线程中按音轨顺序调用(并行解析时也是如此)，不同线程解析的文件共用同一个监听器，实现类需要是线程安全的
+ * <p/>
+ * MidiParseMetrics is an implementation that adds up counts and times.
+ */
+public interface MidiParseListener {
+
+    /**
+     * A listener that ignores everything
+     */
+    MidiParseListener None = new MidiParseListener() {
+        @Override
+        public void onTrackParsed(String fileName, int tracknum, MidiEventTable events, int bytes,
+                                  long elapsedNanos) {
+        }
+
+        @Override
+        public void onTruncated(String fileName, int tracknum, MidiFileException e) {
+        }
+
+        @Override
+        public void onFileParsed(String fileName, int tracks, int bytes, long elapsedNanos) {
+        }
+    };
+
+    /**
+     * A track was parsed.
+     *
+     * @param events       The events of the track. Don't change them.
+     * @param bytes        The number of bytes of the MTrk chunk, including its header
+     * @param elapsedNanos The time taken to read the events and pair the notes
+     */
+    void onTrackParsed(String fileName, int tracknum, MidiEventTable events, int bytes, long elapsedNanos);
+
+    /**
+     * The file ended in the middle of the given track.  The events read so
+     * far are kept, and parsing goes on.
+     */
+    void onTruncated(String fileName, int tracknum, MidiFileException e);
+
+    /**
+     * The whole file was parsed.
+     *
+     * @param bytes        The number of bytes parsed
+     * @param elapsedNanos The time taken by the whole parse
+     */
+    void onFileParsed(String fileName, int tracks, int bytes, long elapsedNanos);
+}
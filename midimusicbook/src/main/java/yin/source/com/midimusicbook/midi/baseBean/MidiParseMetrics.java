@@ -0,0 +1,168 @@
+package yin.source.com.midimusicbook.midi.baseBean;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import yin.source.com.midimusicbook.exception.MidiFileException;
+
+/**
+ * @class MidiParseMetrics
+ * A MidiParseListener that adds up, over every file parsed while it is
+ * installed:
+ * 一个累计解析统计信息的MidiParseListener，统计内容包括:
+ * - The number of events of each type // 每种事件的数量
+ * - The number of files, tracks and bytes parsed // 解析的文件数、音轨数、字节数
+ * - The time spent reading tracks, and parsing files // 读取音轨和解析文件所用的时间
+ * - The number of truncated tracks that were recovered // 被截断后恢复的音轨数
+ * <p/>
+ * It is thread safe, so files can be parsed on several threads at once.
+ * <p/>
+ * Usage:
+ * MidiParseMetrics metrics = new MidiParseMetrics();
+ * MidiFile.setParseListener(metrics);
+ * ...
+ * Log.i("MidiFile", metrics.toString());
+ */
+public class MidiParseMetrics implements MidiParseListener {
+
+    private final AtomicLongArray eventCounts = new AtomicLongArray(18);
+    /**
+     * The event counts by type, indexed by EventIndex()
+     */
+    private final AtomicLong files = new AtomicLong();
+    private final AtomicLong tracks = new AtomicLong();
+    private final AtomicLong bytes = new AtomicLong();
+    private final AtomicLong trackNanos = new AtomicLong();
+    private final AtomicLong fileNanos = new AtomicLong();
+    private final AtomicLong truncations = new AtomicLong();
+
+    /**
+     * Return the index of the given event type in eventCounts.
+     * Channel events use the high nibble of the status byte (8 to 14),
+     * sysex events use 15 and 16, and meta events use 17.
+     */
+    private static int EventIndex(byte eventFlag) {
+        if (eventFlag == MidiFile.MetaEvent) {
+            return 17;
+        } else if (eventFlag == MidiFile.SysexEvent2) {
+            return 16;
+        } else if (eventFlag == MidiFile.SysexEvent1) {
+            return 15;
+        }
+        return (eventFlag >> 4) & 0x0F;
+    }
+
+    @Override
+    public void onTrackParsed(String fileName, int tracknum, MidiEventTable events, int bytes,
+                              long elapsedNanos) {
+        long[] counts = new long[eventCounts.length()];
+        for (int i = 0; i < events.size(); i++) {
+            counts[EventIndex(events.getEventFlag(i))]++;
+        }
+        for (int i = 0; i < counts.length; i++) {
+            if (counts[i] != 0) {
+                eventCounts.addAndGet(i, counts[i]);
+            }
+        }
+        tracks.incrementAndGet();
+        this.bytes.addAndGet(bytes);
+        trackNanos.addAndGet(elapsedNanos);
+    }
+
+    @Override
+    public void onTruncated(String fileName, int tracknum, MidiFileException e) {
+        truncations.incrementAndGet();
+    }
+
+    @Override
+    public void onFileParsed(String fileName, int tracks, int bytes, long elapsedNanos) {
+        files.incrementAndGet();
+        fileNanos.addAndGet(elapsedNanos);
+    }
+
+    /**
+     * Return the number of events of the given type (EventNoteOn,
+     * EventControlChange, MetaEvent, etc) parsed so far
+     */
+    public long getEventCount(byte eventFlag) {
+        return eventCounts.get(EventIndex(eventFlag));
+    }
+
+    public long getFileCount() {
+        return files.get();
+    }
+
+    public long getTrackCount() {
+        return tracks.get();
+    }
+
+    /**
+     * Return the number of bytes of all the MTrk chunks parsed so far
+     */
+    public long getBytes() {
+        return bytes.get();
+    }
+
+    /**
+     * Return the time spent reading tracks, in nanoseconds.  With a
+     * parallel parse this is the sum over all the threads.
+     */
+    public long getTrackNanos() {
+        return trackNanos.get();
+    }
+
+    /**
+     * Return the time spent parsing whole files, in nanoseconds
+     */
+    public long getFileNanos() {
+        return fileNanos.get();
+    }
+
+    public long getTruncationCount() {
+        return truncations.get();
+    }
+
+    /**
+     * Return the parse throughput so far, in megabytes per second
+     */
+    public double getMegabytesPerSecond() {
+        long nanos = fileNanos.get();
+        return nanos == 0 ? 0 : bytes.get() * 1000.0 / nanos;
+    }
+
+    /**
+     * Clear all the counts
+     */
+    public void reset() {
+        for (int i = 0; i < eventCounts.length(); i++) {
+            eventCounts.set(i, 0);
+        }
+        files.set(0);
+        tracks.set(0);
+        bytes.set(0);
+        trackNanos.set(0);
+        fileNanos.set(0);
+        truncations.set(0);
+    }
+
+    @Override
+    public String toString() {
+        return "MidiParseMetrics{" +
+                "files=" + files.get() +
+                ", tracks=" + tracks.get() +
+                ", bytes=" + bytes.get() +
+                ", noteOn=" + getEventCount(MidiFile.EventNoteOn) +
+                ", noteOff=" + getEventCount(MidiFile.EventNoteOff) +
+                ", keyPressure=" + getEventCount(MidiFile.EventKeyPressure) +
+                ", controlChange=" + getEventCount(MidiFile.EventControlChange) +
+                ", programChange=" + getEventCount(MidiFile.EventProgramChange) +
+                ", channelPressure=" + getEventCount(MidiFile.EventChannelPressure) +
+                ", pitchBend=" + getEventCount(MidiFile.EventPitchBend) +
+                ", sysex=" + (getEventCount(MidiFile.SysexEvent1) + getEventCount(MidiFile.SysexEvent2)) +
+                ", meta=" + getEventCount(MidiFile.MetaEvent) +
+                ", truncations=" + truncations.get() +
+                ", trackMillis=" + trackNanos.get() / 1000000 +
+                ", fileMillis=" + fileNanos.get() / 1000000 +
+                '}';
+    }
+}
@@ -0,0 +1,89 @@
+package yin.source.com.midimusicbook.midi.baseBean;
+
+import java.util.Arrays;
+
+/**
+ * @class MidiRecordingSink
+ * A MidiOutputSink that keeps every message in memory, with its
+ * timestamp and the time it was received, so the messages played by a
+ * MidiEventScheduler can be compared with the song and their timing
+ * checked, without a synthesizer.
+ * 将每条消息及其时间戳、接收时间保存在内存中的MidiOutputSink，不需要合成器即可检查调度器播放的消息和时间
+ */
+public class MidiRecordingSink implements MidiOutputSink {
+
+    private int count;
+    private byte[] statuses = new byte[256];
+    private byte[] data1 = new byte[256];
+    private byte[] data2 = new byte[256];
+    private long[] timestamps = new long[256];
+    private long[] received = new long[256];
+    /**
+     * The messages received, in columns, in the first count entries // 收到的消息，按列保存
+     */
+
+    @Override
+    public synchronized void send(byte status, byte d1, byte d2, long timestampNanos) {
+        long now = System.nanoTime();
+        if (count == statuses.length) {
+            int capacity = count * 2;
+            statuses = Arrays.copyOf(statuses, capacity);
+            data1 = Arrays.copyOf(data1, capacity);
+            data2 = Arrays.copyOf(data2, capacity);
+            timestamps = Arrays.copyOf(timestamps, capacity);
+            received = Arrays.copyOf(received, capacity);
+        }
+        statuses[count] = status;
+        data1[count] = d1;
+        data2[count] = d2;
+        timestamps[count] = timestampNanos;
+        received[count] = now;
+        count++;
+    }
+
+    public synchronized int size() {
+        return count;
+    }
+
+    public synchronized byte getStatus(int index) {
+        return statuses[index];
+    }
+
+    public synchronized byte getData1(int index) {
+        return data1[index];
+    }
+
+    public synchronized byte getData2(int index) {
+        return data2[index];
+    }
+
+    /**
+     * Return the time the message should sound, in System.nanoTime() time
+     */
+    public synchronized long getTimestamp(int index) {
+        return timestamps[index];
+    }
+
+    /**
+     * Return the time the message was received, in System.nanoTime() time
+     */
+    public synchronized long getReceivedNanos(int index) {
+        return received[index];
+    }
+
+    /**
+     * Return true if the given message is a NoteOn with a velocity above 0
+     */
+    public synchronized boolean isNoteOn(int index) {
+        return (statuses[index] & 0xF0) == (MidiFile.EventNoteOn & 0xF0) && data2[index] != 0;
+    }
+
+    public synchronized void clear() {
+        count = 0;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "MidiRecordingSink{size=" + count + '}';
+    }
+}
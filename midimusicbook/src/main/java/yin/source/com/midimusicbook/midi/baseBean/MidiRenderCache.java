@@ -0,0 +1,224 @@
+package yin.source.com.midimusicbook.midi.baseBean;
+
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * @class MidiRenderCache
+ * The MidiRenderCache keeps the midi files rendered for playback (see
+ * MidiFile.Write()), keyed by the midi file and the MidiOptions fields
+ * that change the sound:
+ * MidiRenderCache缓存为播放生成的midi文件，键为midi文件以及影响声音的MidiOptions字段:
+ * - tracks, mute // 包含的音轨、静音的音轨
+ * - instruments, useDefaultInstruments // 每个音轨的乐器
+ * - transpose, tempo, pauseTime, endTime // 移调、速度、开始时间、结束时间
+ * <p/>
+ * Playing the same part again (e.g. each time a loop of measures
+ * restarts, or stop then play) reuses the bytes instead of encoding
+ * all the events again.
+ * 再次播放相同的部分(例如循环播放重新开始时)直接复用已生成的数据，不需要重新编码所有事件
+ * <p/>
+ * The least recently used files are dropped when the total size goes
+ * over the limit.  The returned byte[] is shared, so it must not be
+ * changed.
+ */
+public class MidiRenderCache {
+
+    public static final long DefaultMaxBytes = 4 * 1024 * 1024;
+
+    private final LinkedHashMap<RenderKey, byte[]> entries =
+            new LinkedHashMap<RenderKey, byte[]>(16, 0.75f, true);
+    /**
+     * The rendered files, in least recently used order // 已生成的文件，按最近最少使用排序
+     */
+    private final MidiFileWriter writer = new MidiFileWriter();
+    private long maxBytes;
+    private long bytes;
+    /**
+     * The total size of the cached files // 缓存文件的总大小
+     */
+    private long hits;
+    private long misses;
+    private long evictions;
+
+    public MidiRenderCache() {
+        this(DefaultMaxBytes);
+    }
+
+    public MidiRenderCache(long maxBytes) {
+        this.maxBytes = maxBytes;
+    }
+
+    /**
+     * Return the midi file with the given options applied, rendering it
+     * only if it isn't in the cache.
+     */
+    public synchronized byte[] render(MidiFile file, MidiOptions options) {
+        RenderKey key = new RenderKey(file, options);
+        byte[] data = entries.get(key);
+        if (data != null) {
+            hits++;
+            return data;
+        }
+        misses++;
+        file.Write(writer, options);
+        data = writer.toByteArray();
+        if (data.length <= maxBytes) {
+            entries.put(key, data);
+            bytes += data.length;
+            trimToSize(maxBytes);
+        }
+        return data;
+    }
+
+    /**
+     * Return the midi file with the given options applied, without
+     * keeping it.  For files that are unlikely to be played again, e.g.
+     * the rest of the song from the current position, so they don't push
+     * the whole song out of the cache.  A cached file is still returned.
+     * 生成不保存在缓存中的midi文件，用于不太可能再次播放的文件(如从当前位置开始的剩余部分)
+     */
+    public synchronized byte[] renderOnce(MidiFile file, MidiOptions options) {
+        byte[] data = entries.get(new RenderKey(file, options));
+        if (data != null) {
+            hits++;
+            return data;
+        }
+        misses++;
+        file.Write(writer, options);
+        return writer.toByteArray();
+    }
+
+    /**
+     * Drop the least recently used files until the total size is at most maxBytes
+     */
+    private void trimToSize(long maxBytes) {
+        Iterator<Map.Entry<RenderKey, byte[]>> iter = entries.entrySet().iterator();
+        while (bytes > maxBytes && iter.hasNext()) {
+            bytes -= iter.next().getValue().length;
+            iter.remove();
+            evictions++;
+        }
+    }
+
+    /**
+     * Drop all the cached files.  The counters are kept.
+     */
+    public synchronized void clear() {
+        entries.clear();
+        bytes = 0;
+    }
+
+    public synchronized void setMaxBytes(long maxBytes) {
+        this.maxBytes = maxBytes;
+        trimToSize(maxBytes);
+    }
+
+    public synchronized long getMaxBytes() {
+        return maxBytes;
+    }
+
+    /**
+     * Return the total size of the cached files, in bytes
+     */
+    public synchronized long getBytes() {
+        return bytes;
+    }
+
+    public synchronized int size() {
+        return entries.size();
+    }
+
+    public synchronized long getHitCount() {
+        return hits;
+    }
+
+    public synchronized long getMissCount() {
+        return misses;
+    }
+
+    public synchronized long getEvictionCount() {
+        return evictions;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "MidiRenderCache{" +
+                "size=" + entries.size() +
+                ", bytes=" + bytes +
+                ", maxBytes=" + maxBytes +
+                ", hits=" + hits +
+                ", misses=" + misses +
+                ", evictions=" + evictions +
+                '}';
+    }
+
+    /**
+     * The key of a rendered file: the midi file, and a copy of the options
+     * that change the sound.  The hash code only depends on these values,
+     * so equal options always find the same entry.
+     */
+    private static class RenderKey {
+        private final MidiFile file;
+        private final boolean[] tracks;
+        private final boolean[] mute;
+        private final int[] instruments;
+        private final boolean useDefaultInstruments;
+        private final int transpose;
+        private final int tempo;
+        private final int pauseTime;
+        private final int endTime;
+        private final int hash;
+
+        RenderKey(MidiFile file, MidiOptions options) {
+            this.file = file;
+            tracks = options.tracks == null ? null : options.tracks.clone();
+            mute = options.mute == null ? null : options.mute.clone();
+            instruments = options.instruments == null ? null : options.instruments.clone();
+            useDefaultInstruments = options.useDefaultInstruments;
+            transpose = options.transpose;
+            tempo = options.tempo;
+            pauseTime = options.pauseTime;
+            endTime = options.endTime;
+
+            int h = System.identityHashCode(file);
+            h = 31 * h + Arrays.hashCode(tracks);
+            h = 31 * h + Arrays.hashCode(mute);
+            h = 31 * h + Arrays.hashCode(instruments);
+            h = 31 * h + (useDefaultInstruments ? 1 : 0);
+            h = 31 * h + transpose;
+            h = 31 * h + tempo;
+            h = 31 * h + pauseTime;
+            h = 31 * h + endTime;
+            hash = h;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) {
+                return true;
+            }
+            if (!(o instanceof RenderKey)) {
+                return false;
+            }
+            RenderKey other = (RenderKey) o;
+            return hash == other.hash &&
+                    file == other.file &&
+                    useDefaultInstruments == other.useDefaultInstruments &&
+                    transpose == other.transpose &&
+                    tempo == other.tempo &&
+                    pauseTime == other.pauseTime &&
+                    endTime == other.endTime &&
+                    Arrays.equals(tracks, other.tracks) &&
+                    Arrays.equals(mute, other.mute) &&
+                    Arrays.equals(instruments, other.instruments);
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+    }
+}
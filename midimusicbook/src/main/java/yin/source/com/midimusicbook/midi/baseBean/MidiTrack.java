@@ -1,6 +1,7 @@
 package yin.source.com.midimusicbook.midi.baseBean;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 
 /**
  * @class MidiTrack
@@ -15,6 +16,13 @@ import java.util.ArrayList;
  * The NoteOff() method is called when a NoteOff event is encountered,
  * in order to update the duration of the MidiNote.
  * 当遇到一个NoteOff事件后NoteOff方法被调用,主要是为了更新MidiNote的音长
+ * <p/>
+ * While the track is built from the events, the notes that haven't
+ * ended yet are kept in OpenNotes, so each NoteOff is paired with its
+ * NoteOn in constant time.  Notes that never get a NoteOff end at the
+ * last event of the track.
+ * 由事件创建音轨时，未结束的音符保存在OpenNotes中，每个NoteOff可以直接找到对应的音符，
+ * 到音轨结束仍未关闭的音符在音轨的最后一个事件处结束
  */
 public class MidiTrack {
 
@@ -53,16 +61,20 @@ public class MidiTrack {
         notes = new ArrayList<>(events.size());// midi调子
         instrument = 0;
 
+        OpenNotes openNotes = new OpenNotes();
+        int endTime = 0;
         for (MidiEvent mevent : events) {
+            endTime = mevent.StartTime;
             if (mevent.EventFlag == MidiFile.EventNoteOn && mevent.Velocity > 0) {// 音符开,音符力度大于0
                 MidiNote note = new MidiNote(mevent.StartTime, mevent.Channel, mevent.Notenumber, 0);
                 note.setVelocity(mevent.Velocity);
                 AddNote(note);
+                openNotes.NoteOn(note);
             } else if (mevent.EventFlag == MidiFile.EventNoteOn && mevent.Velocity == 0) {
                 // 音符开，音符力度等于0
-                NoteOff(mevent.Channel, mevent.Notenumber, mevent.StartTime);
+                openNotes.NoteOff(mevent.Channel, mevent.Notenumber, mevent.StartTime);
             } else if (mevent.EventFlag == MidiFile.EventNoteOff) {// 音符关闭的状态
-                NoteOff(mevent.Channel, mevent.Notenumber, mevent.StartTime);
+                openNotes.NoteOff(mevent.Channel, mevent.Notenumber, mevent.StartTime);
             } else if (mevent.EventFlag == MidiFile.EventProgramChange) {// 事件为"乐器"
                 instrument = mevent.Instrument;
             } else if (mevent.Metaevent == MidiFile.MetaEventLyric) {// 事件为"歌词"
@@ -73,6 +85,46 @@ public class MidiTrack {
                 lyrics.add(mevent);
             }
         }
+        openNotes.EndAll(endTime);
+        if (notes.size() > 0 && notes.get(0).getChannel() == 9) {// 如果MidiNotes列表的长度大于零同时通道为9
+            instrument = 128;  /* Percussion */  // 乐器为打击乐器
+        }
+    }
+
+    /**
+     * Create a MidiTrack from a table of Midi events, the same way as
+     * the MidiTrack(ArrayList, int) constructor. // 根据midi事件表创建一个MidiTrack
+     */
+    public MidiTrack(MidiEventTable events, int trackNum) {
+        this.tracknum = trackNum;// 音轨
+        notes = new ArrayList<>(events.size());// midi调子
+        instrument = 0;
+
+        OpenNotes openNotes = new OpenNotes();
+        for (int i = 0; i < events.size(); i++) {
+            byte eventFlag = events.getEventFlag(i);
+            if (eventFlag == MidiFile.EventNoteOn && events.getData2(i) > 0) {// 音符开,音符力度大于0
+                MidiNote note = new MidiNote(events.getTick(i), events.getChannel(i), events.getData1(i), 0);
+                note.setVelocity(events.getData2(i));
+                AddNote(note);
+                openNotes.NoteOn(note);
+            } else if (eventFlag == MidiFile.EventNoteOn && events.getData2(i) == 0) {
+                // 音符开，音符力度等于0
+                openNotes.NoteOff(events.getChannel(i), events.getData1(i), events.getTick(i));
+            } else if (eventFlag == MidiFile.EventNoteOff) {// 音符关闭的状态
+                openNotes.NoteOff(events.getChannel(i), events.getData1(i), events.getTick(i));
+            } else if (eventFlag == MidiFile.EventProgramChange) {// 事件为"乐器"
+                instrument = events.getData1(i);
+            } else if (events.getMetaevent(i) == MidiFile.MetaEventLyric) {// 事件为"歌词"
+                MidiEvent mevent = events.toMidiEvent(i);
+                AddLyric(mevent);
+                if (lyrics == null) {
+                    lyrics = new ArrayList<MidiEvent>();
+                }
+                lyrics.add(mevent);
+            }
+        }
+        openNotes.EndAll(events.size() > 0 ? events.getTick(events.size() - 1) : 0);
         if (notes.size() > 0 && notes.get(0).getChannel() == 9) {// 如果MidiNotes列表的长度大于零同时通道为9
             instrument = 128;  /* Percussion */  // 乐器为打击乐器
         }
@@ -133,6 +185,99 @@ public class MidiTrack {
         }
     }
 
+    /**
+     * @class OpenNotes
+     * The notes of this track that have had a NoteOn but no NoteOff yet.
+     * There is one stack per channel and note number, linked through the
+     * note indexes, so a NoteOff finds the latest open note with the same
+     * pitch without searching the notes list.  Like NoteOff(), a note whose
+     * NoteOff comes at its own start time keeps a duration of 0 and stays
+     * open for the next NoteOff.
+     * 尚未结束的音符，每个通道和音高各有一个栈，音符关事件可以直接找到同音高最近的音符
+     */
+    private class OpenNotes {
+        private final int[] top;
+        /**
+         * For each channel and note number, the index of the latest open note, or -1
+         */
+        private int[] below;
+        /**
+         * For each note, the index of the open note under it on the same stack, or -1
+         */
+        private boolean[] gotNoteOff;
+        /**
+         * For each note, true once a NoteOff was paired with it
+         */
+
+        OpenNotes() {
+            top = new int[16 * 128];
+            Arrays.fill(top, -1);
+            below = new int[64];
+            gotNoteOff = new boolean[64];
+        }
+
+        /**
+         * The given note was just added to the end of the notes list
+         */
+        void NoteOn(MidiNote note) {
+            int index = notes.size() - 1;
+            if (index >= below.length) {
+                below = Arrays.copyOf(below, below.length * 2);
+                gotNoteOff = Arrays.copyOf(gotNoteOff, gotNoteOff.length * 2);
+            }
+            int key = Key(note.getChannel(), note.getNoteNumber());
+            if (key < 0) {
+                below[index] = -1;
+                return;
+            }
+            below[index] = top[key];
+            top[key] = index;
+        }
+
+        /**
+         * End the latest open note with the given channel and note number
+         */
+        void NoteOff(int channel, int notenumber, int endtime) {
+            int key = Key(channel, notenumber);
+            if (key < 0) {
+                /* Not a valid note number, search the notes the slow way */
+                MidiTrack.this.NoteOff(channel, notenumber, endtime);
+                return;
+            }
+            int index = top[key];
+            if (index < 0) {
+                return;
+            }
+            MidiNote note = notes.get(index);
+            note.NoteOff(endtime);
+            gotNoteOff[index] = true;
+            if (note.getDuration() != 0) {
+                top[key] = below[index];
+            }
+        }
+
+        /**
+         * End the notes that never got a NoteOff at the given time
+         */
+        void EndAll(int endtime) {
+            for (int key = 0; key < top.length; key++) {
+                for (int index = top[key]; index >= 0; index = below[index]) {
+                    if (!gotNoteOff[index]) {
+                        notes.get(index).NoteOff(endtime);
+                    }
+                }
+                top[key] = -1;
+            }
+        }
+
+        private int Key(int channel, int notenumber) {
+            if (channel < 0 || channel >= 16 || notenumber < 0 || notenumber >= 128) {
+                return -1;
+            }
+            return channel * 128 + notenumber;
+        }
+    }
+
     /**
      * Add a lyric event to this track
      */
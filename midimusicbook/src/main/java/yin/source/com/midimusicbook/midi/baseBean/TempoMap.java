@@ -0,0 +1,199 @@
+package yin.source.com.midimusicbook.midi.baseBean;
+
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * @class TempoMap
+ * The TempoMap converts between pulses and real time, following every
+ * tempo change in the song instead of one average tempo.
+ * TempoMap根据歌曲中的每一次速度变化(而不是平均速度)在脉冲和实际时间之间换算
+ * <p/>
+ * The song is divided into segments, one per tempo change.  For each
+ * segment the map keeps the start pulse, the tempo, and the sum of
+ * (pulses * tempo) of all the segments before it, so both conversions
+ * are a binary search over the segments plus one multiplication.
+ * 歌曲按速度变化分成若干段，每段保存起始脉冲、速度以及之前所有段的(脉冲*速度)之和，
+ * 两个方向的换算都只需要一次二分查找
+ * <p/>
+ * Before the first tempo event the tempo is 500,000 microseconds per
+ * quarter note (120 beats per minute), as in the midi specification.
+ */
+public class TempoMap {
+
+    /**
+     * The tempo used before the first tempo event, in microseconds per quarter note
+     */
+    public static final int DefaultTempo = 500000;
+
+    private int quarter;
+    /**
+     * The number of pulses per quarter note // 每个四分音符的脉冲数
+     */
+    private int[] ticks;
+    /**
+     * The start of each segment, in pulses // 每段的起始脉冲
+     */
+    private int[] tempos;
+    /**
+     * The tempo of each segment, in microseconds per quarter note // 每段的速度
+     */
+    private long[] sums;
+    /**
+     * The start of each segment as pulses * tempo, which is the time in
+     * microseconds multiplied by the quarter note // 每段起始时间(微秒)乘以quarter
+     */
+    private int count;
+
+    /**
+     * Create the tempo map of the given tracks.  Tempo events from all the
+     * tracks are merged.  If several tempo events have the same start time,
+     * the last one (in track order) is used.
+     */
+    public TempoMap(List<MidiEventTable> tracks, int quarter) {
+        this.quarter = Math.max(quarter, 1);
+
+        /* Collect the tempo events, sorted by time, keeping the track order */
+        int total = 0;
+        for (MidiEventTable events : tracks) {
+            for (int i = 0; i < events.size(); i++) {
+                if (events.getMetaevent(i) == MidiFile.MetaEventTempo) {
+                    total++;
+                }
+            }
+        }
+        long[] keys = new long[total];
+        int[] values = new int[total];
+        int n = 0;
+        for (MidiEventTable events : tracks) {
+            for (int i = 0; i < events.size(); i++) {
+                if (events.getMetaevent(i) == MidiFile.MetaEventTempo) {
+                    keys[n] = ((long) events.getTick(i) << 32) | n;
+                    values[n] = events.getTempo(i);
+                    n++;
+                }
+            }
+        }
+        Arrays.sort(keys);
+
+        ticks = new int[total + 1];
+        tempos = new int[total + 1];
+        sums = new long[total + 1];
+        ticks[0] = 0;
+        tempos[0] = DefaultTempo;
+        sums[0] = 0;
+        count = 1;
+        for (long key : keys) {
+            int tick = (int) (key >>> 32);
+            int tempo = values[(int) key];
+            if (tempo <= 0) {
+                continue;
+            }
+            int last = count - 1;
+            if (tick == ticks[last]) {
+                tempos[last] = tempo;
+            } else {
+                ticks[count] = tick;
+                tempos[count] = tempo;
+                sums[count] = sums[last] + (long) (tick - ticks[last]) * tempos[last];
+                count++;
+            }
+        }
+    }
+
+    /**
+     * Create the tempo map of a song played at one tempo, in microseconds
+     * per quarter note, e.g. a song rendered with MidiOptions.tempo,
+     * which replaces all its tempo events.
+     */
+    public TempoMap(int tempo, int quarter) {
+        this.quarter = Math.max(quarter, 1);
+        ticks = new int[]{0};
+        tempos = new int[]{tempo > 0 ? tempo : DefaultTempo};
+        sums = new long[]{0};
+        count = 1;
+    }
+
+    /**
+     * Return the index of the segment containing the given pulse time
+     */
+    private int segmentOfTick(double tick) {
+        int low = 0;
+        int high = count - 1;
+        while (low < high) {
+            int mid = (low + high + 1) >>> 1;
+            if (ticks[mid] <= tick) {
+                low = mid;
+            } else {
+                high = mid - 1;
+            }
+        }
+        return low;
+    }
+
+    /**
+     * Return the index of the segment containing the given time, as
+     * microseconds * quarter
+     */
+    private int segmentOfSum(double sum) {
+        int low = 0;
+        int high = count - 1;
+        while (low < high) {
+            int mid = (low + high + 1) >>> 1;
+            if (sums[mid] <= sum) {
+                low = mid;
+            } else {
+                high = mid - 1;
+            }
+        }
+        return low;
+    }
+
+    /**
+     * Return the time of the given pulse, in microseconds from the start of the song
+     */
+    public long tickToMicros(int tick) {
+        int seg = segmentOfTick(tick);
+        return (sums[seg] + (long) (tick - ticks[seg]) * tempos[seg]) / quarter;
+    }
+
+    /**
+     * Return the time of the given pulse, in milliseconds from the start of the song
+     */
+    public int tickToMillis(int tick) {
+        return (int) (tickToMicros(tick) / 1000);
+    }
+
+    /**
+     * Return the pulse time (with a fraction) that is the given number of
+     * microseconds from the start of the song
+     */
+    public double microsToTick(long micros) {
+        double sum = (double) micros * quarter;
+        int seg = segmentOfSum(sum);
+        return ticks[seg] + (sum - sums[seg]) / tempos[seg];
+    }
+
+    /**
+     * Return the tempo at the given pulse time, in microseconds per quarter note
+     */
+    public int getTempoAt(int tick) {
+        return tempos[segmentOfTick(tick)];
+    }
+
+    /**
+     * Return the number of tempo segments
+     */
+    public int size() {
+        return count;
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder result = new StringBuilder("TempoMap{quarter=" + quarter);
+        for (int i = 0; i < count; i++) {
+            result.append(", ").append(ticks[i]).append(':').append(tempos[i]);
+        }
+        return result.append('}').toString();
+    }
+}
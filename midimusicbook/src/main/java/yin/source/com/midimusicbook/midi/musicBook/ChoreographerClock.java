@@ -0,0 +1,55 @@
+package yin.source.com.midimusicbook.midi.musicBook;
+
+import android.view.Choreographer;
+
+/**
+ * @class ChoreographerClock
+ * A PlaybackClock driven by the Choreographer, so the callback runs on
+ * every vsync of the display, on the thread that started the clock.
+ * That thread must have a Looper (e.g. the main thread).
+ * 由Choreographer驱动的PlaybackClock，每次屏幕垂直同步时在启动时钟的线程上回调
+ */
+public class ChoreographerClock implements PlaybackClock, Choreographer.FrameCallback {
+
+    private Choreographer choreographer;
+    private FrameCallback callback;
+    /**
+     * The callback to call on each frame, or null when stopped // 每帧调用的回调，停止时为null
+     */
+
+    @Override
+    public void start(FrameCallback callback) {
+        boolean running = this.callback != null;
+        this.callback = callback;
+        if (!running) {
+            if (choreographer == null) {
+                choreographer = Choreographer.getInstance();
+            }
+            choreographer.postFrameCallback(this);
+        }
+    }
+
+    @Override
+    public void stop() {
+        if (callback != null) {
+            callback = null;
+            choreographer.removeFrameCallback(this);
+        }
+    }
+
+    @Override
+    public long nanoTime() {
+        return System.nanoTime();
+    }
+
+    @Override
+    public void doFrame(long frameTimeNanos) {
+        FrameCallback current = callback;
+        if (current == null) {
+            return;
+        }
+        /* Post the next frame first, so the callback can stop the clock */
+        choreographer.postFrameCallback(this);
+        current.doFrame(frameTimeNanos);
+    }
+}
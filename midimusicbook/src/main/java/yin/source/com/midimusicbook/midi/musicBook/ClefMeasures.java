@@ -56,7 +56,7 @@ public class ClefMeasures {
             /* Sum all the notes in the current measure */
             int sumnotes = 0;
             int notecount = 0;
-            while (pos < notes.size() && notes.get(pos).getStartTimeInMilliSecond() < nextmeasure) {
+            while (pos < notes.size() && notes.get(pos).getPulsesOfStartTime() < nextmeasure) {
                 sumnotes += notes.get(pos).getNoteNumber();
                 notecount++;
                 pos++;
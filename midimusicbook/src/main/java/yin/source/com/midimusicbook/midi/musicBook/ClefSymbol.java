@@ -56,7 +56,7 @@ public class ClefSymbol implements MusicSymbol {
      * Set the Treble/Bass clef images into memory.
      * 将高音谱和低音的谱号图片放进内存
      */
-    public static void LoadImages(Context context) {
+    public static synchronized void LoadImages(Context context) {
         if (treble == null || bass == null) {
             Resources res = context.getResources();
             treble = BitmapFactory.decodeResource(res, R.drawable.treble);
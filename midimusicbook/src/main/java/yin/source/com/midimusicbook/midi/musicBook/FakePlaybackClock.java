@@ -0,0 +1,83 @@
+package yin.source.com.midimusicbook.midi.musicBook;
+
+/**
+ * @class FakePlaybackClock
+ * A PlaybackClock whose time only moves when advance() is called, with
+ * one frame every frameNanos.  Each frame's callback can be made to run
+ * late, to check how the player copes with a busy main thread.
+ * 只有调用advance()时时间才会前进的PlaybackClock，每frameNanos一帧。
+ * 可以让回调延迟执行，用来检查主线程繁忙时播放器的表现
+ * <p/>
+ * Usage:
+ * FakePlaybackClock clock = new FakePlaybackClock(16666667);
+ * player.setPlaybackClock(clock);
+ * player.play();
+ * clock.advance(2000000000L);  // two seconds of frames
+ */
+public class FakePlaybackClock implements PlaybackClock {
+
+    private final long frameNanos;
+    private long now;
+    private long nextFrame;
+    /**
+     * The current time, and the start of the next frame, in nanoseconds
+     */
+    private long callbackDelay;
+    /**
+     * How long after the start of a frame its callback runs // 回调在帧开始后延迟多久执行
+     */
+    private FrameCallback callback;
+    private long frames;
+
+    public FakePlaybackClock(long frameNanos) {
+        this.frameNanos = frameNanos;
+    }
+
+    @Override
+    public void start(FrameCallback callback) {
+        if (this.callback == null) {
+            nextFrame = (now / frameNanos + 1) * frameNanos;
+        }
+        this.callback = callback;
+    }
+
+    @Override
+    public void stop() {
+        callback = null;
+    }
+
+    @Override
+    public long nanoTime() {
+        return now;
+    }
+
+    /**
+     * Run the callbacks of the next frames after the given delay, in nanoseconds
+     */
+    public void setCallbackDelay(long callbackDelay) {
+        this.callbackDelay = callbackDelay;
+    }
+
+    /**
+     * Move the time forward by the given nanoseconds, calling the
+     * callback for every frame started on the way
+     */
+    public void advance(long nanos) {
+        long end = now + nanos;
+        while (callback != null && nextFrame + callbackDelay <= end) {
+            long frameTime = nextFrame;
+            nextFrame += frameNanos;
+            now = frameTime + callbackDelay;
+            frames++;
+            callback.doFrame(frameTime);
+        }
+        now = end;
+    }
+
+    /**
+     * Return the number of frames whose callback was called
+     */
+    public long getFrameCount() {
+        return frames;
+    }
+}
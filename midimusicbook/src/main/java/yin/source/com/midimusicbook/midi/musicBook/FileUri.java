@@ -13,18 +13,15 @@
 package yin.source.com.midimusicbook.midi.musicBook;
 
 import android.app.Activity;
-import android.content.ContentResolver;
-import android.content.res.AssetManager;
 import android.net.Uri;
 
 import org.json.JSONException;
 import org.json.JSONObject;
 
-import java.io.FileInputStream;
 import java.io.InputStream;
 import java.util.Comparator;
 
-import yin.source.com.midimusicbook.exception.MidiFileException;
+import yin.source.com.midimusicbook.utils.IOUtil;
 
 /**
  * @class FileUri
@@ -104,56 +101,14 @@ public class FileUri implements Comparator<FileUri> {
      * If any IO error occurs, return null. 如果IO异常出现，返回null
      */
     public byte[] getData(Activity activity) {
+        InputStream file = null;
         try {
-            byte[] data;
-            int totallen, len, offset;
-
-            // First, determine the file length
-            data = new byte[4096];
-            InputStream file;
-            String uriString = uri.toString();
-            if (uriString.startsWith("file:///android_asset/")) {
-                AssetManager asset = activity.getResources().getAssets();
-                String filepath = uriString.replace("file:///android_asset/", "");
-                file = asset.open(filepath);
-            } else if (uriString.startsWith("content://")) {
-                ContentResolver resolver = activity.getContentResolver();
-                file = resolver.openInputStream(uri);
-            } else {
-                file = new FileInputStream(uri.getPath());
-            }
-            totallen = 0;
-            len = file.read(data, 0, 4096);
-            while (len > 0) {
-                totallen += len;
-                len = file.read(data, 0, 4096);
-            }
-            file.close();
-
-            // Now read in the data
-            offset = 0;
-            data = new byte[totallen];
-
-            if (uriString.startsWith("file:///android_asset/")) {
-                AssetManager asset = activity.getResources().getAssets();
-                String filepath = uriString.replace("file:///android_asset/", "");
-                file = asset.open(filepath);
-            } else if (uriString.startsWith("content://")) {
-                ContentResolver resolver = activity.getContentResolver();
-                file = resolver.openInputStream(uri);
-            } else {
-                file = new FileInputStream(uri.getPath());
-            }
-            while (offset < totallen) {
-                len = file.read(data, offset, totallen - offset);
-                if (len <= 0) {
-                    throw new MidiFileException("Error reading midi file", offset);
-                }
-                offset += len;
-            }
-            return data;
+            file = IOUtil.getInputStreamByUri(uri, activity);
+            return IOUtil.getBytesData(file);
         } catch (Exception e) {
             return null;
+        } finally {
+            IOUtil.closeQuietly(file);
         }
     }
 
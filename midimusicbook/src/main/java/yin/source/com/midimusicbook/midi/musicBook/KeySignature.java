@@ -56,6 +56,10 @@ public class KeySignature {
      * given key.  In a nutshel, the map is
      * <p/>
      * map[Key][NoteScale] -> Accidental
+     * <p/>
+     * They are created once, by the first KeySignature.  Every use goes
+     * through CreateAccidentalMaps(), which is synchronized, so the
+     * layout threads never see them half filled.
      */
     private static Accid[][] sharpkeys;
     private static Accid[][] flatkeys;
@@ -160,7 +164,7 @@ public class KeySignature {
     /**
      * Iniitalize the sharpkeys and flatkeys maps
      */
-    private static void CreateAccidentalMaps() {
+    private static synchronized void CreateAccidentalMaps() {
         if (sharpkeys != null)
             return;
 
@@ -377,6 +381,16 @@ public class KeySignature {
     }
 
 
+    /**
+     * Return a new key signature with the same sharps and flats, and its
+     * own key map.  GetAccidental() changes the key map, so the tracks
+     * laid out on different threads each use their own copy.
+     * 返回一个相同的音调符号，拥有独立的keymap，供不同线程上的音轨分别使用
+     */
+    public KeySignature Clone() {
+        return new KeySignature(num_sharps, num_flats);
+    }
+
     /**
      * Create the Accidental symbols for this key, for
      * the treble and bass clefs.
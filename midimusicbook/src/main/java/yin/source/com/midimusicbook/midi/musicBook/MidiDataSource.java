@@ -0,0 +1,47 @@
+package yin.source.com.midimusicbook.midi.musicBook;
+
+import android.annotation.TargetApi;
+import android.media.MediaDataSource;
+import android.os.Build;
+
+/**
+ * @class MidiDataSource
+ * The MidiDataSource lets the MediaPlayer read a midi file that was
+ * rendered in memory (see MidiFileWriter), so playing doesn't have to
+ * write a temporary file and open it again.
+ * MidiDataSource让MediaPlayer直接读取内存中生成的midi文件，播放时不需要先写入临时文件再打开
+ * <p/>
+ * MediaDataSource needs API level 23.  On older devices the MidiPlayer
+ * still plays from a temporary file.
+ */
+@TargetApi(Build.VERSION_CODES.M)
+public class MidiDataSource extends MediaDataSource {
+
+    private final byte[] data;
+    /**
+     * The midi file.  It must not change while the MediaPlayer uses it.
+     */
+
+    public MidiDataSource(byte[] data) {
+        this.data = data;
+    }
+
+    @Override
+    public int readAt(long position, byte[] buffer, int offset, int size) {
+        if (position >= data.length) {
+            return -1;
+        }
+        int amount = (int) Math.min(size, data.length - position);
+        System.arraycopy(data, (int) position, buffer, offset, amount);
+        return amount;
+    }
+
+    @Override
+    public long getSize() {
+        return data.length;
+    }
+
+    @Override
+    public void close() {
+    }
+}
@@ -15,8 +15,8 @@ package yin.source.com.midimusicbook.midi.musicBook;
 import android.content.Context;
 import android.graphics.Point;
 import android.media.MediaPlayer;
+import android.os.Build;
 import android.os.Handler;
-import android.os.SystemClock;
 import android.util.Log;
 import android.widget.Toast;
 
@@ -25,10 +25,17 @@ import java.io.FileOutputStream;
 import java.io.IOException;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 
 import yin.source.com.midimusicbook.exception.MidiFileException;
+import yin.source.com.midimusicbook.midi.baseBean.MidiEventTable;
 import yin.source.com.midimusicbook.midi.baseBean.MidiFile;
 import yin.source.com.midimusicbook.midi.baseBean.MidiOptions;
+import yin.source.com.midimusicbook.midi.baseBean.MidiRenderCache;
+import yin.source.com.midimusicbook.midi.baseBean.TempoMap;
 
 /**
  * @class MidiPlayer
@@ -44,13 +51,47 @@ import yin.source.com.midimusicbook.midi.baseBean.MidiOptions;
  * What instruments to use per track - The tempo (from the Speed bar) -
  * The volume
  * <p/>
- * The MidiFile.ChangeSound() method is used to create a new midi file
- * with these options. The mciSendString() function is used for playing,
+ * The MidiFile.Write() method is used to create a new midi file
+ * with these options, encoded in memory.  The MediaPlayer reads it
+ * through a MidiDataSource (or a temporary file before API level 23). The mciSendString() function is used for playing,
  * pausing, and stopping the sound.
  * <p/>
+ * The whole song is rendered once, and playing from another position
+ * (resume, Rewind, FastForward, MoveToClicked) seeks the MediaPlayer to
+ * the time of that pulse, using MidiFile.getPlaybackTempoMap().
+ * While seeking, the midi engine replays the program changes and
+ * controllers before the position without sounding the notes, so the
+ * instruments and controllers are the same as playing from the start.
+ * For an engine that doesn't, setSeekChasesState(false) renders a file
+ * starting at the position instead, with that state moved to its start
+ * (a prelude), when the song changes its state before the position.
+ * 整首歌只生成一次，从其他位置播放时MediaPlayer按TempoMap定位到对应的时间
+ * <p/>
+ * To play measures in a loop, only the loop is rendered, ending exactly
+ * at the end of its last measure, and the MediaPlayer repeats it
+ * (setLooping), so there is no gap between two repeats.  The shading
+ * time wraps around with it.
+ * 循环播放时只生成循环的小节，由MediaPlayer重复播放，两次之间没有间隔
+ * <p/>
  * For shading the notes during playback, the method
  * SheetMusic.ShadeNotes() is used. It takes the current 'pulse time',
  * and determines which notes to shade.
+ * <p/>
+ * The pulse time is computed on every frame of a PlaybackClock (the
+ * display's vsync by default), and the callbacks are only called when
+ * the shaded notes change (see ShadeTimeline and ShadeDecision).  The
+ * time since the music started is corrected with the position of the
+ * MediaPlayer, so the shading doesn't drift away from the sound (see
+ * PlaybackSync).
+ * 每帧计算一次当前节拍，只有标记的音符发生变化时才回调。经过的时间用MediaPlayer的位置修正
+ * <p/>
+ * The playback speed (setSpeed()) is changed with the MediaPlayer's
+ * PlaybackParams when it supports them, so the rendered file stays the
+ * same and the new speed is heard and shaded from the next frame.
+ * Otherwise the speed is rendered into the file: the rest of the song is
+ * rendered at the new tempo in the background, and the sound switches
+ * to it when it is ready.
+ * 播放速度优先通过MediaPlayer的PlaybackParams改变，不需要重新生成文件；不支持时在后台按新速度生成歌曲剩余的部分
  */
 public class MidiPlayer implements MidiPlayController {
 
@@ -76,17 +117,66 @@ public class MidiPlayer implements MidiPlayController {
     /**
      * The sound options for playing the midi file // 播放设置选项
      */
-    private double pulsesPerMsec;
+    public static final int MinSpeed = 25;
+    public static final int MaxSpeed = 200;
+
+    private double tempoScale;
+    /**
+     * The tempo of the rendered file divided by the tempo of the song // 生成文件的速度与歌曲速度之比
+     */
+    private int speed = 100;
     /**
-     * The number of pulses per millisec // 每毫秒的节拍数
+     * The playback speed, in percent of the song's tempo // 播放速度(歌曲速度的百分比)
+     */
+    private double playbackRate = 1;
+    private double rateStartMillis;
+    private double rateStartFileMillis;
+    /**
+     * The rate the MediaPlayer plays the rendered file at (1 when the
+     * speed is rendered into the file), and the msec since the music
+     * started, and in the file, when that rate was set // MediaPlayer播放生成文件的速率，以及设置该速率时经过的时间和文件中的时间
+     */
+    private boolean rateSupported = Build.VERSION.SDK_INT >= Build.VERSION_CODES.M;
+    /**
+     * False if the MediaPlayer can't change its rate, so the speed is
+     * rendered into the file instead // MediaPlayer不支持改变速率时为false，速度写入生成的文件
+     */
+    private volatile int speedRequest;
+    /**
+     * Counts the speed changes, so that a file rendered in the background
+     * for an older speed is dropped // 速度改变的次数，用来丢弃为旧速度在后台生成的文件
+     */
+    private long startMicros;
+    /**
+     * The time of startPulseTime in the song, in microseconds, at the
+     * song's own tempo // 按歌曲本身的速度，startPulseTime对应的微秒数
+     */
+    private long loopStartMicros;
+    private long loopMicros;
+    /**
+     * When playing measures in a loop, the start and length of the loop
+     * in the song, in microseconds at the song's own tempo.  loopMicros
+     * is 0 when not looping. // 循环播放时循环的开始时间和长度(微秒)，不循环时loopMicros为0
      */
     private Handler timer;
     /**
-     * Timer used to update the sheet music while playing // 正在播放时用来更新乐谱的计时器
+     * Timer used to start playing after a delay // 用来延迟开始播放的计时器
+     */
+    private PlaybackClock clock;
+    /**
+     * Calls frameCallback once per frame while playing, to update the
+     * sheet music and piano // 播放时每帧回调一次，用来更新乐谱和钢琴
+     */
+    private long startNanos;
+    /**
+     * Time on the clock when music started playing (nanoseconds) // 音乐开始播放时时钟上的时间(纳秒)
      */
-    private long startTime;
+    private final PlaybackSync sync = new PlaybackSync();
+    private long syncSampleNanos;
+    private static final long SyncSampleIntervalNanos = 200000000L;
     /**
-     * Absolute time when music started playing (msec) // 当音乐开始播放时的绝对时间（单位微秒）
+     * Corrects the time since the music started with the position of the
+     * MediaPlayer, sampled every 200 msec // 每200毫秒采样MediaPlayer的位置，修正音乐开始后经过的时间
      */
     private double startPulseTime;
     /**
@@ -100,6 +190,74 @@ public class MidiPlayer implements MidiPlayController {
     /**
      * Time (in pulses) music was last at // 当前音乐的前一个节拍
      */
+    private double shadedPulseTime;
+    /**
+     * Time (in pulses) the notes were last shaded at // 上次标记音符时的节拍
+     */
+    private final ShadeDecision shadeDecision = new ShadeDecision();
+    /**
+     * Decides in each frame whether the shading changed, see ShadeDecision // 每帧决定是否需要重新标记
+     */
+    private ShadeTimeline shadeTimeline;
+    /**
+     * The times where the shaded notes change, or null if not created yet // 标记的音符发生变化的时间
+     */
+    private final PlaybackClockStats clockStats = new PlaybackClockStats();
+    private final MidiRenderCache renderCache = new MidiRenderCache();
+    /**
+     * The midi files already rendered for playing, see CreateMidiFile() // 已生成的播放用midi文件
+     */
+    private final ThreadPoolExecutor renderExecutor = new ThreadPoolExecutor(0, 1, 10, TimeUnit.SECONDS,
+            new ArrayBlockingQueue<Runnable>(1), new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable runnable) {
+                    return new Thread(runnable, "MidiPlayer render");
+                }
+            }, new ThreadPoolExecutor.DiscardOldestPolicy());
+    /**
+     * Renders the speed changes in the background, one at a time.  Only
+     * the latest request waits, the older ones are dropped, and the
+     * thread ends when idle. // 在后台逐个生成改变速度后的文件，只保留最新的等待请求
+     */
+    private byte[] soundData;
+    /**
+     * The midi file to play, with the options applied // 应用了设置后要播放的midi文件
+     */
+    private byte[] preparedData;
+    /**
+     * The midi file the MediaPlayer has prepared, or null // MediaPlayer已准备好的midi文件
+     */
+    private int seekMillis;
+    /**
+     * The time in the rendered file to start playing at, in msec // 在生成的文件中开始播放的时间(毫秒)
+     */
+    private boolean seekPending;
+    /**
+     * True while the MediaPlayer seeks, before the sound starts // 正在定位，声音尚未开始
+     */
+    private boolean seekChasesState = true;
+    /**
+     * False if the midi engine doesn't replay the program changes and
+     * controllers before the seek position // 定位时midi引擎是否会处理之前的音色和控制器事件
+     */
+    private int firstStateTick = -1;
+    /**
+     * The time of the first event that changes a channel's state, or -1
+     * if not known yet, see FirstStateTick() // 第一个改变通道状态的事件的时间
+     */
+    private int startKind;
+    private long renderNanos;
+    private long prepareNanos;
+    private long seekStartNanos;
+    /**
+     * How the sound is being started, and the time of each step, for
+     * seekMetrics // 本次开始播放的方式和各步骤所用的时间
+     */
+    private final MidiSeekMetrics seekMetrics = new MidiSeekMetrics();
+    private boolean verifySound;
+    /**
+     * If true, parse every rendered midi file again to check it (for debugging) // 调试用，重新解析生成的midi文件进行检查
+     */
     private Context context;
     private List<MidiPlayerCallback> midiPlayerCallbackList;
     /**
@@ -143,25 +301,26 @@ public class MidiPlayer implements MidiPlayController {
                             * midifile.getTime().getMeasure();
                 }
                 startPulseTime = currentPulseTime;
-                options.pauseTime = (int) (currentPulseTime - options.shifttime);
             } else if (playState == PlayState.PAUSED) {
                 startPulseTime = currentPulseTime;
-                options.pauseTime = (int) (currentPulseTime - options.shifttime);
             } else {
-                options.pauseTime = 0;
                 startPulseTime = options.shifttime;
                 currentPulseTime = options.shifttime;
                 prevPulseTime = options.shifttime
                         - midifile.getTime().getQuarter();
             }
-            CreateMidiFile();
+            CreateMidiFile((int) startPulseTime - options.shifttime);
+            if (shadeTimeline == null) {
+                shadeTimeline = new ShadeTimeline(midifile.ChangeMidiNotes(options),
+                        midifile.getTime().getQuarter() * 2);
+            }
             playState = PlayState.PLAYING;
-            PlaySound(tempSoundFile);
-            startTime = SystemClock.uptimeMillis();
+            startNanos = clock.nanoTime();
+            PlaySound();
 
-            timer.removeCallbacks(TimerCallback);
             timer.removeCallbacks(ReShade);
-            timer.postDelayed(TimerCallback, 100);
+            clockStats.start();
+            clock.start(frameCallback);
 
             if (midiPlayerCallbackList != null) {
                 for (MidiPlayerCallback midiPlayerCallback : midiPlayerCallbackList) {
@@ -170,6 +329,8 @@ public class MidiPlayer implements MidiPlayController {
                     midiPlayerCallback.onPianoNeedShadeNotes((int) currentPulseTime, (int) prevPulseTime);
                 }
             }
+            shadedPulseTime = currentPulseTime;
+            shadeDecision.shaded(shadeTimeline.segmentOf(currentPulseTime), startNanos);
 
 //            sheet.ShadeNotes((int) currentPulseTime, (int) prevPulseTime, SheetMusic.GradualScroll);
 //            piano.ShadeNotes((int) currentPulseTime, (int) prevPulseTime);
@@ -177,58 +338,81 @@ public class MidiPlayer implements MidiPlayController {
         }
     };
     /**
-     * The callback for the timer. If the midi is still playing, update the
-     * currentPulseTime and shade the sheet music. If a stop or pause has been
-     * initiated (by someone clicking the stop or pause button), then stop the
-     * timer.
+     * The callback for each frame of the clock. If the midi is still
+     * playing, update the currentPulseTime, and shade the sheet music and
+     * piano if the shaded notes changed. If a stop or pause has been
+     * initiated (by someone clicking the stop or pause button), then stop
+     * the clock.
      */
-    Runnable TimerCallback = new Runnable() {
-        public void run() {
+    PlaybackClock.FrameCallback frameCallback = new PlaybackClock.FrameCallback() {
+        public void doFrame(long frameTimeNanos) {
             if (midifile == null) {
                 playState = PlayState.STOPPED;
+                clock.stop();
                 return;
             } else if (playState == PlayState.STOPPED || playState == PlayState.PAUSED) {
                 /* This case should never happen */
+                clock.stop();
                 return;
             } else if (playState == PlayState.INIT_STOP) {
+                clock.stop();
                 return;
             } else if (playState == PlayState.PLAYING) {
-                long msec = SystemClock.uptimeMillis() - startTime;
-                Log.i("MidiPlayer--msec", msec + "");
-                prevPulseTime = currentPulseTime;
-                currentPulseTime = startPulseTime + msec * pulsesPerMsec;
-                Log.i("MidiPlayer--current", currentPulseTime + "");
-                /* If we're playing in a loop, stop and restart */
-                if (options.playMeasuresInLoop) {
-                    double nearEndTime = currentPulseTime + pulsesPerMsec * 10;
-                    int measure = (int) (nearEndTime / midifile.getTime().getMeasure());
-                    if (measure > options.playMeasuresInLoopEnd) {
-                        RestartPlayMeasuresInLoop();
-                        return;
+                clockStats.addFrame(frameTimeNanos, clock.nanoTime());
+                if (seekPending) {
+                    /* The sound starts when the seek is complete */
+                    return;
+                }
+                SampleSoundPosition();
+                double msec = Math.max(0, sync.positionAt(frameTimeNanos));
+                double pulseTime = PulseTimeAfter(msec);
+                /* If the loop started again, remove the shading at its end */
+                if (loopMicros > 0 && pulseTime < currentPulseTime) {
+                    if (midiPlayerCallbackList != null) {
+                        for (MidiPlayerCallback midiPlayerCallback : midiPlayerCallbackList) {
+                            midiPlayerCallback.onSheetNeedShadeNotes(-10, (int) shadedPulseTime, MusicBook.DontScroll);
+                            midiPlayerCallback.onPianoNeedShadeNotes(-10, (int) shadedPulseTime);
+                        }
                     }
+                    shadedPulseTime = -1;
+                    shadeDecision.clear();
                 }
+                currentPulseTime = pulseTime;
 
                 /* stop if we've reached the end of the song */
                 if (currentPulseTime > midifile.getTotalPulses()) {
                     DoStop();
                     return;
                 }
+
+                /* Shade only if the shaded notes changed, or to keep scrolling */
+                int shade = shadeDecision.frame(shadeTimeline.segmentOf(currentPulseTime), frameTimeNanos);
+                if (shade == ShadeDecision.DontShade) {
+                    return;
+                }
+                if (shadeDecision.advanced()) {
+                    clockStats.addShade(ShadeLagNanos(shadeDecision.getShadedSegment()));
+                }
+                prevPulseTime = shadedPulseTime;
                 if (midiPlayerCallbackList != null) {
                     for (MidiPlayerCallback midiPlayerCallback : midiPlayerCallbackList) {
                         midiPlayerCallback.onSheetNeedShadeNotes((int) currentPulseTime, (int) prevPulseTime, MusicBook.GradualScroll);
-                        midiPlayerCallback.onPianoNeedShadeNotes((int) currentPulseTime, (int) prevPulseTime);
+                        if (shade == ShadeDecision.ShadeSheetAndPiano) {
+                            midiPlayerCallback.onPianoNeedShadeNotes((int) currentPulseTime, (int) prevPulseTime);
+                        }
                     }
                 }
 //                sheet.ShadeNotes((int) currentPulseTime, (int) prevPulseTime, SheetMusic.GradualScroll);
 //                piano.ShadeNotes((int) currentPulseTime, (int) prevPulseTime);
-                timer.postDelayed(TimerCallback, 100);
+                shadedPulseTime = currentPulseTime;
                 return;
             } else if (playState == PlayState.INIT_PAUSE) {
-                long msec = SystemClock.uptimeMillis() - startTime;
-                StopSound();
+                double msec = seekPending ? 0 : Math.max(0, sync.positionAt(clock.nanoTime()));
+                PauseSound();
+                clock.stop();
 
-                prevPulseTime = currentPulseTime;
-                currentPulseTime = startPulseTime + msec * pulsesPerMsec;
+                prevPulseTime = shadedPulseTime;
+                currentPulseTime = PulseTimeAfter(msec);
 
                 if (midiPlayerCallbackList != null) {
                     for (MidiPlayerCallback midiPlayerCallback : midiPlayerCallbackList) {
@@ -246,14 +430,22 @@ public class MidiPlayer implements MidiPlayController {
     public MidiPlayer(Context context) {
         this.context = context;
         playState = PlayState.STOPPED;
-        startTime = SystemClock.uptimeMillis();
         startPulseTime = 0;
         currentPulseTime = 0;
         prevPulseTime = -10;
 
         timer = new Handler();
+        clock = new ChoreographerClock();
 
         player = new MediaPlayer();
+        player.setOnSeekCompleteListener(new MediaPlayer.OnSeekCompleteListener() {
+            @Override
+            public void onSeekComplete(MediaPlayer mp) {
+                if (seekPending && playState == PlayState.PLAYING) {
+                    StartSound();
+                }
+            }
+        });
     }
 
     /**
@@ -293,12 +485,18 @@ public class MidiPlayer implements MidiPlayController {
              * We have to wait some time (200 msec) for the sheet music to
              * scroll and redraw, before we can re-shade.
              */
-            timer.removeCallbacks(TimerCallback);
+            shadeTimeline = null;
+            clock.stop();
             timer.postDelayed(ReShade, 500);
         } else {
             stop();
+            if (file != midifile) {
+                renderCache.clear();
+                firstStateTick = -1;
+            }
             midifile = file;
             options = opt;
+            shadeTimeline = null;
         }
     }
 
@@ -317,57 +515,179 @@ public class MidiPlayer implements MidiPlayController {
     }
 
     /**
-     * Create a new midi file with all the MidiOptions incorporated. Save the
-     * new file to playing.mid, and store this temporary filename in
-     * tempSoundFile. // 使用所有的设置创建一个新的midi文件,保存新的文件为play
+     * Create the midi file to play from the given pulse (without the shift
+     * time), with all the MidiOptions incorporated, in soundData.  This is
+     * normally the whole song, so it is rendered once and then found in
+     * the cache, and seekMillis is the time of the pulse in it.  A file
+     * starting at the pulse is rendered instead if the pulse is before the
+     * start, or if a prelude is needed (see setSeekChasesState()).  When
+     * playing measures in a loop, the file holds the loop only.  The
+     * speed is rendered into the file only if the MediaPlayer can't
+     * change its rate.
+     * 使用所有的设置创建要播放的midi文件。通常是整首歌，只生成一次并缓存，seekMillis为该节拍在文件中的时间
      */
-    private void CreateMidiFile() {
-        double inverse_tempo = 1.0 / midifile.getTime().getTempo();
-//        double inverse_tempo_scaled = inverse_tempo * speedBar.getProgress() / 100.0;
-        double inverse_tempo_scaled = inverse_tempo;
-        // double inverse_tempo_scaled = inverse_tempo * 100.0 / 100.0;
-        options.tempo = (int) (1.0 / inverse_tempo_scaled);
-        pulsesPerMsec = midifile.getTime().getQuarter() * (1000.0 / options.tempo);
-        try {
-            FileOutputStream dest = context.openFileOutput(tempSoundFile, Context.MODE_PRIVATE);
-            midifile.ChangeSound(dest, options);
-            dest.close();
-            checkFile(tempSoundFile);
-        } catch (IOException e) {
-            Toast toast = Toast.makeText(context,
-                    "Error: Unable to create MIDI file for playing.",
-                    Toast.LENGTH_LONG);
-            toast.show();
+    private void CreateMidiFile(int pulse) {
+        long begin = System.nanoTime();
+        options.tempo = rateSupported ? midifile.getTime().getTempo() : RenderedTempo(speed);
+        tempoScale = (double) options.tempo / midifile.getTime().getTempo();
+        playbackRate = rateSupported ? speed / 100.0 : 1;
+        rateStartMillis = 0;
+        rateStartFileMillis = 0;
+        startMicros = midifile.getPlaybackTempoMap().tickToMicros(pulse);
+        if (options.playMeasuresInLoop) {
+            /* Render the measures of the loop only, with the same length as
+             * the loop, and let the MediaPlayer repeat them without a gap.
+             */
+            int measure = midifile.getTime().getMeasure();
+            int loopStart = options.playMeasuresInLoopStart * measure - options.shifttime;
+            int loopEnd = (options.playMeasuresInLoopEnd + 1) * measure - options.shifttime;
+            options.pauseTime = loopStart;
+            options.endTime = loopEnd;
+            loopStartMicros = midifile.getPlaybackTempoMap().tickToMicros(loopStart);
+            loopMicros = midifile.getPlaybackTempoMap().tickToMicros(loopEnd) - loopStartMicros;
+            seekMillis = (int) Math.round((startMicros - loopStartMicros) * tempoScale / 1000);
+            startKind = pulse > loopStart ? MidiSeekMetrics.Seek : MidiSeekMetrics.Start;
+        } else if (pulse < 0 || (!seekChasesState && pulse > FirstStateTick())) {
+            options.pauseTime = pulse;
+            options.endTime = 0;
+            loopMicros = 0;
+            seekMillis = 0;
+            startKind = pulse > 0 ? MidiSeekMetrics.Prelude : MidiSeekMetrics.Start;
+        } else {
+            options.pauseTime = 0;
+            options.endTime = 0;
+            loopMicros = 0;
+            seekMillis = (int) Math.round(startMicros * tempoScale / 1000);
+            startKind = pulse > 0 ? MidiSeekMetrics.Seek : MidiSeekMetrics.Start;
+        }
+        soundData = renderCache.render(midifile, options);
+        renderNanos = System.nanoTime() - begin;
+        if (verifySound) {
+            CheckSound();
         }
     }
 
-    private void checkFile(String name) {
-        try {
-            FileInputStream in = context.openFileInput(name);
-            byte[] data = new byte[4096];
-            int total = 0, len = 0;
-            while (true) {
-                len = in.read(data, 0, 4096);
-                if (len > 0)
-                    total += len;
-                else
-                    break;
-            }
-            in.close();
-            data = new byte[total];
-            in = context.openFileInput(name);
-            int offset = 0;
-            while (offset < total) {
-                len = in.read(data, offset, total - offset);
-                if (len > 0)
-                    offset += len;
+    /**
+     * Return the time of the first event that changes the state of a
+     * channel or of the synthesizer: a program change, controller, pitch
+     * bend, channel pressure or sysex event.  Seeking past it with an
+     * engine that doesn't replay these events would lose that state.
+     * 返回第一个改变通道或合成器状态的事件(音色、控制器、弯音、通道触后、sysex)的时间
+     */
+    private int FirstStateTick() {
+        if (firstStateTick < 0) {
+            int first = Integer.MAX_VALUE;
+            for (MidiEventTable events : midifile.getEventTables()) {
+                for (int i = 0; i < events.size() && events.getTick(i) < first; i++) {
+                    byte eventFlag = events.getEventFlag(i);
+                    if (eventFlag != MidiFile.EventNoteOn && eventFlag != MidiFile.EventNoteOff &&
+                            eventFlag != MidiFile.EventKeyPressure && eventFlag != MidiFile.MetaEvent) {
+                        first = events.getTick(i);
+                        break;
+                    }
+                }
             }
-            in.close();
-            MidiFile testmidi = new MidiFile(data, name);
-        } catch (IOException e) {
-            Toast toast = Toast.makeText(context,
-                    "CheckFile: " + e.toString(), Toast.LENGTH_LONG);
-            toast.show();
+            firstStateTick = first;
+        }
+        return firstStateTick;
+    }
+
+    /**
+     * Every SyncSampleIntervalNanos, give the position of the MediaPlayer
+     * to sync, as the time since the music started.  The position is in
+     * the rendered file, so the seek position is removed, and when playing
+     * a loop the repeats before it are added.
+     * 定期把MediaPlayer的位置(换算为音乐开始后经过的时间)交给sync
+     */
+    private void SampleSoundPosition() {
+        long now = clock.nanoTime();
+        if (player == null || now - syncSampleNanos < SyncSampleIntervalNanos || !player.isPlaying()) {
+            return;
+        }
+        syncSampleNanos = now;
+        double elapsed = player.getCurrentPosition() - seekMillis;
+        if (loopMicros > 0) {
+            double loopMillis = loopMicros * tempoScale / 1000;
+            double expected = FileMillisAt((now - startNanos) / 1000000.0);
+            elapsed += Math.round((expected - elapsed) / loopMillis) * loopMillis;
+        }
+        sync.addSample(now, MillisAtFile(elapsed));
+    }
+
+    /**
+     * Return the msec played in the rendered file, from the seek position,
+     * when the given msec have passed since the music started
+     */
+    private double FileMillisAt(double msec) {
+        return rateStartFileMillis + (msec - rateStartMillis) * playbackRate;
+    }
+
+    /**
+     * Return the msec since the music started when the given msec of the
+     * rendered file, from the seek position, have been played
+     */
+    private double MillisAtFile(double fileMillis) {
+        return rateStartMillis + (fileMillis - rateStartFileMillis) / playbackRate;
+    }
+
+    /**
+     * Return the correction of the shading time with the MediaPlayer's
+     * position, to read its drift and error
+     */
+    public PlaybackSync getPlaybackSync() {
+        return sync;
+    }
+
+    /**
+     * Return how long after the given segment of shadeTimeline started in
+     * the sound it is being shaded, in nanoseconds
+     */
+    private long ShadeLagNanos(int segment) {
+        TempoMap tempoMap = midifile.getPlaybackTempoMap();
+        long micros = tempoMap.tickToMicros((int) currentPulseTime - options.shifttime)
+                - tempoMap.tickToMicros(shadeTimeline.getSegmentStart(segment) - options.shifttime);
+        return (long) (micros * 1000 * tempoScale / playbackRate);
+    }
+
+    /**
+     * Use the given clock to update the shading, instead of the display's
+     * vsync (e.g. a FakePlaybackClock).  It must not be changed while playing.
+     */
+    public void setPlaybackClock(PlaybackClock clock) {
+        this.clock.stop();
+        this.clock = clock;
+    }
+
+    /**
+     * Return the timing of the frames and of the shading while playing
+     */
+    public PlaybackClockStats getClockStats() {
+        return clockStats;
+    }
+
+    /**
+     * Return the pulse time that is the given number of milliseconds after
+     * the music started playing at startPulseTime, at the one tempo the
+     * file is rendered at (see MidiFile.getPlaybackTempoMap()), so the
+     * shading stays with the sound.  When playing measures in a loop, the
+     * time wraps around at the end of the loop, as the sound does.
+     * 返回开始播放之后经过给定毫秒数时的节拍，按生成文件的单一速度换算
+     */
+    private double PulseTimeAfter(double msec) {
+        TempoMap tempoMap = midifile.getPlaybackTempoMap();
+        long micros = startMicros + (long) (FileMillisAt(msec) * 1000 / tempoScale);
+        if (loopMicros > 0) {
+            micros = loopStartMicros + (micros - loopStartMicros) % loopMicros;
+        }
+        return tempoMap.microsToTick(micros) + options.shifttime;
+    }
+
+    /**
+     * Parse the rendered midi file again, and show an error if it's invalid
+     */
+    private void CheckSound() {
+        try {
+            new MidiFile(soundData, tempSoundFile);
         } catch (MidiFileException e) {
             Toast toast = Toast.makeText(context,
                     "CheckFile midi: " + e.toString(), Toast.LENGTH_LONG);
@@ -376,18 +696,215 @@ public class MidiPlayer implements MidiPlayController {
     }
 
     /**
-     * play the sound for the given MIDI file
+     * Parse every midi file rendered for playing again, to check it.
+     * This is for debugging, and is off by default.
+     * 调试用：重新解析每次生成的midi文件进行检查，默认关闭
+     */
+    public void setVerifySound(boolean verifySound) {
+        this.verifySound = verifySound;
+    }
+
+    /**
+     * Return the cache of rendered midi files, e.g. to read its hit and
+     * miss counts
+     */
+    public MidiRenderCache getRenderCache() {
+        return renderCache;
+    }
+
+    /**
+     * Use the MediaPlayer's own seeking (true, the default) when the midi
+     * engine replays the program changes and controllers before the seek
+     * position, as the Sonivox engine of Android does.  If false, a
+     * prelude is rendered whenever the song changes a channel's state
+     * before the position.
+     * 定位时midi引擎是否会处理之前的音色和控制器事件，为false时在需要时生成从该位置开始的文件
+     */
+    public void setSeekChasesState(boolean seekChasesState) {
+        this.seekChasesState = seekChasesState;
+    }
+
+    /**
+     * Return the time the sound took to start after each play, seek and
+     * prelude
+     */
+    public MidiSeekMetrics getSeekMetrics() {
+        return seekMetrics;
+    }
+
+    /**
+     * Set the playback speed, in percent of the song's tempo, from
+     * MinSpeed to MaxSpeed.  While playing, the MediaPlayer's rate is
+     * changed and the shading follows from the next frame.  If the
+     * MediaPlayer can't change its rate, the rest of the song is rendered
+     * at the new tempo in the background, and the sound and shading switch
+     * to it when it is ready.
+     * 设置播放速度(歌曲速度的百分比)。播放时从下一帧开始生效，不支持改变速率时在后台生成歌曲剩余的部分
+     */
+    public void setSpeed(int percent) {
+        percent = Math.max(MinSpeed, Math.min(percent, MaxSpeed));
+        if (percent == speed) {
+            return;
+        }
+        speed = percent;
+        int request = ++speedRequest;
+        if (playState != PlayState.PLAYING) {
+            /* CreateMidiFile() uses the new speed when playing starts */
+            return;
+        }
+        if (rateSupported) {
+            if (seekPending) {
+                /* StartSound() sets the rate */
+                playbackRate = speed / 100.0;
+                return;
+            }
+            /* Go on from the current position at the new rate */
+            double msec = Math.max(0, sync.positionAt(clock.nanoTime()));
+            double rate = playbackRate;
+            rateStartFileMillis = FileMillisAt(msec);
+            rateStartMillis = msec;
+            playbackRate = speed / 100.0;
+            if (SetPlaybackRate(playbackRate)) {
+                sync.dropSamples();
+                return;
+            }
+            playbackRate = rate;
+        }
+        RenderSpeed(request);
+    }
+
+    public int getSpeed() {
+        return speed;
+    }
+
+    /**
+     * Return the tempo to render the song at, to play it at the given speed
      */
-    private void PlaySound(String filename) {
+    private int RenderedTempo(int speed) {
+        return (int) Math.round(midifile.getTime().getTempo() * 100.0 / speed);
+    }
+
+    /**
+     * Play the rendered file at the given rate, with PlaybackParams.
+     * Return false, and stop using them, if the MediaPlayer can't (before
+     * API level 23, or if its midi engine doesn't support them).
+     */
+    private boolean SetPlaybackRate(double rate) {
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.M) {
+            rateSupported = false;
+            return false;
+        }
+        try {
+            player.setPlaybackParams(player.getPlaybackParams().setSpeed((float) rate));
+            return true;
+        } catch (IllegalStateException | IllegalArgumentException e) {
+            rateSupported = false;
+            return false;
+        }
+    }
+
+    /**
+     * Render the rest of the song (or the whole loop) at the current speed
+     * on the render thread, then switch the sound to it.  The render is
+     * dropped if the speed changes again meanwhile.  The rest of the song
+     * starts at the current position, so it isn't kept in renderCache;
+     * a loop is.
+     * 在后台线程按当前速度生成歌曲剩余的部分(或整个循环)，然后切换到新文件播放
+     */
+    private void RenderSpeed(final int request) {
+        final MidiFile file = midifile;
+        final MidiOptions renderOptions = options.copy();
+        final boolean keep = loopMicros > 0;
+        renderOptions.tempo = RenderedTempo(speed);
+        if (!keep) {
+            renderOptions.pauseTime = Math.max(0, (int) currentPulseTime - options.shifttime);
+            renderOptions.endTime = 0;
+        }
+        renderExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                if (request != speedRequest) {
+                    return;
+                }
+                long begin = System.nanoTime();
+                final byte[] data = keep ? renderCache.render(file, renderOptions)
+                        : renderCache.renderOnce(file, renderOptions);
+                final long nanos = System.nanoTime() - begin;
+                timer.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        if (request != speedRequest || file != midifile || playState != PlayState.PLAYING) {
+                            return;
+                        }
+                        if (seekPending) {
+                            /* Wait for the sound to start, to know where it is */
+                            timer.postDelayed(this, 20);
+                            return;
+                        }
+                        SwitchSpeed(data, renderOptions, nanos);
+                    }
+                });
+            }
+        });
+    }
+
+    /**
+     * Play the given file, rendered at a new speed by RenderSpeed(), from
+     * the current position.  The shading goes on from that position.
+     */
+    private void SwitchSpeed(byte[] data, MidiOptions renderOptions, long nanos) {
+        TempoMap tempoMap = midifile.getPlaybackTempoMap();
+        double msec = Math.max(0, sync.positionAt(clock.nanoTime()));
+        currentPulseTime = PulseTimeAfter(msec);
+        startPulseTime = currentPulseTime;
+        startMicros = tempoMap.tickToMicros((int) currentPulseTime - options.shifttime);
+
+        options.tempo = renderOptions.tempo;
+        options.pauseTime = renderOptions.pauseTime;
+        options.endTime = renderOptions.endTime;
+        tempoScale = (double) options.tempo / midifile.getTime().getTempo();
+        playbackRate = 1;
+        rateStartMillis = 0;
+        rateStartFileMillis = 0;
+        long fileStartMicros = loopMicros > 0 ? loopStartMicros : tempoMap.tickToMicros(options.pauseTime);
+        seekMillis = (int) Math.round(Math.max(0, startMicros - fileStartMicros) * tempoScale / 1000);
+        soundData = data;
+        renderNanos = nanos;
+        startKind = loopMicros > 0 ? MidiSeekMetrics.Seek : MidiSeekMetrics.Prelude;
+        PlaySound();
+    }
+
+    /**
+     * play the sound of the midi file in soundData, from seekMillis.
+     * From API level 23 the MediaPlayer reads it straight from memory;
+     * before that it is saved to tempSoundFile first.  If the MediaPlayer
+     * has already prepared the same file (e.g. when resuming after a
+     * pause), it only seeks.  The sound starts once the seek is complete.
+     * 从seekMillis开始播放soundData中的midi文件。MediaPlayer已准备好同一个文件时只需定位
+     */
+    private void PlaySound() {
         if (player == null)
             return;
+        long begin = System.nanoTime();
         try {
-            FileInputStream input = context.openFileInput(filename);
-            player.reset();
-            player.setDataSource(input.getFD());
-            input.close();
-            player.prepare();
-            player.start();
+            boolean prepared = soundData == preparedData;
+            if (!prepared) {
+                player.reset();
+                preparedData = null;
+                SetDataSource();
+                player.prepare();
+                preparedData = soundData;
+            }
+            prepareNanos = System.nanoTime() - begin;
+            player.setLooping(loopMicros > 0);
+            if (prepared || seekMillis > 0) {
+                /* A prepared player may be paused anywhere in the song */
+                seekPending = true;
+                seekStartNanos = System.nanoTime();
+                player.seekTo(seekMillis);
+            } else {
+                StartSound();
+            }
         } catch (IOException e) {
             Toast toast = Toast.makeText(context,
                     "Error: Unable to play MIDI sound", Toast.LENGTH_LONG);
@@ -395,12 +912,70 @@ public class MidiPlayer implements MidiPlayController {
         }
     }
 
+    /**
+     * Give soundData to the MediaPlayer
+     */
+    private void SetDataSource() throws IOException {
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.M) {
+            player.setDataSource(new MidiDataSource(soundData));
+        } else {
+            FileOutputStream dest = context.openFileOutput(tempSoundFile, Context.MODE_PRIVATE);
+            try {
+                dest.write(soundData);
+            } finally {
+                dest.close();
+            }
+            FileInputStream input = context.openFileInput(tempSoundFile);
+            try {
+                player.setDataSource(input.getFD());
+            } finally {
+                input.close();
+            }
+        }
+    }
+
+    /**
+     * Start the prepared and positioned sound, and add the time it took
+     * to seekMetrics
+     */
+    private void StartSound() {
+        long seekNanos = seekPending ? System.nanoTime() - seekStartNanos : 0;
+        seekPending = false;
+        player.start();
+        startNanos = clock.nanoTime();
+        sync.start(startNanos);
+        syncSampleNanos = startNanos;
+        rateStartMillis = 0;
+        rateStartFileMillis = 0;
+        seekMetrics.add(startKind, renderNanos, prepareNanos, seekNanos);
+        if (rateSupported && !SetPlaybackRate(playbackRate) && playbackRate != 1) {
+            /* The file was rendered at the song's tempo: render the speed into it */
+            playbackRate = 1;
+            RenderSpeed(++speedRequest);
+        }
+    }
+
+    /**
+     * Pause the MIDI music.  The MediaPlayer stays prepared, so playing
+     * again only has to seek.
+     */
+    private void PauseSound() {
+        if (player == null)
+            return;
+        seekPending = false;
+        if (player.isPlaying()) {
+            player.pause();
+        }
+    }
+
     /**
      * stop playing the MIDI music
      */
     private void StopSound() {
         if (player == null)
             return;
+        seekPending = false;
+        preparedData = null;
         player.stop();
         player.reset();
     }
@@ -420,7 +995,7 @@ public class MidiPlayer implements MidiPlayController {
         // Hide the midi player, wait a little for the view
         // to refresh, and then start playing
 //        this.setVisibility(View.GONE);
-        timer.removeCallbacks(TimerCallback);
+        clock.stop();
         timer.postDelayed(DoPlay, 1000);
     }
 
@@ -462,7 +1037,7 @@ public class MidiPlayer implements MidiPlayController {
      */
     void DoStop() {
         playState = PlayState.STOPPED;
-        timer.removeCallbacks(TimerCallback);
+        clock.stop();
 
         if (midiPlayerCallbackList != null) {
             for (MidiPlayerCallback midiPlayerCallback : midiPlayerCallbackList) {
@@ -604,30 +1179,6 @@ public class MidiPlayer implements MidiPlayController {
 //        piano.ShadeNotes((int) currentPulseTime, (int) prevPulseTime);
     }
 
-    /**
-     * The "play Measures in a Loop" feature is enabled, and we've reached the
-     * last measure. stop the sound, unshade the music, and then start playing
-     * again.
-     */
-    private void RestartPlayMeasuresInLoop() {
-        playState = PlayState.STOPPED;
-
-        if (midiPlayerCallbackList != null) {
-            for (MidiPlayerCallback midiPlayerCallback : midiPlayerCallbackList) {
-//                midiPlayerCallback.onPlayerRestartPlayMeasuresInLoop();
-                midiPlayerCallback.onSheetNeedShadeNotes(-10, (int) prevPulseTime, MusicBook.DontScroll);
-                midiPlayerCallback.onPianoNeedShadeNotes(-10, (int) prevPulseTime);
-            }
-        }
-
-//        piano.ShadeNotes(-10, (int) prevPulseTime);
-//        sheet.ShadeNotes(-10, (int) prevPulseTime, SheetMusic.DontScroll);
-        currentPulseTime = 0;
-        prevPulseTime = -1;
-        StopSound();
-        timer.postDelayed(DoPlay, 300);
-    }
-
     public double getCurrentPulseTime() {
         return currentPulseTime;
     }
@@ -0,0 +1,58 @@
+package yin.source.com.midimusicbook.midi.musicBook;
+
+import android.annotation.TargetApi;
+import android.media.midi.MidiReceiver;
+import android.os.Build;
+
+import java.io.IOException;
+
+import yin.source.com.midimusicbook.midi.baseBean.MidiFile;
+import yin.source.com.midimusicbook.midi.baseBean.MidiOutputSink;
+
+/**
+ * @class MidiPortSink
+ * A MidiOutputSink that sends the messages of a MidiEventScheduler to a
+ * midi device, through the MidiReceiver of one of its ports (usually a
+ * MidiInputPort opened with the MidiManager).  The messages keep their
+ * timestamps, so the device plays them on time even if they are sent
+ * early (see MidiEventScheduler.setLeadNanos()).
+ * 将MidiEventScheduler的消息通过端口的MidiReceiver发送给midi设备，消息带有时间戳，提前发送时设备也会按时播放
+ * <p/>
+ * android.media.midi needs API level 23.
+ */
+@TargetApi(Build.VERSION_CODES.M)
+public class MidiPortSink implements MidiOutputSink {
+
+    private final MidiReceiver receiver;
+    private final byte[] buffer = new byte[3];
+    /**
+     * The message being sent.  Only used on the scheduler's thread. // 正在发送的消息
+     */
+    private volatile long errors;
+
+    public MidiPortSink(MidiReceiver receiver) {
+        this.receiver = receiver;
+    }
+
+    @Override
+    public void send(byte status, byte data1, byte data2, long timestampNanos) {
+        byte eventFlag = (byte) (status & 0xF0);
+        int length = eventFlag == MidiFile.EventProgramChange || eventFlag == MidiFile.EventChannelPressure ? 2 : 3;
+        buffer[0] = status;
+        buffer[1] = data1;
+        buffer[2] = data2;
+        try {
+            receiver.send(buffer, 0, length, timestampNanos);
+        } catch (IOException e) {
+            /* The device was disconnected: drop the message, playing goes on */
+            errors++;
+        }
+    }
+
+    /**
+     * Return the number of messages the port failed to send
+     */
+    public long getErrorCount() {
+        return errors;
+    }
+}
@@ -0,0 +1,117 @@
+package yin.source.com.midimusicbook.midi.musicBook;
+
+/**
+ * @class MidiSeekMetrics
+ * The MidiSeekMetrics adds up how long the MidiPlayer takes from the
+ * moment it is asked to play until the sound starts, for each way of
+ * starting:
+ * MidiSeekMetrics统计MidiPlayer从开始播放到发出声音所用的时间，按开始方式分别统计:
+ * - Start: from the beginning of the song // 从歌曲开头开始
+ * - Seek: the rendered song is reused, and the MediaPlayer seeks to the
+ * position // 复用已生成的文件，MediaPlayer定位到开始位置
+ * - Prelude: a file starting at the position is rendered, with the
+ * program changes and controllers before it moved to the start // 生成从开始位置开始的文件
+ * <p/>
+ * The time is split into rendering the midi file, preparing the
+ * MediaPlayer, and seeking, so a slow step is easy to see.
+ * 时间分为生成midi文件、准备MediaPlayer和定位三部分
+ * <p/>
+ * Usage:
+ * Log.i("MidiPlayer", player.getSeekMetrics().toString());
+ */
+public class MidiSeekMetrics {
+
+    public static final int Start = 0;
+    public static final int Seek = 1;
+    public static final int Prelude = 2;
+
+    private static final String[] Names = {"start", "seek", "prelude"};
+
+    private final long[] counts = new long[3];
+    private final long[] renderNanos = new long[3];
+    private final long[] prepareNanos = new long[3];
+    private final long[] seekNanos = new long[3];
+    private final long[] maxNanos = new long[3];
+    /**
+     * The count, time per step and longest total time of each way of
+     * starting, indexed by Start, Seek and Prelude // 每种开始方式的次数、各步骤时间及最长时间
+     */
+    private long lastNanos;
+
+    /**
+     * Add the time the sound took to start.
+     *
+     * @param kind    Start, Seek or Prelude
+     * @param render  The time spent rendering the midi file, in nanoseconds
+     * @param prepare The time spent preparing the MediaPlayer, in nanoseconds
+     * @param seek    The time spent seeking, in nanoseconds
+     */
+    public synchronized void add(int kind, long render, long prepare, long seek) {
+        long total = render + prepare + seek;
+        counts[kind]++;
+        renderNanos[kind] += render;
+        prepareNanos[kind] += prepare;
+        seekNanos[kind] += seek;
+        maxNanos[kind] = Math.max(maxNanos[kind], total);
+        lastNanos = total;
+    }
+
+    public synchronized long getCount(int kind) {
+        return counts[kind];
+    }
+
+    /**
+     * Return the average time until the sound started, in milliseconds
+     */
+    public synchronized double getAverageMillis(int kind) {
+        if (counts[kind] == 0) {
+            return 0;
+        }
+        return (renderNanos[kind] + prepareNanos[kind] + seekNanos[kind]) / 1e6 / counts[kind];
+    }
+
+    /**
+     * Return the longest time until the sound started, in milliseconds
+     */
+    public synchronized double getMaxMillis(int kind) {
+        return maxNanos[kind] / 1e6;
+    }
+
+    /**
+     * Return the time the last sound took to start, in milliseconds
+     */
+    public synchronized double getLastMillis() {
+        return lastNanos / 1e6;
+    }
+
+    public synchronized void clear() {
+        for (int kind = 0; kind < counts.length; kind++) {
+            counts[kind] = 0;
+            renderNanos[kind] = 0;
+            prepareNanos[kind] = 0;
+            seekNanos[kind] = 0;
+            maxNanos[kind] = 0;
+        }
+        lastNanos = 0;
+    }
+
+    @Override
+    public synchronized String toString() {
+        StringBuilder result = new StringBuilder("MidiSeekMetrics{");
+        for (int kind = 0; kind < counts.length; kind++) {
+            if (kind > 0) {
+                result.append(", ");
+            }
+            result.append(Names[kind]).append("=").append(counts[kind]);
+            if (counts[kind] > 0) {
+                result.append(String.format(" (avg %.1f ms: render %.1f, prepare %.1f, seek %.1f; max %.1f ms)",
+                        getAverageMillis(kind),
+                        renderNanos[kind] / 1e6 / counts[kind],
+                        prepareNanos[kind] / 1e6 / counts[kind],
+                        seekNanos[kind] / 1e6 / counts[kind],
+                        maxNanos[kind] / 1e6));
+            }
+        }
+        return result.append('}').toString();
+    }
+}
@@ -22,8 +22,11 @@ import android.graphics.Rect;
 import android.graphics.Typeface;
 import android.net.Uri;
 import android.os.Environment;
+import android.os.Handler;
+import android.os.Looper;
 import android.provider.MediaStore;
 import android.util.AttributeSet;
+import android.util.DisplayMetrics;
 import android.view.MotionEvent;
 import android.view.SurfaceHolder;
 import android.view.SurfaceView;
@@ -33,6 +36,12 @@ import java.io.FileOutputStream;
 import java.io.OutputStream;
 import java.io.UnsupportedEncodingException;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
 
 import yin.source.com.midimusicbook.midi.baseBean.ListInt;
 import yin.source.com.midimusicbook.midi.baseBean.MidiEvent;
@@ -69,7 +78,8 @@ class BoxedInt {
  * Shade all the notes played at a given pulse time.
  * 阴影所有的在给定的时间播放的所有音符
  */
-public class MusicBook extends SurfaceView implements SurfaceHolder.Callback, ScrollAnimationListener, MidiPlayer.MidiPlayerCallback {
+public class MusicBook extends SurfaceView implements SurfaceHolder.Callback, ScrollAnimationListener,
+        MidiPlayer.MidiPlayerCallback, SheetTileCache.TileListener {
 
     /* Measurements used when drawing.  All measurements are in pixels. */
     public static final int LineWidth = 1;// 线的宽度
@@ -115,6 +125,18 @@ public class MusicBook extends SurfaceView implements SurfaceHolder.Callback, Sc
     public static final int GradualScroll = 2;// 平缓的滚动
     public static final int DontScroll = 3;//
 
+    public static final String StageTracks = "tracks";// 应用选项，计算音调和谱号
+    public static final String StageSymbols = "symbols";// 创建各音轨的和弦、小节线、休止符和谱号变化
+    public static final String StageAlign = "align";// 垂直对齐符号
+    public static final String StageStaffs = "staffs";// 划分五线谱
+    public static final String StageBeams = "beams";// 连接符杠
+    public static final String StageLyrics = "lyrics";// 添加歌词
+    public static final String StageIndex = "index";// 计算五线谱高度和符号索引
+    /**
+     * The stages of the layout, reported to the LayoutListener
+     */
+    private static final int FirstLayoutMeasures = 4;// 首次排版的小节数
+
     private ArrayList<Staff> staffs;// 需要展示的五线谱的数组
     /**
      * The array of staffs to display (from top to bottom)
@@ -199,6 +221,11 @@ public class MusicBook extends SurfaceView implements SurfaceHolder.Callback, Sc
     /**
      * The sheet music height (excluding zoom)
      */
+    private int[] staffTops;// 每个五线谱的y坐标(不考虑缩放)
+    /**
+     * The y position of each staff, plus the bottom of the last one
+     * (excluding zoom).  Recalculated on each layout.
+     */
     private int viewWidth;// 当前视图的宽度
     /**
      * The width of this view.
@@ -218,6 +245,53 @@ public class MusicBook extends SurfaceView implements SurfaceHolder.Callback, Sc
      */
     private int scrollY;
     private ScrollAnimation scrollAnimation;// 滚动动画
+    private boolean sized;// 是否已经根据视图大小计算了缩放比例
+    /**
+     * True once the zoom was calculated from the size of the view
+     */
+
+    private boolean tiledDrawing = true;// 是否从分块缓存绘制乐谱
+    /**
+     * True to draw the sheet music from the tiles, false to redraw the
+     * bufferBitmap on every frame
+     */
+    private SheetTileCache tiles;// 乐谱的分块缓存
+    /**
+     * The tiles of the sheet music, drawn on a background thread
+     */
+    private SymbolIndex symbolIndex;// 按时间查找被标记符号的索引
+    /**
+     * Finds the symbols shaded at a pulse time
+     */
+    private int[] shadedEntries;// 在方块上标记的符号
+    private int[] nextEntries;
+    /**
+     * The entries of the symbolIndex shaded on top of the tiles, one per
+     * track or -1, and the ones to shade next
+     */
+    private final Rect dirty = new Rect();
+    private final Rect entryRect = new Rect();
+    /**
+     * The area of the view to redraw when the shading changes // 标记改变时需要重绘的区域
+     */
+    private SheetDrawStats tileStats = new SheetDrawStats();
+    private SheetDrawStats bufferStats = new SheetDrawStats();
+    /**
+     * The time to draw the frames from the tiles and from the buffer // 分块绘制和缓冲绘制的每帧时间统计
+     */
+
+    private LayoutTask layoutTask;// 正在后台进行的排版
+    private boolean layoutComplete;// 整首歌是否已经排版完成
+    private final Handler layoutHandler = new Handler(Looper.getMainLooper());
+    /**
+     * Posts the layout done in the background to the UI thread // 将后台排版的结果发送到UI线程
+     */
+
+    private static volatile ExecutorService layoutExecutor;
+    /**
+     * The executor used to create the symbols of the tracks in parallel,
+     * or null to create them one track after another // 并行创建各音轨符号所用的线程池，为null时按顺序创建
+     */
 
     private Context context;
     private MidiOptions midiOptions;
@@ -237,9 +311,22 @@ public class MusicBook extends SurfaceView implements SurfaceHolder.Callback, Sc
         SurfaceHolder holder = getHolder();
         holder.addCallback(this);
         bufferX = bufferY = scrollX = scrollY = 0;
+        tiles = new SheetTileCache(this);
 
     }
 
+    /**
+     * Create the chords, bars, rests and clef changes of each track on the
+     * given executor, one task per track, e.g. a fixed thread pool with
+     * one thread per core.  Pass null to go back to creating them one
+     * track after another, which is the default.  The sheet music is the
+     * same either way.
+     * 设置并行创建各音轨符号所用的线程池，传入null则按顺序创建(默认)，两种方式的乐谱相同
+     */
+    public static void setLayoutExecutor(ExecutorService executor) {
+        layoutExecutor = executor;
+    }
+
     /**
      * Find 2, 3, 4, or 6 chord symbols that occur consecutively (without any
      * rests or bars in between).  There can be BlankSymbols in between.
@@ -373,9 +460,9 @@ public class MusicBook extends SurfaceView implements SurfaceHolder.Callback, Sc
     }
 
     /**
-     * Get the lyrics for each track
+     * Get the lyrics for each track, starting before the given time
      */
-    private static ArrayList<ArrayList<LyricSymbol>> getLyrics(ArrayList<MidiTrack> tracks) {
+    private static ArrayList<ArrayList<LyricSymbol>> getLyrics(ArrayList<MidiTrack> tracks, int endTime) {
         boolean hasLyrics = false;
         ArrayList<ArrayList<LyricSymbol>> result = new ArrayList<>();
         for (int tracknum = 0; tracknum < tracks.size(); tracknum++) {
@@ -387,6 +474,9 @@ public class MusicBook extends SurfaceView implements SurfaceHolder.Callback, Sc
             }
             hasLyrics = true;
             for (MidiEvent ev : track.getLyrics()) {
+                if (ev.StartTime >= endTime) {
+                    continue;
+                }
                 try {
                     String text = new String(ev.Value, 0, ev.Value.length, "UTF-8");
                     LyricSymbol sym = new LyricSymbol(ev.StartTime, text);
@@ -425,6 +515,81 @@ public class MusicBook extends SurfaceView implements SurfaceHolder.Callback, Sc
      * - Partition the music notes into horizontal staffs.将音乐音符划分到水平的五线谱中
      */
     public void init(MidiFile file, MidiOptions options) {
+        cancelLayout();
+        LayoutTask task = new LayoutTask(file, startLayout(file, options), null, 0, 0);
+        task.prepare();
+        publishLayout(task.layout(Integer.MAX_VALUE));
+    }
+
+    /**
+     * Lay out the sheet music like init(), but on a background thread, so
+     * opening a large file doesn't freeze the UI.
+     * 与init()相同，但在后台线程排版，打开大文件时界面不会卡住
+     * <p/>
+     * The layout is done on the first measures of the song, enough to
+     * fill the view, which are shown as soon as they're ready.  Then it is
+     * done again on 4 times as many measures, until the whole song is
+     * laid out.  The layout of a measure only depends on the measures
+     * around it, so the staffs already shown don't move.  The prefixes
+     * laid out before the whole song add up to less than two thirds of it.
+     * 先排版足以填满视图的前几个小节并立即显示，然后每次排版4倍的小节，直到整首歌排版完成
+     * <p/>
+     * Calling init() or initAsync() again, or cancelLayout(), cancels the
+     * layout.  The listener (which may be null) is called on the UI thread.
+     */
+    public void initAsync(MidiFile file, MidiOptions options, LayoutListener listener) {
+        cancelLayout();
+        options = startLayout(file, options);
+
+        /* Drop the previous sheet music until the first staffs are ready */
+        staffs = null;
+        symbolIndex = null;
+        layoutComplete = false;
+        calculateSize();
+        tiles.setRenderer(null);
+
+        /* The size of the view, in unzoomed pixels, that the first staffs must fill */
+        int width = viewWidth;
+        int height = viewHeight;
+        if (width == 0 || height == 0) {
+            DisplayMetrics metrics = getResources().getDisplayMetrics();
+            width = metrics.widthPixels;
+            height = metrics.heightPixels;
+        }
+        float viewZoom = zoom;
+        if (!sized) {
+            viewZoom = options.scrollVert ? (float) ((width - 2) * 1.0 / PageWidth) : 0.9f;
+        }
+        LayoutTask task = new LayoutTask(file, options, listener,
+                (int) (width / viewZoom), (int) (height / viewZoom));
+        layoutTask = task;
+        new Thread(task, "MusicBookLayout").start();
+        callOnDraw();
+    }
+
+    /**
+     * Stop laying out the sheet music in the background.  The staffs
+     * already shown are kept.
+     */
+    public void cancelLayout() {
+        if (layoutTask != null) {
+            layoutTask.cancelled = true;
+            layoutTask = null;
+        }
+    }
+
+    /**
+     * Return true once the whole song is laid out
+     */
+    public boolean isLayoutComplete() {
+        return layoutComplete;
+    }
+
+    /**
+     * Apply the options that don't depend on the layout, on the UI
+     * thread.  Return the options to lay out with.
+     */
+    private MidiOptions startLayout(MidiFile file, MidiOptions options) {
         midiOptions = options;
         midiFile = file;
         if (options == null) {
@@ -439,58 +604,396 @@ public class MusicBook extends SurfaceView implements SurfaceHolder.Callback, Sc
         Typeface typeface = Typeface.create(paint.getTypeface(), Typeface.NORMAL);
         paint.setTypeface(typeface);
         paint.setColor(Color.BLACK);
+        scrollAnimation = new ScrollAnimation(this, options.scrollVert);
+        return options;
+    }
 
-        ArrayList<MidiTrack> tracks = file.ChangeMidiNotes(options);
-        // SetNoteSize(options.largeNoteSize);
-        TimeSignature time = file.getTime();// 拍子记号
-        if (options.time != null) {
-            time = options.time;
+    /**
+     * Show the staffs of the given layout, on the UI thread
+     */
+    private void publishLayout(Layout layout) {
+        ArrayList<Staff> oldStaffs = staffs;
+        int oldTracks = numtracks;
+        mainkey = layout.key;
+        numtracks = layout.tracks;
+        staffs = layout.staffs;
+        symbolIndex = layout.index;
+        layoutComplete = layout.complete;
+        calculateSize();
+        shadedEntries = new int[numtracks];
+        nextEntries = new int[numtracks];
+        Arrays.fill(shadedEntries, -1);
+        /* A longer layout of the song keeps the staffs before the last row of
+         * the previous one, so only the tiles from the first changed staff are
+         * drawn again */
+        int keepHeight = 0;
+        if (oldStaffs != null && oldTracks == numtracks) {
+            keepHeight = staffTops[FirstChangedStaff(oldStaffs, staffs, numtracks)];
+        }
+        tiles.setRenderer(new SheetRenderer(staffs, staffTops, paint), keepHeight);
+    }
+
+    /**
+     * Return the first staff of the new layout that may be drawn
+     * differently from the old one.  The staffs of the old last row
+     * always may, as they end where the old layout ended.
+     */
+    private static int FirstChangedStaff(ArrayList<Staff> oldStaffs, ArrayList<Staff> newStaffs, int tracks) {
+        int end = Math.max(0, Math.min(oldStaffs.size() - tracks, newStaffs.size()));
+        for (int i = 0; i < end; i++) {
+            if (!SameStaff(oldStaffs.get(i), newStaffs.get(i))) {
+                return i;
+            }
         }
-        if (options.key == -1) {
-            mainkey = getKeySignature(tracks);
-        } else {
-            mainkey = new KeySignature(options.key);
+        return end;
+    }
+
+    /**
+     * Return true if the two staffs have the same size, times, and
+     * symbols at the same places
+     */
+    private static boolean SameStaff(Staff a, Staff b) {
+        if (a.getTrack() != b.getTrack() || a.getStartTime() != b.getStartTime()
+                || a.getEndTime() != b.getEndTime() || a.getWidth() != b.getWidth()
+                || a.getHeight() != b.getHeight() || a.getSymbols().size() != b.getSymbols().size()) {
+            return false;
         }
-        numtracks = tracks.size();
+        for (int i = 0; i < a.getSymbols().size(); i++) {
+            MusicSymbol x = a.getSymbols().get(i);
+            MusicSymbol y = b.getSymbols().get(i);
+            if (x.getClass() != y.getClass() || x.getStartTime() != y.getStartTime()
+                    || x.getWidth() != y.getWidth() || a.getSymbolX(i) != b.getSymbolX(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
 
-        int lastStart = file.EndTime() + options.shifttime;
+    /**
+     * Return the notes starting before the given time.  The notes are
+     * sorted by start time.
+     */
+    private static ArrayList<MidiNote> NotesBefore(ArrayList<MidiNote> notes, int endTime) {
+        int low = 0;
+        int high = notes.size();
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (notes.get(mid).getPulsesOfStartTime() < endTime) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        if (low == notes.size()) {
+            return notes;
+        }
+        return new ArrayList<>(notes.subList(0, low));
+    }
 
-        /** Create all the music symbols (notes, rests, vertical bars, and
-         * clef changes).  The symbols variable contains a list of music
-         * symbols for each track.  The list does not include the left-side
-         * Clef and key signature symbols.  Those can only be calculated
-         * when we create the staffs.
-         * 创建所有的音乐符号(音符,休止符,垂直的小节线,以及谱号).symbols变量包含每一个音轨的音乐符号.
-         * 这个集合不包括左侧谱号和音调符号.那些只能在我们创建五线谱的时候计算
+    /**
+     * @class Layout
+     * The staffs of the first measures of the song (or all of them), and
+     * what is needed to show them
+     */
+    private static class Layout {
+        KeySignature key;
+        int tracks;
+        int measures;
+        boolean complete;
+        ArrayList<Staff> staffs;
+        SymbolIndex index;
+        int width;
+        int height;
+        /**
+         * The unzoomed size of the staffs // 五线谱的大小(不考虑缩放)
          */
-        ArrayList<ArrayList<MusicSymbol>> allSymbols = new ArrayList<>(numtracks);
-        for (int trackNum = 0; trackNum < numtracks; trackNum++) {
-            MidiTrack track = tracks.get(trackNum);
-            ClefMeasures clefs = new ClefMeasures(track.getNotes(), time.getMeasure());
-            ArrayList<ChordSymbol> chords = createChords(track.getNotes(), mainkey, time, clefs);
-            allSymbols.add(CreateSymbols(chords, clefs, time, lastStart));
-        }
-        ArrayList<ArrayList<LyricSymbol>> lyrics = null;
-        if (options.showLyrics) {
-            lyrics = getLyrics(tracks);
-        }
-        /* Vertically align the music symbols */ // 垂直对齐音乐符号
-        SymbolWidths widths = new SymbolWidths(allSymbols, lyrics);
-        alignSymbols(allSymbols, widths, options);
-        staffs = createStaffs(allSymbols, mainkey, options, time.getMeasure());
-        createAllBeamedChords(allSymbols, time);
-        if (lyrics != null) {
-            addLyricsToStaffs(staffs, lyrics);
-        }
-        /* After making chord pairs, the stem directions can change,
-         * which affects the staff height.  Re-calculate the staff height.
-         * 和弦配对后,影响了五线谱的高度,符干方向有可能改变,重新计算五线谱的高度.
+    }
+
+    /**
+     * Thrown between the stages of a cancelled layout
+     */
+    private static class LayoutCancelledException extends RuntimeException {
+    }
+
+    /**
+     * @class LayoutTask
+     * Lays out the sheet music of a midi file.  prepare() applies the
+     * options to the tracks and finds the key, then layout() creates the
+     * staffs of the first measures.  See initAsync().
+     * 排版一个midi文件的乐谱
+     */
+    private class LayoutTask implements Runnable {
+        private final MidiFile file;
+        private final MidiOptions options;
+        private final LayoutListener listener;
+        private final int coverWidth;
+        private final int coverHeight;
+        /**
+         * The unzoomed size of the view the first staffs must fill // 首屏五线谱需要填满的大小
          */
-        for (Staff staff : staffs) {
-            staff.CalculateHeight();
+        volatile boolean cancelled;
+
+        private ArrayList<MidiTrack> tracks;
+        private TimeSignature time;
+        private KeySignature key;
+        private ClefMeasures[] clefs;
+        private int lastStart;
+        private int totalMeasures;
+
+        LayoutTask(MidiFile file, MidiOptions options, LayoutListener listener, int coverWidth, int coverHeight) {
+            this.file = file;
+            this.options = options;
+            this.listener = listener;
+            this.coverWidth = coverWidth;
+            this.coverHeight = coverHeight;
+        }
+
+        /**
+         * Lay out the growing prefixes of the song, and post them to the
+         * UI thread.  Called on the layout thread.
+         */
+        @Override
+        public void run() {
+            try {
+                prepare();
+                int measures = FirstLayoutMeasures;
+                boolean published = false;
+                while (true) {
+                    Layout layout = layout(measures);
+                    boolean covered = options.scrollVert ? layout.height >= coverHeight : layout.width >= coverWidth;
+                    if (published || covered || layout.complete) {
+                        post(layout);
+                        published = true;
+                    }
+                    if (layout.complete) {
+                        return;
+                    }
+                    /* Until the view is filled, only double the measures.
+                     * Past half the song, lay out all of it. */
+                    measures *= published ? 4 : 2;
+                    if (measures * 2 >= totalMeasures) {
+                        measures = totalMeasures;
+                    }
+                }
+            } catch (LayoutCancelledException e) {
+            } catch (final RuntimeException e) {
+                layoutHandler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        if (layoutTask == LayoutTask.this) {
+                            layoutTask = null;
+                            if (listener != null) {
+                                listener.onLayoutFail(e.getLocalizedMessage());
+                            }
+                        }
+                    }
+                });
+            }
+        }
+
+        /**
+         * Apply the options to the tracks, and find the key and the clefs
+         * of the whole song
+         */
+        void prepare() {
+            long start = System.nanoTime();
+            tracks = file.ChangeMidiNotes(options);
+            // SetNoteSize(options.largeNoteSize);
+            time = file.getTime();// 拍子记号
+            if (options.time != null) {
+                time = options.time;
+            }
+            if (options.key == -1) {
+                key = getKeySignature(tracks);
+            } else {
+                key = new KeySignature(options.key);
+            }
+            clefs = new ClefMeasures[tracks.size()];
+            for (int trackNum = 0; trackNum < tracks.size(); trackNum++) {
+                checkCancelled();
+                clefs[trackNum] = new ClefMeasures(tracks.get(trackNum).getNotes(), time.getMeasure());
+            }
+            lastStart = file.EndTime() + options.shifttime;
+            totalMeasures = lastStart / time.getMeasure() + 1;
+            stageDone(StageTracks, 0, start);
+        }
+
+        /**
+         * Lay out the given number of measures from the start of the song,
+         * or the whole song if it has no more measures
+         */
+        Layout layout(int measures) {
+            Layout layout = new Layout();
+            layout.key = key;
+            layout.tracks = tracks.size();
+            layout.complete = measures >= totalMeasures;
+            layout.measures = Math.min(measures, totalMeasures);
+            int endTime = layout.complete ? Integer.MAX_VALUE : measures * time.getMeasure();
+            int barsEnd = Math.min(lastStart, endTime);
+
+            /** Create all the music symbols (notes, rests, vertical bars, and
+             * clef changes).  The symbols variable contains a list of music
+             * symbols for each track.  The list does not include the left-side
+             * Clef and key signature symbols.  Those can only be calculated
+             * when we create the staffs.
+             * 创建所有的音乐符号(音符,休止符,垂直的小节线,以及谱号).symbols变量包含每一个音轨的音乐符号.
+             * 这个集合不包括左侧谱号和音调符号.那些只能在我们创建五线谱的时候计算
+             */
+            long start = System.nanoTime();
+            ArrayList<ArrayList<MusicSymbol>> allSymbols = null;
+            ExecutorService executor = layoutExecutor;
+            if (executor != null && layout.tracks > 1) {
+                allSymbols = createSymbolsInParallel(endTime, barsEnd, executor);
+            }
+            if (allSymbols == null) {
+                allSymbols = new ArrayList<>(layout.tracks);
+                for (int trackNum = 0; trackNum < layout.tracks; trackNum++) {
+                    checkCancelled();
+                    allSymbols.add(createTrackSymbols(trackNum, endTime, barsEnd));
+                }
+            }
+            start = stageDone(StageSymbols, layout.measures, start);
+            ArrayList<ArrayList<LyricSymbol>> lyrics = null;
+            if (options.showLyrics) {
+                lyrics = getLyrics(tracks, endTime);
+            }
+            /* Vertically align the music symbols */ // 垂直对齐音乐符号
+            SymbolWidths widths = new SymbolWidths(allSymbols, lyrics);
+            alignSymbols(allSymbols, widths, options);
+            start = stageDone(StageAlign, layout.measures, start);
+            layout.staffs = createStaffs(allSymbols, key, options, time.getMeasure());
+            start = stageDone(StageStaffs, layout.measures, start);
+            createAllBeamedChords(allSymbols, time);
+            start = stageDone(StageBeams, layout.measures, start);
+            if (lyrics != null) {
+                addLyricsToStaffs(layout.staffs, lyrics);
+                start = stageDone(StageLyrics, layout.measures, start);
+            }
+            /* After making chord pairs, the stem directions can change,
+             * which affects the staff height.  Re-calculate the staff height.
+             * 和弦配对后,影响了五线谱的高度,符干方向有可能改变,重新计算五线谱的高度.
+             */
+            for (Staff staff : layout.staffs) {
+                staff.CalculateHeight();
+                layout.width = Math.max(layout.width, staff.getWidth());
+                layout.height += staff.getHeight();
+            }
+            layout.index = new SymbolIndex(layout.staffs, layout.tracks);
+            stageDone(StageIndex, layout.measures, start);
+            return layout;
+        }
+
+        /**
+         * Create the chords, bars, rests and clef changes of a track,
+         * for the notes starting before endTime.  The tracks don't share
+         * anything they change, so they can be created on different
+         * threads: each one finds its accidentals with its own copy of
+         * the key, starting from the key signature as the first track did.
+         */
+        private ArrayList<MusicSymbol> createTrackSymbols(int trackNum, int endTime, int barsEnd) {
+            ArrayList<MidiNote> notes = NotesBefore(tracks.get(trackNum).getNotes(), endTime);
+            ArrayList<ChordSymbol> chords = createChords(notes, key.Clone(), time, clefs[trackNum]);
+            return CreateSymbols(chords, clefs[trackNum], time, barsEnd);
+        }
+
+        /**
+         * Create the symbols of the tracks on the executor, one task per
+         * track, and return them in track order.  Return null if the
+         * executor refuses the tasks, to create them on this thread.
+         */
+        private ArrayList<ArrayList<MusicSymbol>> createSymbolsInParallel(final int endTime, final int barsEnd,
+                                                                          ExecutorService executor) {
+            int count = tracks.size();
+            ArrayList<Future<ArrayList<MusicSymbol>>> futures = new ArrayList<>(count);
+            try {
+                for (int trackNum = 0; trackNum < count; trackNum++) {
+                    final int index = trackNum;
+                    futures.add(executor.submit(new Callable<ArrayList<MusicSymbol>>() {
+                        @Override
+                        public ArrayList<MusicSymbol> call() {
+                            checkCancelled();
+                            return createTrackSymbols(index, endTime, barsEnd);
+                        }
+                    }));
+                }
+                ArrayList<ArrayList<MusicSymbol>> allSymbols = new ArrayList<>(count);
+                for (Future<ArrayList<MusicSymbol>> future : futures) {
+                    allSymbols.add(future.get());
+                }
+                return allSymbols;
+            } catch (RejectedExecutionException e) {
+                return null;
+            } catch (ExecutionException e) {
+                if (e.getCause() instanceof RuntimeException) {
+                    throw (RuntimeException) e.getCause();
+                }
+                throw new RuntimeException(e.getCause());
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new LayoutCancelledException();
+            } finally {
+                for (Future<ArrayList<MusicSymbol>> future : futures) {
+                    future.cancel(true);
+                }
+            }
+        }
+
+        /**
+         * Stop here if the layout was cancelled
+         */
+        private void checkCancelled() {
+            if (cancelled) {
+                throw new LayoutCancelledException();
+            }
+        }
+
+        /**
+         * Report the time taken by a stage that began at start, and return
+         * the time now, when the next stage begins
+         */
+        private long stageDone(final String stage, final int measures, long start) {
+            checkCancelled();
+            long now = System.nanoTime();
+            final long nanos = now - start;
+            if (listener != null) {
+                layoutHandler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        if (layoutTask == LayoutTask.this) {
+                            listener.onLayoutStage(stage, measures, nanos);
+                        }
+                    }
+                });
+            }
+            return now;
+        }
+
+        /**
+         * Show the layout on the UI thread, unless it was cancelled meanwhile
+         */
+        private void post(final Layout layout) {
+            layoutHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    if (layoutTask != LayoutTask.this) {
+                        return;
+                    }
+                    if (layout.complete) {
+                        layoutTask = null;
+                    }
+                    publishLayout(layout);
+                    if (!sized && viewWidth > 0) {
+                        sizeToView();
+                    } else {
+                        checkScrollBounds();
+                        callOnDraw();
+                    }
+                    if (listener != null) {
+                        listener.onLayoutPublished(layout.measures, layout.staffs.size(), layout.complete);
+                    }
+                }
+            });
         }
-        zoom = 1.0f;
-        scrollAnimation = new ScrollAnimation(this, options.scrollVert);
     }
 
     /**
@@ -504,14 +1007,36 @@ public class MusicBook extends SurfaceView implements SurfaceHolder.Callback, Sc
         if (staffs == null) {
             return;
         }
-        for (Staff staff : staffs) {
+        staffTops = new int[staffs.size() + 1];
+        for (int i = 0; i < staffs.size(); i++) {
+            Staff staff = staffs.get(i);
             sheetwidth = Math.max(sheetwidth, staff.getWidth());
-            sheetheight += (staff.getHeight());
+            staffTops[i + 1] = staffTops[i] + staff.getHeight();
         }
+        sheetheight = staffTops[staffs.size()];
         sheetwidth += 2;
         sheetheight += LeftMargin;
     }
 
+    /**
+     * Return the index of the first staff whose bottom is at or after y,
+     * or the number of staffs.  The staffTops are sorted, so this is a
+     * binary search.
+     */
+    private static int FirstStaffEndingAt(int[] staffTops, int y) {
+        int low = 0;
+        int high = staffTops.length - 1;
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (staffTops[mid + 1] < y) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        return low;
+    }
+
     /**
      * If this is the first size change, calculate the zoom level,
      * and create the bufferCanvas.  Otherwise, do nothing.
@@ -520,21 +1045,36 @@ public class MusicBook extends SurfaceView implements SurfaceHolder.Callback, Sc
     protected void onSizeChanged(int newwidth, int newheight, int oldwidth, int oldheight) {
         viewWidth = newwidth;
         viewHeight = newheight;
-        if (bufferCanvas != null) {
+        tiles.setMaxBytes(Math.max(SheetTileCache.DefaultMaxBytes,
+                3 * SheetTileCache.BytesForView(viewWidth, viewHeight)));
+        if (sized) {
             callOnDraw();
             return;
         }
+        if (staffs == null) {
+            /* Still laying out: size to the view once the first staffs are shown */
+            return;
+        }
+        sizeToView();
+    }
+
+    /**
+     * Calculate the zoom level from the size of the view and of the
+     * sheet music, and draw it
+     */
+    private void sizeToView() {
         calculateSize();
         if (midiOptions.scrollVert) {
-            zoom = (float) ((newwidth - 2) * 1.0 / PageWidth);
+            zoom = (float) ((viewWidth - 2) * 1.0 / PageWidth);
         } else {
-            zoom = (float) ((newheight + playerHeight) * 1.0 / sheetheight);
+            zoom = (float) ((viewHeight + playerHeight) * 1.0 / sheetheight);
             if (zoom < 0.9)
                 zoom = 0.9f;
             if (zoom > 1.1)
                 zoom = 1.1f;
         }
-        if (bufferCanvas == null) {
+        sized = true;
+        if (bufferCanvas == null && !tiledDrawing) {
             createBufferCanvas(viewWidth, viewHeight);
         }
         callOnDraw();
@@ -830,7 +1370,7 @@ public class MusicBook extends SurfaceView implements SurfaceHolder.Callback, Sc
             int width = keysigWidth;
             int maxwidth;
             /* If we're scrolling vertically, the maximum width is PageWidth. */
-            if (midiOptions.scrollVert) {
+            if (options.scrollVert) {
                 maxwidth = MusicBook.PageWidth;
             } else {
                 maxwidth = 2000000;
@@ -866,7 +1406,7 @@ public class MusicBook extends SurfaceView implements SurfaceHolder.Callback, Sc
                     endindex--;
                 }
             }
-            if (midiOptions.scrollVert) {
+            if (options.scrollVert) {
                 width = MusicBook.PageWidth;
             }
             // int range = endindex + 1 - startindex;
@@ -950,6 +1490,7 @@ public class MusicBook extends SurfaceView implements SurfaceHolder.Callback, Sc
         }
         shade1 = newshade1;
         shade2 = newshade2;
+        tiles.invalidate();
     }
 
     /**
@@ -1026,7 +1567,8 @@ public class MusicBook extends SurfaceView implements SurfaceHolder.Callback, Sc
     }
 
     /**
-     * Obtain the drawing canvas and call onDraw()
+     * Obtain the drawing canvas and draw the sheet music, from the tiles
+     * or from the bufferBitmap.
      */
     public void callOnDraw() {
         if (!surfaceReady) {
@@ -1037,7 +1579,14 @@ public class MusicBook extends SurfaceView implements SurfaceHolder.Callback, Sc
         if (canvas == null) {
             return;
         }
+        if (tiledDrawing) {
+            dirty.set(0, 0, viewWidth, viewHeight);
+            drawTiles(canvas, dirty);
+            holder.unlockCanvasAndPost(canvas);
+            return;
+        }
 //        onDraw(canvas);
+        long startNanos = System.nanoTime();
         if (bufferBitmap == null) {
             createBufferCanvas(viewWidth, viewHeight);
         }
@@ -1052,9 +1601,147 @@ public class MusicBook extends SurfaceView implements SurfaceHolder.Callback, Sc
         canvas.translate(-(scrollX - bufferX), -(scrollY - bufferY));
         canvas.drawBitmap(bufferBitmap, 0, 0, paint);
         canvas.translate(scrollX - bufferX, scrollY - bufferY);
+        bufferStats.addFrame(System.nanoTime() - startNanos, 0, 0);
         holder.unlockCanvasAndPost(canvas);
     }
 
+    /**
+     * Draw the tiles of the sheet music inside the given area of the view,
+     * and the shaded notes on top of them.  The missing tiles are drawn
+     * white and requested, followed by the tiles around the view, so
+     * they're ready for the next scroll.
+     */
+    private void drawTiles(Canvas canvas, Rect area) {
+        long startNanos = System.nanoTime();
+        int size = SheetTileCache.TileSize;
+        int firstColumn = (scrollX + Math.max(0, area.left)) / size;
+        int lastColumn = (scrollX + Math.min(viewWidth, area.right) - 1) / size;
+        int firstRow = (scrollY + Math.max(0, area.top)) / size;
+        int lastRow = (scrollY + Math.min(viewHeight, area.bottom) - 1) / size;
+        int count = 0;
+        int missing = 0;
+
+        canvas.save();
+        canvas.clipRect(area);
+        tiles.cancelRequests();
+        paint.setStyle(Paint.Style.FILL);
+        paint.setColor(Color.WHITE);
+        for (int row = firstRow; row <= lastRow; row++) {
+            for (int column = firstColumn; column <= lastColumn; column++) {
+                int left = column * size - scrollX;
+                int top = row * size - scrollY;
+                Bitmap tile = tiles.get(zoom, column, row);
+                if (tile != null) {
+                    canvas.drawBitmap(tile, left, top, null);
+                } else {
+                    canvas.drawRect(left, top, left + size, top + size, paint);
+                    tiles.request(zoom, column, row);
+                    missing++;
+                }
+                count++;
+            }
+        }
+        if (staffs != null) {
+            int lastSheetColumn = (int) (sheetwidth * zoom) / size;
+            int lastSheetRow = (int) (sheetheight * zoom) / size;
+            int viewColumn = (scrollX + viewWidth - 1) / size;
+            int viewRow = (scrollY + viewHeight - 1) / size;
+            for (int row = Math.max(0, scrollY / size - 1); row <= Math.min(viewRow + 1, lastSheetRow); row++) {
+                for (int column = Math.max(0, scrollX / size - 1); column <= Math.min(viewColumn + 1, lastSheetColumn); column++) {
+                    tiles.request(zoom, column, row);
+                }
+            }
+        }
+        paint.setStyle(Paint.Style.STROKE);
+        paint.setColor(Color.BLACK);
+
+        if (staffs != null) {
+            canvas.translate(-scrollX, -scrollY);
+            canvas.scale(zoom, zoom);
+            paint.setAntiAlias(true);
+            for (int entry : shadedEntries) {
+                if (entry >= 0) {
+                    shadeEntry(canvas, entry, true);
+                }
+            }
+        }
+        canvas.restore();
+        tileStats.addFrame(System.nanoTime() - startNanos, count, missing);
+    }
+
+    /**
+     * Shade or unshade the symbol of the given entry of the symbolIndex.
+     * The canvas is scaled by the zoom, with (0, 0) at the top of the sheet music.
+     */
+    private void shadeEntry(Canvas canvas, int entry, boolean shaded) {
+        int staffIndex = symbolIndex.getStaff(entry);
+        int ypos = staffTops[staffIndex];
+        canvas.translate(0, ypos);
+        staffs.get(staffIndex).ShadeSymbol(canvas, paint, shade1, shaded, symbolIndex.getSymbol(entry),
+                symbolIndex.getX(entry), symbolIndex.getPrevChord(entry), symbolIndex.getPrevX(entry));
+        canvas.translate(0, -ypos);
+    }
+
+    /**
+     * Add the area of the view covered by the shading of the given entry
+     * of the symbolIndex to the dirty rect
+     */
+    private void addDirtyEntry(int entry) {
+        int staffIndex = symbolIndex.getStaff(entry);
+        int x = symbolIndex.getX(entry);
+        int y = staffTops[staffIndex];
+        entryRect.set((int) ((x - 2) * zoom) - scrollX - 1,
+                (int) ((y - 2) * zoom) - scrollY - 1,
+                (int) Math.ceil((x + symbolIndex.getWidth(entry) + 2) * zoom) - scrollX + 1,
+                (int) Math.ceil((y + staffs.get(staffIndex).getHeight() + 2) * zoom) - scrollY + 1);
+        dirty.union(entryRect);
+    }
+
+    /**
+     * Some tiles were drawn in the background.  Draw them.
+     */
+    public void onTilesReady() {
+        callOnDraw();
+    }
+
+    /**
+     * Choose between drawing the sheet music from the tiles (the
+     * default), or redrawing the bufferBitmap on every frame.  The memory
+     * of the other one is freed.
+     */
+    public void setTiledDrawing(boolean tiled) {
+        if (tiled == tiledDrawing) {
+            return;
+        }
+        tiledDrawing = tiled;
+        if (tiled) {
+            if (bufferBitmap != null) {
+                bufferCanvas = null;
+                bufferBitmap.recycle();
+                bufferBitmap = null;
+            }
+        } else {
+            tiles.release();
+        }
+        callOnDraw();
+    }
+
+    public boolean isTiledDrawing() {
+        return tiledDrawing;
+    }
+
+    /**
+     * Return the time taken to draw the frames from the tiles (tiled is
+     * true) or from the bufferBitmap, to compare how smoothly they scroll
+     */
+    public SheetDrawStats getDrawStats(boolean tiled) {
+        return tiled ? tileStats : bufferStats;
+    }
+
+    public SheetTileCache getTileCache() {
+        return tiles;
+    }
+
     /**
      * Return true if the scrollX/scrollY is in the bufferBitmap
      */
@@ -1090,29 +1777,62 @@ public class MusicBook extends SurfaceView implements SurfaceHolder.Callback, Sc
         clip.right = (int) (clip.right / zoom);
         clip.bottom = (int) (clip.bottom / zoom);
         bufferCanvas.scale(zoom, zoom);
+        DrawStaffs(bufferCanvas, clip, paint, staffs, staffTops);
+        bufferCanvas.scale(1.0f / zoom, 1.0f / zoom);
+        bufferCanvas.translate(bufferX, bufferY);
+    }
 
+    /**
+     * Draw a white background and the staffs inside the clip area, which
+     * is in unzoomed sheet music coordinates.  The first staff in the
+     * clip is found with a binary search on the staffTops.
+     */
+    private static void DrawStaffs(Canvas canvas, Rect clip, Paint paint, ArrayList<Staff> staffs,
+                                   int[] staffTops) {
         // Draw a white background
         paint.setAntiAlias(true);
         paint.setStyle(Paint.Style.FILL);
         paint.setColor(Color.WHITE);
-        bufferCanvas.drawRect(clip.left, clip.top, clip.right, clip.bottom, paint);
+        canvas.drawRect(clip.left, clip.top, clip.right, clip.bottom, paint);
         paint.setStyle(Paint.Style.STROKE);
         paint.setColor(Color.BLACK);
 
         // Draw the staffs in the clip area
-        int ypos = 0;
-        for (Staff staff : staffs) {
-            if ((ypos + staff.getHeight() < clip.top) || (ypos > clip.bottom)) {
-                /* Staff is not in the clip, don't need to draw it */
-            } else {
-                bufferCanvas.translate(0, ypos);
-                staff.Draw(bufferCanvas, clip, paint);
-                bufferCanvas.translate(0, -ypos);
-            }
-            ypos += staff.getHeight();
+        for (int i = FirstStaffEndingAt(staffTops, clip.top);
+             i < staffs.size() && staffTops[i] <= clip.bottom; i++) {
+            int ypos = staffTops[i];
+            canvas.translate(0, ypos);
+            staffs.get(i).Draw(canvas, clip, paint);
+            canvas.translate(0, -ypos);
+        }
+    }
+
+    /**
+     * @class SheetRenderer
+     * Draws the tiles of one layout of the sheet music, on the render
+     * thread of the SheetTileCache, with its own Paint.
+     * 在分块缓存的后台线程中绘制乐谱方块
+     */
+    private static class SheetRenderer implements SheetTileCache.TileRenderer {
+        private final ArrayList<Staff> staffs;
+        private final int[] staffTops;
+        private final Paint paint;
+
+        SheetRenderer(ArrayList<Staff> staffs, int[] staffTops, Paint paint) {
+            this.staffs = staffs;
+            this.staffTops = staffTops;
+            this.paint = new Paint(paint);
+        }
+
+        @Override
+        public void drawTile(Canvas canvas, int left, int top, float zoom) {
+            int size = SheetTileCache.TileSize;
+            Rect clip = new Rect((int) (left / zoom), (int) (top / zoom),
+                    (int) Math.ceil((left + size) / zoom), (int) Math.ceil((top + size) / zoom));
+            canvas.translate(-left, -top);
+            canvas.scale(zoom, zoom);
+            DrawStaffs(canvas, clip, paint, staffs, staffTops);
         }
-        bufferCanvas.scale(1.0f / zoom, 1.0f / zoom);
-        bufferCanvas.translate(bufferX, bufferY);
     }
 
 
@@ -1259,7 +1979,8 @@ public class MusicBook extends SurfaceView implements SurfaceHolder.Callback, Sc
     /**
      * Shade all the chords played at the given pulse time.
      * First, make sure the current scroll position is in the bufferBitmap.
-     * Loop through all the staffs and call staff.Shade().
+     * Find the shaded symbols of each track with the symbolIndex, and
+     * unshade those of prevPulseTime.
      * If scrollGradually is true, scroll gradually (smooth scrolling)
      * to the shaded notes.
      */
@@ -1267,6 +1988,11 @@ public class MusicBook extends SurfaceView implements SurfaceHolder.Callback, Sc
         if (!surfaceReady || staffs == null) {
             return;
         }
+        if (tiledDrawing) {
+            shadeTiles(currentPulseTime, scrollType);
+            return;
+        }
+        long startNanos = System.nanoTime();
         if (bufferCanvas == null) {
             createBufferCanvas(viewWidth, viewHeight);
         }
@@ -1283,41 +2009,29 @@ public class MusicBook extends SurfaceView implements SurfaceHolder.Callback, Sc
          */
         bufferCanvas.translate(-bufferX, -bufferY);
 
-        /* Loop through each staff.  Each staff will shade any notes that
-         * start at currentPulseTime, and unshade notes at prevPulseTime.
+        /* For each track, find the symbol shaded at prevPulseTime and the
+         * one at currentPulseTime.  Unshade the first and shade the second.
          */
-        int x_shade = 0;
-        int y_shade = 0;
         paint.setAntiAlias(true);
         bufferCanvas.scale(zoom, zoom);
-        int ypos = 0;
-        for (Staff staff : staffs) {
-            bufferCanvas.translate(0, ypos);
-            x_shade = staff.ShadeNotes(bufferCanvas, paint, shade1,
-                    currentPulseTime, prevPulseTime, x_shade);
-            bufferCanvas.translate(0, -ypos);
-            ypos += staff.getHeight();
-            if (currentPulseTime >= staff.getEndTime()) {
-                y_shade += staff.getHeight();
+        for (int track = 0; track < symbolIndex.getTrackCount(); track++) {
+            int prevEntry = prevPulseTime < 0 ? -1 : symbolIndex.find(track, prevPulseTime);
+            int currentEntry = currentPulseTime < 0 ? -1 : symbolIndex.find(track, currentPulseTime);
+            if (prevEntry == currentEntry) {
+                continue;
+            }
+            if (prevEntry >= 0) {
+                shadeEntry(bufferCanvas, prevEntry, false);
+            }
+            if (currentEntry >= 0) {
+                shadeEntry(bufferCanvas, currentEntry, true);
             }
         }
         bufferCanvas.scale(1.0f / zoom, 1.0f / zoom);
         bufferCanvas.translate(bufferX, bufferY);
 
-        /* We have the (x,y) position of the shaded notes.
-         * Calculate the new scroll position.
-         */
-        if (currentPulseTime >= 0) {
-            x_shade = (int) (x_shade * zoom);
-            y_shade -= NoteHeight;
-            y_shade = (int) (y_shade * zoom);
-            if (scrollType == ImmediateScroll) {
-                ScrollToShadedNotes(x_shade, y_shade, false);
-            } else if (scrollType == GradualScroll) {
-                ScrollToShadedNotes(x_shade, y_shade, true);
-            } else if (scrollType == DontScroll) {
-            }
-        }
+        /* Calculate the new scroll position */
+        scrollToPulseTime(currentPulseTime, scrollType);
 
         /* If the new scrollX, scrollY is not in the buffer,
          * we have to call this method again.
@@ -1339,9 +2053,71 @@ public class MusicBook extends SurfaceView implements SurfaceHolder.Callback, Sc
         canvas.translate(-(scrollX - bufferX), -(scrollY - bufferY));
         canvas.drawBitmap(bufferBitmap, 0, 0, paint);
         canvas.translate(scrollX - bufferX, scrollY - bufferY);
+        bufferStats.addFrame(System.nanoTime() - startNanos, 0, 0);
         holder.unlockCanvasAndPost(canvas);
     }
 
+    /**
+     * Shade the chords played at the given pulse time, when drawing from
+     * the tiles.  The tiles are never shaded: the shading is drawn on top
+     * of them by drawTiles().  Unless the view scrolls, only the areas of
+     * the symbols unshaded and shaded are redrawn.
+     */
+    private void shadeTiles(int currentPulseTime, int scrollType) {
+        symbolIndex.find(currentPulseTime, nextEntries);
+        int oldScrollX = scrollX;
+        int oldScrollY = scrollY;
+        scrollToPulseTime(currentPulseTime, scrollType);
+
+        dirty.setEmpty();
+        for (int track = 0; track < nextEntries.length; track++) {
+            if (nextEntries[track] != shadedEntries[track]) {
+                if (shadedEntries[track] >= 0) {
+                    addDirtyEntry(shadedEntries[track]);
+                }
+                if (nextEntries[track] >= 0) {
+                    addDirtyEntry(nextEntries[track]);
+                }
+            }
+        }
+        int[] entries = shadedEntries;
+        shadedEntries = nextEntries;
+        nextEntries = entries;
+
+        if (scrollX != oldScrollX || scrollY != oldScrollY) {
+            callOnDraw();
+            return;
+        }
+        if (dirty.isEmpty() || !dirty.intersect(0, 0, viewWidth, viewHeight)) {
+            return;
+        }
+        SurfaceHolder holder = getHolder();
+        Canvas canvas = holder.lockCanvas(dirty);
+        if (canvas == null) {
+            return;
+        }
+        /* The surface may ask to redraw more than the dirty rect */
+        drawTiles(canvas, dirty);
+        holder.unlockCanvasAndPost(canvas);
+    }
+
+    /**
+     * Scroll to the symbols shaded at the given pulse time, found with
+     * the symbolIndex, unless the time is negative or scrollType is
+     * DontScroll.
+     */
+    private void scrollToPulseTime(int currentPulseTime, int scrollType) {
+        if (currentPulseTime < 0 || scrollType == DontScroll) {
+            return;
+        }
+        int x_shade = symbolIndex.getShadeX(currentPulseTime);
+        int y_shade = symbolIndex.getEndedHeight(currentPulseTime);
+        x_shade = (int) (x_shade * zoom);
+        y_shade -= NoteHeight;
+        y_shade = (int) (y_shade * zoom);
+        ScrollToShadedNotes(x_shade, y_shade, scrollType == GradualScroll);
+    }
+
     /**
      * Scroll the sheet music so that the shaded notes are visible.
      * If scrollGradually is true, scroll gradually (smooth scrolling)
@@ -1383,13 +2159,13 @@ public class MusicBook extends SurfaceView implements SurfaceHolder.Callback, Sc
      * and return the StartTime (pulseTime) of the symbols.
      */
     public int PulseTimeForPoint(Point point) {
+        if (staffs == null) {
+            return -1;
+        }
         Point scaledPoint = new Point((int) (point.x / zoom), (int) (point.y / zoom));
-        int y = 0;
-        for (Staff staff : staffs) {
-            if (scaledPoint.y >= y && scaledPoint.y <= y + staff.getHeight()) {
-                return staff.PulseTimeForPoint(scaledPoint);
-            }
-            y += staff.getHeight();
+        int i = FirstStaffEndingAt(staffTops, scaledPoint.y);
+        if (i < staffs.size() && scaledPoint.y >= staffTops[i]) {
+            return staffs.get(i).PulseTimeForPoint(scaledPoint);
         }
         return -1;
     }
@@ -1465,7 +2241,7 @@ public class MusicBook extends SurfaceView implements SurfaceHolder.Callback, Sc
         if (player != null) {
             player.MoveToClicked(scrollX + x, scrollY + y);
 
-            int i = PulseTimeForPoint(new Point(x, y));
+            int i = PulseTimeForPoint(new Point(scrollX + x, scrollY + y));
             player.setCurrentPulseTime(i);
         }
     }
@@ -1491,6 +2267,7 @@ public class MusicBook extends SurfaceView implements SurfaceHolder.Callback, Sc
      */
     public void surfaceDestroyed(SurfaceHolder holder) {
         surfaceReady = false;
+        tiles.release();
     }
 
     @Override
@@ -1519,7 +2296,7 @@ public class MusicBook extends SurfaceView implements SurfaceHolder.Callback, Sc
     public void saveMusicBookAsImages(File parentFolder, SaveMusicBookAsImagesCallback saveMusicBookAsImagesCallback) {
         String filename = midiFile.getFileName();
 
-        if (!midiOptions.scrollVert) {
+        if (!midiOptions.scrollVert || !layoutComplete) {
             midiOptions.scrollVert = true;
             init(midiFile, midiOptions);
             setPlayer(player);
@@ -1617,6 +2394,26 @@ public class MusicBook extends SurfaceView implements SurfaceHolder.Callback, Sc
 
     }
 
+    /**
+     * Told how the layout started by initAsync() goes.  Called on the UI
+     * thread.
+     */
+    public interface LayoutListener {
+        /**
+         * A stage of the layout of the first measures of the song (0 for
+         * StageTracks, done once for the whole song) took nanos
+         */
+        void onLayoutStage(String stage, int measures, long nanos);
+
+        /**
+         * The staffs of the first measures of the song are shown.
+         * complete is true once the whole song is.
+         */
+        void onLayoutPublished(int measures, int staffs, boolean complete);
+
+        void onLayoutFail(String text);
+    }
+
     public interface SaveMusicBookAsImagesCallback {
         void onSuccess();
 
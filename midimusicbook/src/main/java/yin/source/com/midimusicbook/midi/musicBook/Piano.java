@@ -19,7 +19,6 @@ import android.graphics.Color;
 import android.graphics.Paint;
 import android.support.v4.content.ContextCompat;
 import android.util.AttributeSet;
-import android.util.Log;
 import android.view.MotionEvent;
 import android.view.SurfaceHolder;
 import android.view.SurfaceView;
@@ -215,10 +214,6 @@ public class Piano extends SurfaceView implements SurfaceHolder.Callback, MidiPl
         ArrayList<MidiTrack> tracks = midifile.ChangeMidiNotes(options);
         MidiTrack track = MidiFile.CombineToSingleTrack(tracks);
         notes = track.getNotes();
-
-        for (MidiNote midiNote : notes) {
-            Log.i("Piano--midiNote", midiNote.toString());
-        }
         maxShadeDuration = midifile.getTime().getQuarter() * 2;
 
         /* We want to know which track the note came from.
@@ -0,0 +1,39 @@
+package yin.source.com.midimusicbook.midi.musicBook;
+
+/**
+ * @class PlaybackClock
+ * The PlaybackClock calls the MidiPlayer once per frame while playing,
+ * so the shading is computed when the screen can show it.  The
+ * ChoreographerClock follows the display's vsync; the FakePlaybackClock
+ * is advanced by hand, so the player's timing can be checked off-device.
+ * PlaybackClock在播放时每帧回调一次MidiPlayer。ChoreographerClock跟随屏幕的垂直同步，
+ * FakePlaybackClock由手动推进，可以在设备之外检查播放的时间
+ */
+public interface PlaybackClock {
+
+    /**
+     * Call the given callback once per frame, until stop() is called.
+     * If the clock is already started, only the callback is replaced.
+     */
+    void start(FrameCallback callback);
+
+    /**
+     * Stop calling the callback.  Does nothing if not started.
+     */
+    void stop();
+
+    /**
+     * Return the current time, in nanoseconds, in the same time base as
+     * the frame times (System.nanoTime() for a real clock)
+     */
+    long nanoTime();
+
+    interface FrameCallback {
+
+        /**
+         * Called once per frame, with the time the frame started in
+         * nanoseconds.  The callback may run a little after that time.
+         */
+        void doFrame(long frameTimeNanos);
+    }
+}
@@ -0,0 +1,131 @@
+package yin.source.com.midimusicbook.midi.musicBook;
+
+/**
+ * @class PlaybackClockStats
+ * The PlaybackClockStats adds up the timing of the playback frames:
+ * PlaybackClockStats统计播放时每帧的时间:
+ * - The interval between two frames, and its jitter (standard
+ * deviation) // 两帧之间的间隔及其抖动(标准差)
+ * - The latency of each frame: how long after the frame started its
+ * callback ran // 每帧回调相对帧开始时间的延迟
+ * - The shading lag: how long after a note started in the sound its
+ * shading was drawn // 音符开始发声到被标记的延迟
+ * - The number of frames, and the number that changed the shading // 帧数以及改变了标记的帧数
+ */
+public class PlaybackClockStats {
+
+    private long frames;
+    private long lastFrameNanos;
+    /**
+     * The start of the previous frame, or 0 after start() // 上一帧的开始时间
+     */
+    private long intervals;
+    private double intervalSum;
+    private double intervalSquares;
+    private long maxIntervalNanos;
+    private double latencySum;
+    private long maxLatencyNanos;
+    private long shades;
+    private double lagSum;
+    private long maxLagNanos;
+
+    /**
+     * The clock was started.  The interval to the next frame isn't counted.
+     */
+    public synchronized void start() {
+        lastFrameNanos = 0;
+    }
+
+    /**
+     * Add a frame that started at frameNanos and whose callback ran at callbackNanos
+     */
+    public synchronized void addFrame(long frameNanos, long callbackNanos) {
+        frames++;
+        if (lastFrameNanos != 0) {
+            long interval = frameNanos - lastFrameNanos;
+            intervals++;
+            intervalSum += interval;
+            intervalSquares += (double) interval * interval;
+            maxIntervalNanos = Math.max(maxIntervalNanos, interval);
+        }
+        lastFrameNanos = frameNanos;
+        long latency = Math.max(0, callbackNanos - frameNanos);
+        latencySum += latency;
+        maxLatencyNanos = Math.max(maxLatencyNanos, latency);
+    }
+
+    /**
+     * Add a frame that changed the shading, lagNanos after the notes
+     * started in the sound
+     */
+    public synchronized void addShade(long lagNanos) {
+        shades++;
+        lagSum += Math.max(0, lagNanos);
+        maxLagNanos = Math.max(maxLagNanos, lagNanos);
+    }
+
+    public synchronized long getFrameCount() {
+        return frames;
+    }
+
+    public synchronized long getShadeCount() {
+        return shades;
+    }
+
+    public synchronized double getAverageIntervalMillis() {
+        return intervals == 0 ? 0 : intervalSum / intervals / 1e6;
+    }
+
+    /**
+     * Return the standard deviation of the frame interval, in milliseconds
+     */
+    public synchronized double getJitterMillis() {
+        if (intervals == 0) {
+            return 0;
+        }
+        double mean = intervalSum / intervals;
+        return Math.sqrt(Math.max(0, intervalSquares / intervals - mean * mean)) / 1e6;
+    }
+
+    public synchronized double getMaxIntervalMillis() {
+        return maxIntervalNanos / 1e6;
+    }
+
+    public synchronized double getAverageLatencyMillis() {
+        return frames == 0 ? 0 : latencySum / frames / 1e6;
+    }
+
+    public synchronized double getMaxLatencyMillis() {
+        return maxLatencyNanos / 1e6;
+    }
+
+    public synchronized double getAverageLagMillis() {
+        return shades == 0 ? 0 : lagSum / shades / 1e6;
+    }
+
+    public synchronized double getMaxLagMillis() {
+        return maxLagNanos / 1e6;
+    }
+
+    public synchronized void clear() {
+        frames = 0;
+        lastFrameNanos = 0;
+        intervals = 0;
+        intervalSum = 0;
+        intervalSquares = 0;
+        maxIntervalNanos = 0;
+        latencySum = 0;
+        maxLatencyNanos = 0;
+        shades = 0;
+        lagSum = 0;
+        maxLagNanos = 0;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return String.format("PlaybackClockStats{frames=%d, shades=%d, interval=%.2f ms (jitter %.2f, max %.2f)"
+                        + ", latency=%.2f ms (max %.2f), lag=%.2f ms (max %.2f)}",
+                frames, shades, getAverageIntervalMillis(), getJitterMillis(), getMaxIntervalMillis(),
+                getAverageLatencyMillis(), getMaxLatencyMillis(), getAverageLagMillis(), getMaxLagMillis());
+    }
+}
@@ -0,0 +1,230 @@
+package yin.source.com.midimusicbook.midi.musicBook;
+
+/**
+ * @class PlaybackSync
+ * The PlaybackSync keeps the shading in step with the sound.  Counting
+ * the time since play was pressed ignores how long the synthesizer took
+ * to start, and the small difference between its clock and the
+ * system's, so the shading slowly drifts away from the sound.
+ * PlaybackSync使音符标记与声音保持同步。只计算按下播放后经过的时间会忽略合成器启动的延迟
+ * 以及其时钟与系统时钟的差别，标记会逐渐偏离声音
+ * <p/>
+ * Instead, the position reported by the player is sampled a few times
+ * per second.  A line is fitted through the last samples (linear
+ * regression of position over time), which smooths the jitter of the
+ * reported positions and measures the drift.  The position returned by
+ * positionAt() follows the system clock, plus an offset that moves
+ * towards that line by at most maxSlew milliseconds per millisecond, so
+ * the shading never jumps (except when the error is larger than
+ * snapMillis, e.g. when the sound starts late).
+ * 每秒对播放器报告的位置采样几次，对最近的采样做线性回归以平滑抖动并测量漂移。
+ * positionAt()返回的位置按系统时钟前进，再加上一个逐渐靠近回归直线的偏移量，所以标记不会跳动
+ * <p/>
+ * Positions are in milliseconds of the sound since it started playing,
+ * and times are in nanoseconds of the PlaybackClock.
+ */
+public class PlaybackSync {
+
+    public static final int DefaultWindow = 50;
+    public static final double DefaultMaxSlew = 0.05;
+    public static final double DefaultSnapMillis = 500;
+
+    private final long[] sampleNanos;
+    private final double[] samplePositions;
+    private int sampleCount;
+    private int sampleNext;
+    /**
+     * The last samples, in a circular buffer // 最近的采样(循环缓冲区)
+     */
+    private final double maxSlew;
+    private final double snapMillis;
+    private long startNanos;
+    private double offset;
+    private long offsetNanos;
+    /**
+     * The correction added to the time since startNanos, and when it was
+     * last updated // 加在经过时间上的修正量，以及上次更新的时间
+     */
+
+    private long samples;
+    private long snaps;
+    private double lastError;
+    private double maxError;
+    private double totalCorrection;
+    private double drift;
+    private double jitter;
+
+    public PlaybackSync() {
+        this(DefaultWindow, DefaultMaxSlew, DefaultSnapMillis);
+    }
+
+    /**
+     * Create a PlaybackSync.
+     *
+     * @param window     The number of samples the line is fitted through
+     * @param maxSlew    The largest correction per millisecond, e.g. 0.05
+     *                   lets the shading run 5% faster or slower
+     * @param snapMillis Errors larger than this are corrected at once
+     */
+    public PlaybackSync(int window, double maxSlew, double snapMillis) {
+        sampleNanos = new long[Math.max(window, 2)];
+        samplePositions = new double[sampleNanos.length];
+        this.maxSlew = maxSlew;
+        this.snapMillis = snapMillis;
+    }
+
+    /**
+     * The sound started playing (position 0) at the given time.  The
+     * samples of the previous playback are dropped.
+     */
+    public void start(long nanos) {
+        startNanos = nanos;
+        offset = 0;
+        offsetNanos = nanos;
+        sampleCount = 0;
+        sampleNext = 0;
+    }
+
+    /**
+     * Drop the samples, but keep the current correction.  Used when the
+     * player changes its rate, as the samples from before don't fit the
+     * same line as the ones after.
+     */
+    public void dropSamples() {
+        sampleCount = 0;
+        sampleNext = 0;
+    }
+
+    /**
+     * Add a position reported by the player at the given time.  While
+     * the sound hasn't started the position stays at 0, and those
+     * samples would bend the line, so only the last of them is kept.
+     */
+    public void addSample(long nanos, double positionMillis) {
+        if (positionMillis <= 0) {
+            dropSamples();
+        }
+        sampleNanos[sampleNext] = nanos;
+        samplePositions[sampleNext] = positionMillis;
+        sampleNext = (sampleNext + 1) % sampleNanos.length;
+        sampleCount = Math.min(sampleCount + 1, sampleNanos.length);
+        samples++;
+    }
+
+    /**
+     * Return the position of the sound at the given time, in
+     * milliseconds.  The times passed must not decrease.
+     */
+    public double positionAt(long nanos) {
+        double elapsed = (nanos - startNanos) / 1000000.0;
+        if (sampleCount > 0) {
+            double error = fittedPosition(nanos) - (elapsed + offset);
+            lastError = error;
+            maxError = Math.max(maxError, Math.abs(error));
+            double step;
+            if (Math.abs(error) > snapMillis) {
+                step = error;
+                snaps++;
+            } else {
+                double limit = maxSlew * Math.max(0, nanos - offsetNanos) / 1000000.0;
+                step = Math.max(-limit, Math.min(limit, error));
+            }
+            offset += step;
+            totalCorrection += Math.abs(step);
+        }
+        offsetNanos = nanos;
+        return elapsed + offset;
+    }
+
+    /**
+     * Return the position of the line fitted through the samples at the
+     * given time.  With one sample, the line has a slope of 1.
+     */
+    private double fittedPosition(long nanos) {
+        /* Fit relative to the last sample, to keep the sums small */
+        int last = (sampleNext + sampleNanos.length - 1) % sampleNanos.length;
+        long origin = sampleNanos[last];
+        double sumX = 0, sumY = 0, sumXX = 0, sumXY = 0;
+        for (int i = 0; i < sampleCount; i++) {
+            double x = (sampleNanos[i] - origin) / 1000000.0;
+            double y = samplePositions[i];
+            sumX += x;
+            sumY += y;
+            sumXX += x * x;
+            sumXY += x * y;
+        }
+        int n = sampleCount;
+        double x = (nanos - origin) / 1000000.0;
+        double denominator = n * sumXX - sumX * sumX;
+        if (n < 3 || denominator <= 0) {
+            /* Not enough samples for a slope: assume the sound runs at the system's speed */
+            return (sumY - sumX) / n + x;
+        }
+        double slope = (n * sumXY - sumX * sumY) / denominator;
+        double intercept = (sumY - slope * sumX) / n;
+        drift = slope - 1;
+        double residuals = 0;
+        for (int i = 0; i < sampleCount; i++) {
+            double r = samplePositions[i] - (intercept + slope * (sampleNanos[i] - origin) / 1000000.0);
+            residuals += r * r;
+        }
+        jitter = Math.sqrt(residuals / n);
+        return intercept + slope * x;
+    }
+
+    /**
+     * Return the number of positions sampled from the player
+     */
+    public long getSampleCount() {
+        return samples;
+    }
+
+    /**
+     * Return how many times the error was corrected at once
+     */
+    public long getSnapCount() {
+        return snaps;
+    }
+
+    /**
+     * Return the difference between the player's position and the
+     * shading at the last call to positionAt(), in milliseconds
+     */
+    public double getLastErrorMillis() {
+        return lastError;
+    }
+
+    public double getMaxErrorMillis() {
+        return maxError;
+    }
+
+    /**
+     * Return the sum of all the corrections made, in milliseconds
+     */
+    public double getTotalCorrectionMillis() {
+        return totalCorrection;
+    }
+
+    /**
+     * Return how much faster the sound runs than the system clock, in
+     * parts per million, from the last fitted line
+     */
+    public double getDriftPpm() {
+        return drift * 1e6;
+    }
+
+    /**
+     * Return the spread of the samples around the fitted line
+     * (root mean square), in milliseconds
+     */
+    public double getJitterMillis() {
+        return jitter;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("PlaybackSync{samples=%d, drift=%.0f ppm, jitter=%.2f ms, error=%.2f ms (max %.2f)"
+                        + ", corrected=%.1f ms, snaps=%d}",
+                samples, getDriftPpm(), jitter, lastError, maxError, totalCorrection, snaps);
+    }
+}
@@ -0,0 +1,81 @@
+package yin.source.com.midimusicbook.midi.musicBook;
+
+/**
+ * @class ShadeDecision
+ * Decides, once per frame, what the MidiPlayer shades: the sheet music and
+ * the piano when the segment of the ShadeTimeline changes, and only the
+ * sheet music every 100 msec meanwhile, so it keeps scrolling gradually.
+ * 每帧决定MidiPlayer需要标记的内容：段改变时标记乐谱和钢琴，否则每100毫秒只标记一次乐谱，使其继续平滑滚动
+ */
+class ShadeDecision {
+
+    static final int DontShade = 0;
+    static final int ShadeSheet = 1;
+    static final int ShadeSheetAndPiano = 2;
+
+    static final long SheetRefreshNanos = 100000000L;
+    /**
+     * While the shaded notes don't change, the sheet music is still shaded
+     * every 100 msec // 音符不变时每100毫秒仍然标记一次乐谱
+     */
+
+    private int shadedSegment = -1;
+    private long sheetShadeNanos;
+    /**
+     * The segment last shaded, or -1, and the frame time of the last sheet
+     * shading // 上次标记的段，以及上次标记乐谱的时间
+     */
+    private boolean advanced;
+    /**
+     * True if the last frame moved the shading to a later segment // 上一帧是否标记了后面的段
+     */
+
+    /**
+     * Remember that the given segment was shaded at the given time,
+     * e.g. when playing starts
+     */
+    void shaded(int segment, long nanos) {
+        shadedSegment = segment;
+        sheetShadeNanos = nanos;
+        advanced = false;
+    }
+
+    /**
+     * Forget the shaded segment, e.g. when the loop starts again, so the
+     * next frame shades both
+     */
+    void clear() {
+        shadedSegment = -1;
+    }
+
+    /**
+     * Return what to shade in the frame at the given time, whose pulse
+     * time is in the given segment: DontShade, ShadeSheet or
+     * ShadeSheetAndPiano.  Unless it is DontShade, it is remembered as
+     * shaded.
+     */
+    int frame(int segment, long frameTimeNanos) {
+        boolean changed = segment != shadedSegment;
+        if (!changed && frameTimeNanos - sheetShadeNanos < SheetRefreshNanos) {
+            advanced = false;
+            return DontShade;
+        }
+        advanced = changed && shadedSegment >= 0 && segment > shadedSegment;
+        shadedSegment = segment;
+        sheetShadeNanos = frameTimeNanos;
+        return changed ? ShadeSheetAndPiano : ShadeSheet;
+    }
+
+    /**
+     * Return true if the last frame() moved the shading from a shaded
+     * segment to a later one.  Only then is its lag behind the start of
+     * the segment meaningful.
+     */
+    boolean advanced() {
+        return advanced;
+    }
+
+    int getShadedSegment() {
+        return shadedSegment;
+    }
+}
@@ -0,0 +1,92 @@
+package yin.source.com.midimusicbook.midi.musicBook;
+
+import java.util.Arrays;
+import java.util.List;
+
+import yin.source.com.midimusicbook.midi.baseBean.MidiNote;
+import yin.source.com.midimusicbook.midi.baseBean.MidiTrack;
+
+/**
+ * @class ShadeTimeline
+ * The ShadeTimeline divides the song into segments where the shaded
+ * notes don't change: a new segment starts at each note start and note
+ * end, and where the piano stops shading a long note (see
+ * Piano.ShadeNotes()).  Two pulse times in the same segment shade the
+ * same notes, so the MidiPlayer only redraws the shading when the segment
+ * changes.
+ * ShadeTimeline把歌曲分成若干段，每段中被标记的音符不变。同一段中的两个时间标记相同的音符，
+ * 所以只有段改变时MidiPlayer才需要重新标记
+ * <p/>
+ * The tracks are those shown in the sheet music (MidiFile.ChangeMidiNotes()),
+ * so the times include the shift time.
+ */
+public class ShadeTimeline {
+
+    private final int[] starts;
+    /**
+     * The start of each segment after the first, in pulses, sorted // 第一段之后每段的开始时间(已排序)
+     */
+
+    /**
+     * Create the timeline of the given tracks.  maxShadeDuration is the
+     * longest time the piano shades a note, in pulses.
+     */
+    public ShadeTimeline(List<MidiTrack> tracks, int maxShadeDuration) {
+        int count = 0;
+        for (MidiTrack track : tracks) {
+            count += track.getNotes().size() * 3;
+        }
+        int[] times = new int[count];
+        int n = 0;
+        for (MidiTrack track : tracks) {
+            for (MidiNote note : track.getNotes()) {
+                int start = note.getPulsesOfStartTime();
+                times[n++] = start;
+                times[n++] = note.getEndTime();
+                times[n++] = start + maxShadeDuration - 1;
+            }
+        }
+        Arrays.sort(times);
+        int unique = 0;
+        for (int i = 0; i < times.length; i++) {
+            if (unique == 0 || times[i] != times[unique - 1]) {
+                times[unique++] = times[i];
+            }
+        }
+        starts = Arrays.copyOf(times, unique);
+    }
+
+    /**
+     * Return the segment containing the given pulse time.  The segments
+     * are numbered from 0, before the first note.
+     */
+    public int segmentOf(double pulseTime) {
+        int low = 0;
+        int high = starts.length;
+        /* Count the segment starts <= pulseTime */
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (starts[mid] <= pulseTime) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        return low;
+    }
+
+    /**
+     * Return the start of the given segment in pulses, or
+     * Integer.MIN_VALUE for the first segment
+     */
+    public int getSegmentStart(int segment) {
+        return segment == 0 ? Integer.MIN_VALUE : starts[segment - 1];
+    }
+
+    /**
+     * Return the number of segments
+     */
+    public int size() {
+        return starts.length + 1;
+    }
+}
@@ -0,0 +1,87 @@
+package yin.source.com.midimusicbook.midi.musicBook;
+
+/**
+ * @class SheetDrawStats
+ * The SheetDrawStats adds up the time MusicBook takes to draw each frame
+ * of the sheet music on the UI thread, e.g. while scrolling, to compare
+ * drawing from the tiles with redrawing the buffer bitmap:
+ * SheetDrawStats统计MusicBook在UI线程上绘制每一帧乐谱的时间，用来比较分块绘制和重绘缓冲位图:
+ * - The average and longest time to draw a frame // 绘制一帧的平均和最长时间
+ * - The number of slow frames, which took longer than a frame of the
+ * display (FrameBudgetNanos) // 超过一帧显示时间的慢帧数量
+ * - The number of frames drawn before all their tiles were ready, and
+ * the number of tiles missing // 方块未全部准备好的帧数以及缺少的方块数
+ */
+public class SheetDrawStats {
+
+    public static final long FrameBudgetNanos = 16666667;
+
+    private long frames;
+    private double drawSum;
+    private long maxDrawNanos;
+    private long slowFrames;
+    private long incompleteFrames;
+    private long tilesDrawn;
+    private long tilesMissing;
+
+    /**
+     * Add a frame that took drawNanos to draw, from the given number of
+     * tiles, of which some were missing.  Frames drawn from the buffer
+     * have no tiles.
+     */
+    public synchronized void addFrame(long drawNanos, int tiles, int missing) {
+        frames++;
+        drawSum += drawNanos;
+        maxDrawNanos = Math.max(maxDrawNanos, drawNanos);
+        if (drawNanos > FrameBudgetNanos) {
+            slowFrames++;
+        }
+        if (missing > 0) {
+            incompleteFrames++;
+        }
+        tilesDrawn += tiles - missing;
+        tilesMissing += missing;
+    }
+
+    public synchronized long getFrameCount() {
+        return frames;
+    }
+
+    public synchronized double getAverageDrawMillis() {
+        return frames == 0 ? 0 : drawSum / frames / 1e6;
+    }
+
+    public synchronized double getMaxDrawMillis() {
+        return maxDrawNanos / 1e6;
+    }
+
+    public synchronized long getSlowFrameCount() {
+        return slowFrames;
+    }
+
+    public synchronized long getIncompleteFrameCount() {
+        return incompleteFrames;
+    }
+
+    public synchronized long getMissingTileCount() {
+        return tilesMissing;
+    }
+
+    public synchronized void clear() {
+        frames = 0;
+        drawSum = 0;
+        maxDrawNanos = 0;
+        slowFrames = 0;
+        incompleteFrames = 0;
+        tilesDrawn = 0;
+        tilesMissing = 0;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return String.format("SheetDrawStats{frames=%d, draw=%.2f ms (max %.2f), slow=%d, incomplete=%d"
+                        + ", tiles=%d (missing %d)}",
+                frames, getAverageDrawMillis(), getMaxDrawMillis(), slowFrames, incompleteFrames,
+                tilesDrawn, tilesMissing);
+    }
+}
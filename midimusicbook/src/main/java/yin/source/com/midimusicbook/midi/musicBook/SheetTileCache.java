@@ -0,0 +1,124 @@
+package yin.source.com.midimusicbook.midi.musicBook;
+
+import android.graphics.Bitmap;
+import android.graphics.Canvas;
+import android.graphics.Color;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.Process;
+
+import java.util.concurrent.Executor;
+
+/**
+ * @class SheetTileCache
+ * The SheetTileCache keeps the sheet music as square tiles of TileSize
+ * pixels, so scrolling only draws the bitmaps of the visible tiles,
+ * instead of drawing all the visible staffs again on every frame.
+ * SheetTileCache将乐谱保存为固定大小的方块位图，滚动时只需绘制可见的方块，而不是每一帧重新绘制所有可见的五线谱
+ * <p/>
+ * - The tiles are keyed by the zoom and their (column, row) in the zoomed
+ * sheet music // 方块以缩放比例和所在的行列作为键
+ * - The least recently used tiles are dropped once the bitmaps use more
+ * than maxBytes // 位图超过maxBytes时丢弃最久未使用的方块
+ * - The missing tiles are drawn by the TileRenderer on a background
+ * thread.  The latest requests are drawn first, and the requests of the
+ * previous frame are cancelled by cancelRequests() // 缺少的方块在后台线程绘制
+ * - invalidate() drops all the tiles, e.g. when the colors or options
+ * change.  Tiles still being drawn are dropped when they're done. // 颜色或选项改变时使所有方块失效
+ * - A longer layout of the same song only drops the tiles below the
+ * part that changed (setRenderer(renderer, keepHeight)) // 同一首歌更长的布局只丢弃变化部分以下的方块
+ * <p/>
+ * The tiles only hold the sheet music, without the shading, and are
+ * RGB_565 since the sheet is opaque.  All the methods must be called on
+ * the UI thread.  The requests and generations are kept by the TileCache.
+ */
+public class SheetTileCache extends TileCache<SheetTileCache.TileRenderer, Bitmap> {
+
+    public static final int TileSize = TileCache.TileSize;
+    public static final int BytesPerTile = TileSize * TileSize * 2;
+    public static final long DefaultMaxBytes = 16L * 1024 * 1024;
+
+    /**
+     * Draws the sheet music into a tile.  Called on the render thread.
+     */
+    public interface TileRenderer {
+        /**
+         * Draw the area of the sheet music at the given zoom whose
+         * top-left corner is (left, top), in zoomed pixels, so that
+         * (left, top) is at (0, 0) on the canvas.  The canvas is white.
+         */
+        void drawTile(Canvas canvas, int left, int top, float zoom);
+    }
+
+    /**
+     * Told when new tiles are ready to be drawn.  Called on the UI thread.
+     */
+    public interface TileListener {
+        void onTilesReady();
+    }
+
+    private final TileListener listener;
+
+    public SheetTileCache(TileListener listener) {
+        this(DefaultMaxBytes, listener);
+    }
+
+    public SheetTileCache(long maxBytes, TileListener listener) {
+        super(maxBytes, new Executor() {
+            private final Handler handler = new Handler(Looper.getMainLooper());
+
+            @Override
+            public void execute(Runnable runnable) {
+                handler.post(runnable);
+            }
+        }, "SheetTileCache");
+        this.listener = listener;
+    }
+
+    /**
+     * Return the bytes used by the tiles covering a view of the given
+     * size, at any scroll position
+     */
+    public static long BytesForView(int width, int height) {
+        return (long) (width / TileSize + 2) * (height / TileSize + 2) * BytesPerTile;
+    }
+
+    @Override
+    Bitmap createTile() {
+        return Bitmap.createBitmap(TileSize, TileSize, Bitmap.Config.RGB_565);
+    }
+
+    @Override
+    void drawTile(TileRenderer renderer, Bitmap tile, TileKey key) {
+        tile.eraseColor(Color.WHITE);
+        renderer.drawTile(new Canvas(tile), key.column * TileSize, key.row * TileSize, key.zoom);
+    }
+
+    @Override
+    void freeTile(Bitmap tile) {
+        tile.recycle();
+    }
+
+    @Override
+    long getByteCount(Bitmap tile) {
+        return tile.getByteCount();
+    }
+
+    @Override
+    void notifyTilesReady() {
+        listener.onTilesReady();
+    }
+
+    @Override
+    void onRenderThreadStart() {
+        Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+    }
+
+    @Override
+    public String toString() {
+        return String.format("SheetTileCache{tiles=%d, bytes=%d/%d, hits=%d, misses=%d, rendered=%d (%.2f ms each)"
+                        + ", evictions=%d}",
+                getTileCount(), getBytes(), getMaxBytes(), getHitCount(), getMissCount(), getRenderedCount(),
+                getAverageRenderMillis(), getEvictionCount());
+    }
+}
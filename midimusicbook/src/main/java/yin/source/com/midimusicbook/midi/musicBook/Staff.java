@@ -101,6 +101,15 @@ public class Staff {
     /**
      * The time (in pulses) of a measure
      */
+    private int[] symbolX;
+    /**
+     * The x position of each symbol after the key signature (the sum of
+     * the widths before it), plus the end of the last symbol // 每个符号相对第一个符号的x坐标(宽度的前缀和)
+     */
+    private int symbolsLeft;
+    /**
+     * The x position where Draw() draws the first symbol
+     */
 
     /**
      * Create a new staff with the given list of music symbols,
@@ -131,6 +140,7 @@ public class Staff {
         CalculateHeight();
         CalculateStartEndTime();
         FullJustify();
+        CalculateSymbolPositions();
     }
 
     /**
@@ -176,6 +186,13 @@ public class Staff {
         endtime = value;
     }
 
+    /**
+     * Return the symbols of the staff (notes, rests, bars, clef changes)
+     */
+    public ArrayList<MusicSymbol> getSymbols() {
+        return symbols;
+    }
+
     /**
      * Find the initial clef to use for this staff.  Use the clef of
      * the first ChordSymbol.
@@ -235,6 +252,48 @@ public class Staff {
         }
     }
 
+    /**
+     * Calculate the x position of each symbol, once their widths are
+     * final (after FullJustify()), so the symbols at an x position are
+     * found with a binary search.  A new layout creates new staffs.
+     */
+    private void CalculateSymbolPositions() {
+        symbolX = new int[symbols.size() + 1];
+        for (int i = 0; i < symbols.size(); i++) {
+            symbolX[i + 1] = symbolX[i] + symbols.get(i).getWidth();
+        }
+        symbolsLeft = MusicBook.LeftMargin + 5 + clefsym.getWidth();
+        for (AccidSymbol a : keys) {
+            symbolsLeft += a.getWidth();
+        }
+    }
+
+    /**
+     * Return the index of the first symbol whose right side is at or
+     * after x (relative to the first symbol), or the number of symbols
+     */
+    private int FirstSymbolEndingAt(int x) {
+        int low = 0;
+        int high = symbols.size();
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (symbolX[mid + 1] < x) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        return low;
+    }
+
+    /**
+     * Return the x position of the symbol at the given index, as used
+     * for shading: after the clef and key signature (keysigWidth)
+     */
+    public int getSymbolX(int index) {
+        return keysigWidth + symbolX[index];
+    }
+
     /**
      * Calculate the start and end time of this staff.
      */
@@ -351,22 +410,23 @@ public class Staff {
 
 
     /**
-     * Draw the measure numbers for each measure
+     * Draw the measure numbers for each measure between the left and
+     * right x positions (with a margin for the width of the numbers)
      */
-    private void DrawMeasureNumbers(Canvas canvas, Paint paint) {
+    private void DrawMeasureNumbers(Canvas canvas, Paint paint, int left, int right) {
         /* Skip the left side Clef symbol and key signature */
-        int xpos = keysigWidth;
         int ypos = ytop - MusicBook.NoteHeight * 3;
 
-        for (MusicSymbol s : symbols) {
+        for (int i = FirstSymbolEndingAt(left - 50 - keysigWidth);
+             i < symbols.size() && keysigWidth + symbolX[i] <= right + 50; i++) {
+            MusicSymbol s = symbols.get(i);
             if (s instanceof BarSymbol) {
                 int measure = 1 + s.getStartTime() / measureLength;
                 canvas.drawText("" + measure,
-                        xpos + MusicBook.NoteWidth / 2,
+                        keysigWidth + symbolX[i] + MusicBook.NoteWidth / 2,
                         ypos,
                         paint);
             }
-            xpos += s.getWidth();
         }
     }
 
@@ -437,25 +497,24 @@ public class Staff {
         }
        
         /* Draw the actual notes, rests, bars.  Draw the symbols one 
-         * after another, using the symbol width to determine the
-         * x position of the next symbol.
+         * after another, at the x positions computed from their widths.
          *
-         * For fast performance, only draw symbols that are in the clip area.
+         * For fast performance, only draw symbols that are in the clip area:
+         * find the first one with a binary search.
          */
-        for (MusicSymbol s : symbols) {
-            if ((xpos <= clip.left + clip.width() + 50) && (xpos + s.getWidth() + 50 >= clip.left)) {
-                canvas.translate(xpos, 0);
-                s.Draw(canvas, paint, ytop);
-                canvas.translate(-xpos, 0);
-            }
-            xpos += s.getWidth();
+        for (int i = FirstSymbolEndingAt(clip.left - 50 - symbolsLeft);
+             i < symbols.size() && symbolsLeft + symbolX[i] <= clip.left + clip.width() + 50; i++) {
+            xpos = symbolsLeft + symbolX[i];
+            canvas.translate(xpos, 0);
+            symbols.get(i).Draw(canvas, paint, ytop);
+            canvas.translate(-xpos, 0);
         }
         paint.setColor(Color.BLACK);
         DrawHorizLines(canvas, paint);
         DrawEndLines(canvas, paint);
 
         if (showMeasures) {
-            DrawMeasureNumbers(canvas, paint);
+            DrawMeasureNumbers(canvas, paint, clip.left, clip.right);
         }
         if (lyrics != null) {
             DrawLyrics(canvas, paint);
@@ -522,65 +581,15 @@ public class Staff {
                 return x_shade;
             }
 
-            boolean redrawLines = false;
-
             /* If symbol is in the previous time, draw a white background */
             if ((start <= prevPulseTime) && (prevPulseTime < end)) {
-                canvas.translate(xpos - 2, -2);
-                paint.setStyle(Paint.Style.FILL);
-                paint.setColor(Color.WHITE);
-                canvas.drawRect(0, 0, curr.getWidth() + 4, this.getHeight() + 4, paint);
-                paint.setStyle(Paint.Style.STROKE);
-                paint.setColor(Color.BLACK);
-                canvas.translate(-(xpos - 2), 2);
-                canvas.translate(xpos, 0);
-                curr.Draw(canvas, paint, ytop);
-                canvas.translate(-xpos, 0);
-
-                redrawLines = true;
+                ShadeSymbol(canvas, paint, shade, false, curr, xpos, prevChord, prev_xpos);
             }
 
             /* If symbol is in the current time, draw a shaded background */
             if ((start <= currentPulseTime) && (currentPulseTime < end)) {
                 x_shade = xpos;
-                canvas.translate(xpos, 0);
-                paint.setStyle(Paint.Style.FILL);
-                paint.setColor(shade);
-                canvas.drawRect(0, 0, curr.getWidth(), this.getHeight(), paint);
-                paint.setStyle(Paint.Style.STROKE);
-                paint.setColor(Color.BLACK);
-                curr.Draw(canvas, paint, ytop);
-                canvas.translate(-xpos, 0);
-                redrawLines = true;
-            }
-
-            /* If either a gray or white background was drawn, we need to redraw
-             * the horizontal staff lines, and redraw the stem of the previous chord.
-             */
-            if (redrawLines) {
-                int line = 1;
-                int y = ytop - MusicBook.LineWidth;
-                paint.setStyle(Paint.Style.STROKE);
-                paint.setColor(Color.BLACK);
-                paint.setStrokeWidth(1);
-                canvas.translate(xpos - 2, 0);
-                for (line = 1; line <= 5; line++) {
-                    canvas.drawLine(0, y, curr.getWidth() + 4, y, paint);
-                    y += MusicBook.LineWidth + MusicBook.LineSpace;
-                }
-                canvas.translate(-(xpos - 2), 0);
-
-                if (prevChord != null) {
-                    canvas.translate(prev_xpos, 0);
-                    prevChord.Draw(canvas, paint, ytop);
-                    canvas.translate(-prev_xpos, 0);
-                }
-                if (showMeasures) {
-                    DrawMeasureNumbers(canvas, paint);
-                }
-                if (lyrics != null) {
-                    DrawLyrics(canvas, paint);
-                }
+                ShadeSymbol(canvas, paint, shade, true, curr, xpos, prevChord, prev_xpos);
             }
             if (curr instanceof ChordSymbol) {
                 ChordSymbol chord = (ChordSymbol) curr;
@@ -594,23 +603,86 @@ public class Staff {
         return x_shade;
     }
 
+    /**
+     * Shade the symbol at the given index with the shade color, or
+     * unshade it (draw a white background) if shaded is false.  The x
+     * positions of the symbol and of the chord before it, whose stem is
+     * redrawn (prevChord, or -1), are those kept by the SymbolIndex.
+     */
+    public void ShadeSymbol(Canvas canvas, Paint paint, int shade, boolean shaded,
+                            int index, int xpos, int prevChord, int prevXpos) {
+        ShadeSymbol(canvas, paint, shade, shaded, symbols.get(index), xpos,
+                prevChord < 0 ? null : (ChordSymbol) symbols.get(prevChord), prevXpos);
+    }
+
+    /**
+     * Draw the shaded or white background of a symbol, and the symbol.
+     * Then redraw the horizontal staff lines, and the stem of the
+     * previous chord.
+     */
+    private void ShadeSymbol(Canvas canvas, Paint paint, int shade, boolean shaded,
+                             MusicSymbol curr, int xpos, ChordSymbol prevChord, int prev_xpos) {
+        if (shaded) {
+            canvas.translate(xpos, 0);
+            paint.setStyle(Paint.Style.FILL);
+            paint.setColor(shade);
+            canvas.drawRect(0, 0, curr.getWidth(), this.getHeight(), paint);
+            paint.setStyle(Paint.Style.STROKE);
+            paint.setColor(Color.BLACK);
+            curr.Draw(canvas, paint, ytop);
+            canvas.translate(-xpos, 0);
+        } else {
+            canvas.translate(xpos - 2, -2);
+            paint.setStyle(Paint.Style.FILL);
+            paint.setColor(Color.WHITE);
+            canvas.drawRect(0, 0, curr.getWidth() + 4, this.getHeight() + 4, paint);
+            paint.setStyle(Paint.Style.STROKE);
+            paint.setColor(Color.BLACK);
+            canvas.translate(-(xpos - 2), 2);
+            canvas.translate(xpos, 0);
+            curr.Draw(canvas, paint, ytop);
+            canvas.translate(-xpos, 0);
+        }
+
+        /* A gray or white background was drawn, so we need to redraw
+         * the horizontal staff lines, and redraw the stem of the previous chord.
+         */
+        int line = 1;
+        int y = ytop - MusicBook.LineWidth;
+        paint.setStyle(Paint.Style.STROKE);
+        paint.setColor(Color.BLACK);
+        paint.setStrokeWidth(1);
+        canvas.translate(xpos - 2, 0);
+        for (line = 1; line <= 5; line++) {
+            canvas.drawLine(0, y, curr.getWidth() + 4, y, paint);
+            y += MusicBook.LineWidth + MusicBook.LineSpace;
+        }
+        canvas.translate(-(xpos - 2), 0);
+
+        if (prevChord != null) {
+            canvas.translate(prev_xpos, 0);
+            prevChord.Draw(canvas, paint, ytop);
+            canvas.translate(-prev_xpos, 0);
+        }
+        if (showMeasures) {
+            DrawMeasureNumbers(canvas, paint, xpos - 2, xpos + curr.getWidth() + 2);
+        }
+        if (lyrics != null) {
+            DrawLyrics(canvas, paint);
+        }
+    }
+
     /**
      * Return the pulse time corresponding to the given point.
      * Find the notes/symbols corresponding to the x position,
      * and return the startTime (pulseTime) of the symbol.
      */
     public int PulseTimeForPoint(Point point) {
-
-        int xpos = keysigWidth;
-        int pulseTime = starttime;
-        for (MusicSymbol sym : symbols) {
-            pulseTime = sym.getStartTime();
-            if (point.x <= xpos + sym.getWidth()) {
-                return pulseTime;
-            }
-            xpos += sym.getWidth();
+        if (symbols.size() == 0) {
+            return starttime;
         }
-        return pulseTime;
+        int index = FirstSymbolEndingAt(point.x - keysigWidth);
+        return symbols.get(Math.min(index, symbols.size() - 1)).getStartTime();
     }
 
 
@@ -0,0 +1,253 @@
+package yin.source.com.midimusicbook.midi.musicBook;
+
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * @class SymbolIndex
+ * The SymbolIndex finds the symbols shaded at a given pulse time with a
+ * binary search, instead of walking all the staffs and summing the
+ * widths of their symbols (see Staff.ShadeNotes()).
+ * SymbolIndex用二分查找找到给定时间被标记的符号，而不需要遍历所有的五线谱并累加符号的宽度
+ * <p/>
+ * It is built once the staffs are laid out.  For each track, it keeps
+ * one entry per symbol (except the bars) sorted by start time, with:
+ * 每条音轨的每个符号(小节线除外)按开始时间排序保存:
+ * - The time the symbol is shaded, from its start to the start of the
+ * next symbol // 符号被标记的时间段
+ * - The staff and the index of the symbol in the staff // 所在的五线谱以及在五线谱中的序号
+ * - The x position and width of the symbol // 符号的x坐标和宽度
+ * - The chord before it whose stem must be redrawn // 需要重绘符干的前一个和弦
+ * <p/>
+ * The symbols of a track don't overlap in time, so at most one symbol
+ * per track is shaded at a time: the last one starting at or before it.
+ */
+public class SymbolIndex {
+
+    private final int[] trackFirst;
+    /**
+     * The first entry of each track, and the number of entries at the end // 每条音轨的第一个条目
+     */
+    private final int[] starts;
+    private final int[] ends;
+    private final int[] staffOf;
+    private final int[] symbolOf;
+    private final int[] xpos;
+    private final int[] widths;
+    private final int[] prevChords;
+    private final int[] prevXpos;
+    /**
+     * The entries.  prevChords is the index of the chord whose stem is
+     * redrawn, or -1. // 条目
+     */
+    private final int[] endTimes;
+    private final int[] endedHeights;
+    /**
+     * The end times of the staffs, sorted, and the total height of the
+     * staffs ending at or before each one // 五线谱的结束时间(已排序)以及此前结束的五线谱的总高度
+     */
+
+    /**
+     * Create the index of the given staffs, after their layout
+     */
+    public SymbolIndex(List<Staff> staffs, int tracks) {
+        trackFirst = new int[tracks + 1];
+        for (Staff staff : staffs) {
+            for (MusicSymbol symbol : staff.getSymbols()) {
+                if (!(symbol instanceof BarSymbol)) {
+                    trackFirst[staff.getTrack() + 1]++;
+                }
+            }
+        }
+        for (int track = 0; track < tracks; track++) {
+            trackFirst[track + 1] += trackFirst[track];
+        }
+        int count = trackFirst[tracks];
+        starts = new int[count];
+        ends = new int[count];
+        staffOf = new int[count];
+        symbolOf = new int[count];
+        xpos = new int[count];
+        widths = new int[count];
+        prevChords = new int[count];
+        prevXpos = new int[count];
+        endTimes = new int[staffs.size()];
+        endedHeights = new int[staffs.size() + 1];
+
+        int[] next = Arrays.copyOf(trackFirst, tracks);
+        int[][] heights = new int[staffs.size()][];
+        for (int s = 0; s < staffs.size(); s++) {
+            Staff staff = staffs.get(s);
+            heights[s] = new int[]{staff.getEndTime(), staff.getHeight()};
+            AddStaff(staff, s, next);
+        }
+
+        /* Sort the staffs by end time, to add up the heights of the staffs before a time */
+        Arrays.sort(heights, new Comparator<int[]>() {
+            @Override
+            public int compare(int[] a, int[] b) {
+                return a[0] < b[0] ? -1 : (a[0] == b[0] ? 0 : 1);
+            }
+        });
+        for (int i = 0; i < heights.length; i++) {
+            endTimes[i] = heights[i][0];
+            endedHeights[i + 1] = endedHeights[i] + heights[i][1];
+        }
+    }
+
+    /**
+     * Add the symbols of a staff, with the x positions and shade times
+     * computed as Staff.ShadeNotes() does
+     */
+    private void AddStaff(Staff staff, int staffIndex, int[] next) {
+        List<MusicSymbol> symbols = staff.getSymbols();
+        int prevChord = -1;
+        int prevX = 0;
+        for (int i = 0; i < symbols.size(); i++) {
+            MusicSymbol curr = symbols.get(i);
+            if (curr instanceof BarSymbol) {
+                continue;
+            }
+            int x = staff.getSymbolX(i);
+            int end;
+            if (i + 2 < symbols.size() && symbols.get(i + 1) instanceof BarSymbol) {
+                end = symbols.get(i + 2).getStartTime();
+            } else if (i + 1 < symbols.size()) {
+                end = symbols.get(i + 1).getStartTime();
+            } else {
+                end = staff.getEndTime();
+            }
+            int entry = next[staff.getTrack()]++;
+            starts[entry] = curr.getStartTime();
+            ends[entry] = end;
+            staffOf[entry] = staffIndex;
+            symbolOf[entry] = i;
+            xpos[entry] = x;
+            widths[entry] = curr.getWidth();
+            prevChords[entry] = prevChord;
+            prevXpos[entry] = prevX;
+
+            if (curr instanceof ChordSymbol) {
+                ChordSymbol chord = (ChordSymbol) curr;
+                if (chord.getStem() != null && !chord.getStem().getReceiver()) {
+                    prevChord = i;
+                    prevX = x;
+                }
+            }
+        }
+    }
+
+    /**
+     * Return the first entry of the track starting after the given time,
+     * or the end of the track's entries
+     */
+    private int FindAfter(int track, int pulseTime) {
+        int low = trackFirst[track];
+        int high = trackFirst[track + 1];
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (starts[mid] <= pulseTime) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        return low;
+    }
+
+    /**
+     * Return the entry of the given track shaded at the given time, or
+     * -1 if none is
+     */
+    public int find(int track, int pulseTime) {
+        int entry = FindAfter(track, pulseTime) - 1;
+        if (entry < trackFirst[track] || ends[entry] <= pulseTime) {
+            return -1;
+        }
+        return entry;
+    }
+
+    /**
+     * Store the entry of each track shaded at the given time in entries,
+     * or -1.  Return the number of shaded entries.
+     */
+    public int find(int pulseTime, int[] entries) {
+        int found = 0;
+        for (int track = 0; track < entries.length; track++) {
+            entries[track] = pulseTime < 0 ? -1 : find(track, pulseTime);
+            if (entries[track] >= 0) {
+                found++;
+            }
+        }
+        return found;
+    }
+
+    /**
+     * Return the x position to scroll to for the given time, as
+     * Staff.ShadeNotes() returns it: the x of the shaded symbol of the last
+     * track, or if none is shaded, of the next symbol.
+     */
+    public int getShadeX(int pulseTime) {
+        int tracks = trackFirst.length - 1;
+        for (int track = tracks - 1; track >= 0; track--) {
+            int entry = find(track, pulseTime);
+            if (entry >= 0) {
+                return xpos[entry];
+            }
+        }
+        for (int track = 0; track < tracks; track++) {
+            int entry = FindAfter(track, pulseTime);
+            if (entry < trackFirst[track + 1]) {
+                return xpos[entry];
+            }
+        }
+        return 0;
+    }
+
+    /**
+     * Return the total height of the staffs that end at or before the
+     * given time
+     */
+    public int getEndedHeight(int pulseTime) {
+        int low = 0;
+        int high = endTimes.length;
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (endTimes[mid] <= pulseTime) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        return endedHeights[low];
+    }
+
+    public int getTrackCount() {
+        return trackFirst.length - 1;
+    }
+
+    public int getStaff(int entry) {
+        return staffOf[entry];
+    }
+
+    public int getSymbol(int entry) {
+        return symbolOf[entry];
+    }
+
+    public int getX(int entry) {
+        return xpos[entry];
+    }
+
+    public int getWidth(int entry) {
+        return widths[entry];
+    }
+
+    public int getPrevChord(int entry) {
+        return prevChords[entry];
+    }
+
+    public int getPrevX(int entry) {
+        return prevXpos[entry];
+    }
+}
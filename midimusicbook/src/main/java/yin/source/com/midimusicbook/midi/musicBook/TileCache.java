@@ -0,0 +1,430 @@
+package yin.source.com.midimusicbook.midi.musicBook;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.Executor;
+
+/**
+ * @class TileCache
+ * The part of the SheetTileCache that doesn't use the Android classes:
+ * the tiles and their least recently used order, the requests, the render
+ * thread, and the generations that drop the tiles drawn before a change.
+ * T is the tile (a Bitmap), and R the renderer that draws it.  The
+ * subclass creates, draws and frees the tiles, so the bookkeeping can be
+ * checked off-device.
+ * SheetTileCache中不依赖Android类的部分：方块及其使用顺序、绘制请求、绘制线程，以及用来丢弃旧方块的代数。
+ * 子类负责创建、绘制和释放方块，因此可以在设备之外检查
+ * <p/>
+ * All the methods must be called on the UI thread, which is the thread
+ * of the given executor.
+ */
+abstract class TileCache<R, T> {
+
+    static final int TileSize = 256;
+    private static final int MaxSpareTiles = 8;
+    private static final long NotifyNanos = 16000000;
+
+    /**
+     * @class TileKey
+     * The zoom and position of a tile
+     */
+    static class TileKey {
+        float zoom;
+        int column;
+        int row;
+
+        TileKey(float zoom, int column, int row) {
+            this.zoom = zoom;
+            this.column = column;
+            this.row = row;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof TileKey)) {
+                return false;
+            }
+            TileKey key = (TileKey) o;
+            return key.zoom == zoom && key.column == column && key.row == row;
+        }
+
+        @Override
+        public int hashCode() {
+            return (Float.floatToIntBits(zoom) * 31 + column) * 31 + row;
+        }
+    }
+
+    private final LinkedHashMap<TileKey, T> tiles = new LinkedHashMap<>(64, 0.75f, true);
+    /**
+     * The tiles, from the least to the most recently used // 方块，按最近使用排序
+     */
+    private final TileKey lookup = new TileKey(0, 0, 0);
+    /**
+     * Reused to find the tiles, so drawing a frame creates no objects // 查找方块时复用的键
+     */
+    private long bytes;
+    private long maxBytes;
+    private final ArrayList<T> spare = new ArrayList<>();
+    /**
+     * Tiles that were dropped, reused for the next tiles // 被丢弃的方块，供新方块复用
+     */
+
+    private final ArrayDeque<TileKey> queue = new ArrayDeque<>();
+    /**
+     * The tiles to draw, the first one first.  Guarded by itself. // 等待绘制的方块
+     */
+    private final HashMap<TileKey, Integer> rendering = new HashMap<>();
+    /**
+     * The tiles being drawn, or drawn but not yet added, and the
+     * generation they're drawn for // 正在绘制的方块，以及绘制时的代数
+     */
+    private R renderer;
+    private int generation;
+    /**
+     * Increased by invalidate() and setRenderer(), to drop the tiles drawn
+     * before // invalidate()时增加，用来丢弃之前绘制的方块
+     */
+    private Thread worker;
+    private final String workerName;
+    private final Executor uiThread;
+    private long lastNotifyNanos;
+
+    private long hits;
+    private long misses;
+    private long rendered;
+    private long renderNanos;
+    private long evictions;
+
+    TileCache(long maxBytes, Executor uiThread, String workerName) {
+        this.maxBytes = maxBytes;
+        this.uiThread = uiThread;
+        this.workerName = workerName;
+    }
+
+    /**
+     * Return a new blank tile.  Called on the render thread.
+     */
+    abstract T createTile();
+
+    /**
+     * Clear the given tile, and draw the tile of the given key into it
+     * with the given renderer.  Called on the render thread.
+     */
+    abstract void drawTile(R renderer, T tile, TileKey key);
+
+    /**
+     * Free the given tile for good
+     */
+    abstract void freeTile(T tile);
+
+    abstract long getByteCount(T tile);
+
+    /**
+     * Tell the listener that new tiles are ready, or that tiles it asked
+     * for were dropped and should be asked for again
+     */
+    abstract void notifyTilesReady();
+
+    /**
+     * Called on the render thread when it starts, e.g. to lower its priority
+     */
+    void onRenderThreadStart() {
+    }
+
+    /**
+     * Set the most bytes the tiles may use.  It should be at least
+     * BytesForView(), or the visible tiles drop each other.
+     */
+    public void setMaxBytes(long maxBytes) {
+        this.maxBytes = maxBytes;
+        Trim();
+    }
+
+    public long getMaxBytes() {
+        return maxBytes;
+    }
+
+    /**
+     * Set the renderer of the sheet music, after a new layout.  All the
+     * tiles are dropped.
+     */
+    public void setRenderer(R renderer) {
+        synchronized (queue) {
+            this.renderer = renderer;
+        }
+        invalidate();
+    }
+
+    /**
+     * Set the renderer of the sheet music, after a layout that only
+     * changed the sheet music below keepHeight (in unzoomed pixels), e.g.
+     * a longer part of the same song.  The tiles entirely above it are
+     * kept, so they don't flash white; the others are dropped, and the
+     * requests are cancelled.
+     * 只丢弃keepHeight以下的方块，之上的方块保留，避免重新布局时闪白
+     */
+    public void setRenderer(R renderer, int keepHeight) {
+        synchronized (queue) {
+            this.renderer = renderer;
+            generation++;
+            queue.clear();
+        }
+        Iterator<Map.Entry<TileKey, T>> iterator = tiles.entrySet().iterator();
+        while (iterator.hasNext()) {
+            Map.Entry<TileKey, T> entry = iterator.next();
+            TileKey key = entry.getKey();
+            if ((key.row + 1) * TileSize > keepHeight * key.zoom) {
+                iterator.remove();
+                bytes -= getByteCount(entry.getValue());
+                Recycle(entry.getValue());
+            }
+        }
+    }
+
+    /**
+     * Drop all the tiles, and cancel the requests.  The tiles being drawn
+     * are dropped when they're done.
+     */
+    public void invalidate() {
+        synchronized (queue) {
+            generation++;
+            queue.clear();
+        }
+        for (T tile : tiles.values()) {
+            Recycle(tile);
+        }
+        tiles.clear();
+        bytes = 0;
+    }
+
+    /**
+     * Drop all the tiles and free them, and stop the render thread.  It is
+     * started again by the next request.
+     */
+    public void release() {
+        invalidate();
+        synchronized (queue) {
+            if (worker != null) {
+                worker.interrupt();
+                worker = null;
+            }
+        }
+        synchronized (spare) {
+            for (T tile : spare) {
+                freeTile(tile);
+            }
+            spare.clear();
+        }
+    }
+
+    /**
+     * Return the given tile, or null if it isn't drawn yet
+     */
+    public T get(float zoom, int column, int row) {
+        lookup.zoom = zoom;
+        lookup.column = column;
+        lookup.row = row;
+        T tile = tiles.get(lookup);
+        if (tile != null) {
+            hits++;
+        } else {
+            misses++;
+        }
+        return tile;
+    }
+
+    /**
+     * Cancel the tiles requested before, which haven't started drawing.
+     * Call at the start of each frame, before requesting its tiles.
+     */
+    public void cancelRequests() {
+        synchronized (queue) {
+            queue.clear();
+        }
+    }
+
+    /**
+     * Ask for the given tile to be drawn, unless it is drawn or being
+     * drawn already.  A tile being drawn for an older layout is drawn
+     * again.  Tiles are drawn in the order they're requested.
+     */
+    public void request(float zoom, int column, int row) {
+        lookup.zoom = zoom;
+        lookup.column = column;
+        lookup.row = row;
+        if (tiles.containsKey(lookup)) {
+            return;
+        }
+        synchronized (queue) {
+            Integer drawing = rendering.get(lookup);
+            if (renderer == null || (drawing != null && drawing == generation) || queue.contains(lookup)) {
+                return;
+            }
+            queue.addLast(new TileKey(zoom, column, row));
+            if (worker == null) {
+                worker = new Thread(new Runnable() {
+                    @Override
+                    public void run() {
+                        RenderTiles();
+                    }
+                }, workerName);
+                worker.start();
+            }
+            queue.notify();
+        }
+    }
+
+    /**
+     * The loop of the render thread: draw the requested tiles one after
+     * another, and hand them to the UI thread.
+     */
+    private void RenderTiles() {
+        onRenderThreadStart();
+        Thread self = Thread.currentThread();
+        while (true) {
+            final TileKey key;
+            final R tileRenderer;
+            final int tileGeneration;
+            synchronized (queue) {
+                while (worker == self && queue.isEmpty()) {
+                    try {
+                        queue.wait();
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                }
+                if (worker != self) {
+                    return;
+                }
+                key = queue.removeFirst();
+                tileRenderer = renderer;
+                tileGeneration = generation;
+                rendering.put(key, tileGeneration);
+            }
+            final T tile = TakeTile();
+            final long begin = System.nanoTime();
+            drawTile(tileRenderer, tile, key);
+            final long nanos = System.nanoTime() - begin;
+            uiThread.execute(new Runnable() {
+                @Override
+                public void run() {
+                    AddTile(key, tile, tileGeneration, nanos);
+                }
+            });
+        }
+    }
+
+    /**
+     * Add a tile drawn by the render thread, unless it was invalidated
+     * meanwhile.  Called on the UI thread.
+     */
+    private void AddTile(TileKey key, T tile, int tileGeneration, long nanos) {
+        boolean done;
+        boolean stale;
+        synchronized (queue) {
+            /* The same tile may be drawing again for a newer generation */
+            Integer drawing = rendering.get(key);
+            if (drawing != null && drawing == tileGeneration) {
+                rendering.remove(key);
+            }
+            stale = tileGeneration != generation;
+            done = queue.isEmpty();
+        }
+        if (stale) {
+            /* The view may have asked for this tile again while it was drawn
+             * for the old layout, so it is told to check */
+            Recycle(tile);
+        } else {
+            rendered++;
+            renderNanos += nanos;
+            T old = tiles.put(key, tile);
+            if (old != null) {
+                Recycle(old);
+            } else {
+                bytes += getByteCount(tile);
+            }
+            Trim();
+        }
+
+        /* Redraw once the requests are done, or once per frame meanwhile */
+        long now = System.nanoTime();
+        if (done || now - lastNotifyNanos >= NotifyNanos) {
+            lastNotifyNanos = now;
+            notifyTilesReady();
+        }
+    }
+
+    /**
+     * Drop the least recently used tiles until they fit in maxBytes
+     */
+    private void Trim() {
+        Iterator<Map.Entry<TileKey, T>> iterator = tiles.entrySet().iterator();
+        while (bytes > maxBytes && iterator.hasNext()) {
+            T tile = iterator.next().getValue();
+            iterator.remove();
+            bytes -= getByteCount(tile);
+            evictions++;
+            Recycle(tile);
+        }
+    }
+
+    /**
+     * Keep a dropped tile for reuse, or free it
+     */
+    private void Recycle(T tile) {
+        synchronized (spare) {
+            if (spare.size() < MaxSpareTiles) {
+                spare.add(tile);
+                return;
+            }
+        }
+        freeTile(tile);
+    }
+
+    /**
+     * Return a tile to draw into.  Called on the render thread.
+     */
+    private T TakeTile() {
+        synchronized (spare) {
+            if (!spare.isEmpty()) {
+                return spare.remove(spare.size() - 1);
+            }
+        }
+        return createTile();
+    }
+
+    public int getTileCount() {
+        return tiles.size();
+    }
+
+    public long getBytes() {
+        return bytes;
+    }
+
+    public long getHitCount() {
+        return hits;
+    }
+
+    public long getMissCount() {
+        return misses;
+    }
+
+    public long getRenderedCount() {
+        return rendered;
+    }
+
+    public long getEvictionCount() {
+        return evictions;
+    }
+
+    /**
+     * Return the average time to draw a tile, in milliseconds
+     */
+    public double getAverageRenderMillis() {
+        return rendered == 0 ? 0 : renderNanos / 1e6 / rendered;
+    }
+}
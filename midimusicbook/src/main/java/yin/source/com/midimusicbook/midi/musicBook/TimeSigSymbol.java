@@ -72,19 +72,21 @@ public class TimeSigSymbol implements MusicSymbol {
     /**
      * Load the images into memory.
      */
-    public static void LoadImages(Context context) {
+    public static synchronized void LoadImages(Context context) {
         if (images != null) {
             return;
         }
-        images = new Bitmap[13];
+        /* Fill the array before setting images, for the other layout threads */
+        Bitmap[] loaded = new Bitmap[13];
         Resources res = context.getResources();
-        images[2] = BitmapFactory.decodeResource(res, R.drawable.two);
-        images[3] = BitmapFactory.decodeResource(res, R.drawable.three);
-        images[4] = BitmapFactory.decodeResource(res, R.drawable.four);
-        images[6] = BitmapFactory.decodeResource(res, R.drawable.six);
-        images[8] = BitmapFactory.decodeResource(res, R.drawable.eight);
-        images[9] = BitmapFactory.decodeResource(res, R.drawable.nine);
-        images[12] = BitmapFactory.decodeResource(res, R.drawable.twelve);
+        loaded[2] = BitmapFactory.decodeResource(res, R.drawable.two);
+        loaded[3] = BitmapFactory.decodeResource(res, R.drawable.three);
+        loaded[4] = BitmapFactory.decodeResource(res, R.drawable.four);
+        loaded[6] = BitmapFactory.decodeResource(res, R.drawable.six);
+        loaded[8] = BitmapFactory.decodeResource(res, R.drawable.eight);
+        loaded[9] = BitmapFactory.decodeResource(res, R.drawable.nine);
+        loaded[12] = BitmapFactory.decodeResource(res, R.drawable.twelve);
+        images = loaded;
     }
 
     /**
@@ -10,6 +10,7 @@ import android.net.Uri;
 
 
 import java.io.BufferedOutputStream;
+import java.io.Closeable;
 import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.FileInputStream;
@@ -66,12 +67,15 @@ public class IOUtil {
      * If any IO error_avator occurs, return null. 如果IO异常出现，返回null
      */
     public static byte[] getByteDataByUri(Uri uri, Activity activity) {
+        InputStream inputStream = null;
         try {
-            InputStream inputStream = handleFileInputStreamFromUri(uri, activity);
+            inputStream = getInputStreamByUri(uri, activity);
             return getBytesData(inputStream);
         } catch (Exception e) {
             e.printStackTrace();
             return null;
+        } finally {
+            closeQuietly(inputStream);
         }
     }
 
@@ -80,35 +84,43 @@ public class IOUtil {
      * If any IO error_avator occurs, return null. 如果IO异常出现，返回null
      */
     public static byte[] getByteDataByFile(File file) {
+        InputStream inputStream = null;
         try {
-            InputStream inputStream = new FileInputStream(file);
+            inputStream = new FileInputStream(file);
             return getBytesData(inputStream);
         } catch (Exception e) {
             e.printStackTrace();
             return null;
+        } finally {
+            closeQuietly(inputStream);
         }
     }
 
-    private static byte[] getBytesData(InputStream inputStream) throws IOException {
+    /**
+     * Read the stream until its end.  InputStream.available() is only an
+     * estimate (and is 0 for many content:// streams), so it can't be used
+     * to size the result.
+     * 读取输入流直到结束。available()只是一个估计值，不能用来确定数据长度
+     */
+    public static byte[] getBytesData(InputStream inputStream) throws IOException {
         if (inputStream == null) {
             throw new MidiFileException("inputStream is null");
         }
-        byte[] data;
-        int totalLen, len, offset;
-        totalLen = inputStream.available();
-        offset = 0;
-        data = new byte[totalLen];
-        while (offset < totalLen) {
-            len = inputStream.read(data, offset, totalLen - offset);
-            if (len <= 0) {
-                throw new MidiFileException("Error reading midi file");
-            }
-            offset += len;
+        ByteArrayOutputStream output = new ByteArrayOutputStream(Math.max(inputStream.available(), 4096));
+        byte[] buffer = new byte[4096];
+        int len;
+        while ((len = inputStream.read(buffer)) != -1) {
+            output.write(buffer, 0, len);
         }
-        return data;
+        return output.toByteArray();
     }
 
-    private static InputStream handleFileInputStreamFromUri(Uri uri, Activity activity) throws IOException {
+    /**
+     * Open the file referenced by the uri.  The uri can point to the
+     * /assets directory, a content provider, or a local file.
+     * 打开uri对应的文件，uri可以指向assets目录、content provider或本地文件
+     */
+    public static InputStream getInputStreamByUri(Uri uri, Activity activity) throws IOException {
         InputStream file;
 
         String uriString = uri.toString();
@@ -126,6 +138,17 @@ public class IOUtil {
         return file;
     }
 
+    public static void closeQuietly(Closeable closeable) {
+        if (closeable == null) {
+            return;
+        }
+        try {
+            closeable.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
 
     /**
      * Assets拷贝文件以及文件夹到指定目录
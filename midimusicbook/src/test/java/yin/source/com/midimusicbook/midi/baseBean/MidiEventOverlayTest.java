@@ -0,0 +1,192 @@
+package yin.source.com.midimusicbook.midi.baseBean;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+
+import static org.junit.Assert.*;
+
+/**
+ * Render small hand-built songs with the sound options, e.g. a loop
+ * window with MidiOptions.endTime, and check the events rendered.
+ * 用声音设置渲染手工构造的歌曲(例如用结束时间渲染循环片段)，检查渲染出的事件
+ */
+public class MidiEventOverlayTest {
+
+    private static final int Quarter = 192;
+    private static final int Measure = Quarter * 4;
+
+    @Test
+    public void loopWindow_endsAtTheLoopLengthWithoutGap() {
+        MidiFile song = new MidiFile(CreateSong(), "song.mid");
+        MidiFileWriter writer = new MidiFileWriter();
+
+        /* Loop the second measure, transposed up a tone */
+        MidiOptions options = CreateOptions(song);
+        options.transpose = 2;
+        options.pauseTime = Measure;
+        options.endTime = Measure * 2;
+        song.Write(writer, options);
+        MidiFile loop = new MidiFile(writer.toByteArray(), "loop.mid");
+
+        assertEquals(3, loop.getEventTables().size());
+        /* The events before the pause time are moved to 0, and every track
+         * ends at the loop length */
+        assertEquals("0 tempo 500000, 0 timesig, 0 tempo 500000, 768 end",
+                Describe(loop.getEventTables().get(0)));
+        /* Only the last volume before the pause time is kept, the note
+         * sounding at the end is turned off, and the note after the end
+         * is dropped */
+        assertEquals("0 tempo 500000, 0 cc 0 7 90, 192 off 0 62, 384 on 0 64, 768 off 0 64, 768 end",
+                Describe(loop.getEventTables().get(1)));
+        assertEquals("0 tempo 500000, 0 on 1 52, 384 off 1 52, 768 end",
+                Describe(loop.getEventTables().get(2)));
+
+        /* The loop file lasts as long as the loop: a measure of 4 quarter notes of 0.5 seconds */
+        assertEquals(2000000, loop.getTempoMap().tickToMicros(Measure));
+        TempoMap played = song.getPlaybackTempoMap();
+        assertEquals(played.tickToMicros(Measure * 2) - played.tickToMicros(Measure),
+                loop.getTempoMap().tickToMicros(Measure));
+    }
+
+    @Test
+    public void tempoEvents_areReplacedByThePlaybackTempo() {
+        /* Two tempo changes, in the conductor track and in a note track */
+        MidiEventTable conductor = new MidiEventTable();
+        conductor.addTempo(0, 500000);
+        conductor.addTempo(Measure, 250000);
+        AddEndOfTrack(conductor, Measure * 2);
+        MidiEventTable track = new MidiEventTable();
+        track.add(0, MidiEventTable.Status(MidiFile.EventNoteOn, 0), (byte) 60, (byte) 80, true);
+        track.addTempo(Quarter, 750000);
+        track.add(Measure * 2, MidiEventTable.Status(MidiFile.EventNoteOff, 0), (byte) 60, (byte) 0, true);
+        AddEndOfTrack(track, Measure * 2);
+        ArrayList<MidiEventTable> tracks = new ArrayList<>();
+        tracks.add(conductor);
+        tracks.add(track);
+        MidiFileWriter writer = new MidiFileWriter();
+        writer.write(tracks, 1, Quarter);
+        MidiFile song = new MidiFile(writer.toByteArray(), "tempo.mid");
+
+        MidiOptions options = CreateOptions(song);
+        options.tempo = 400000;
+        song.Write(writer, options);
+        MidiFile played = new MidiFile(writer.toByteArray(), "played.mid");
+
+        /* The added tempo at the start of each track, and the three tempo changes */
+        int tempos = 0;
+        for (MidiEventTable events : played.getEventTables()) {
+            for (int i = 0; i < events.size(); i++) {
+                if (events.getMetaevent(i) == MidiFile.MetaEventTempo) {
+                    assertEquals(400000, events.getTempo(i));
+                    tempos++;
+                }
+            }
+        }
+        assertEquals(5, tempos);
+        /* Two measures of 4 quarter notes at 0.4 seconds each */
+        assertEquals(3200000, played.getTempoMap().tickToMicros(Measure * 2));
+    }
+
+    /**
+     * Create options that play every track, without the Android defaults
+     * of MidiOptions(MidiFile)
+     */
+    private static MidiOptions CreateOptions(MidiFile song) {
+        int numtracks = song.getTracks().size();
+        MidiOptions options = new MidiOptions();
+        options.tracks = new boolean[numtracks];
+        options.mute = new boolean[numtracks];
+        options.instruments = new int[numtracks];
+        for (int i = 0; i < numtracks; i++) {
+            options.tracks[i] = true;
+            options.instruments[i] = song.getTracks().get(i).getInstrument();
+        }
+        options.useDefaultInstruments = true;
+        options.tempo = song.getTime().getTempo();
+        return options;
+    }
+
+    /**
+     * Create a song of three measures in 4/4, with a conductor track and
+     * two note tracks on channels 0 and 1.  Their notes and volume changes
+     * cross the measure lines.
+     */
+    private static byte[] CreateSong() {
+        MidiEventTable conductor = new MidiEventTable();
+        byte[] timeSignature = {4, 2, 24, 8};
+        conductor.addMeta(0, MidiFile.MetaEvent, MidiFile.MetaEventTimeSignature, timeSignature, 0, 4, true);
+        conductor.addTempo(0, 500000);
+        AddEndOfTrack(conductor, Measure * 3);
+
+        MidiEventTable first = new MidiEventTable();
+        first.add(0, MidiEventTable.Status(MidiFile.EventControlChange, 0), (byte) 7, (byte) 100, true);
+        AddNoteOn(first, 0, 0, 60);
+        first.add(Quarter * 2, MidiEventTable.Status(MidiFile.EventControlChange, 0), (byte) 7, (byte) 90, true);
+        AddNoteOff(first, Measure + Quarter, 0, 60);
+        AddNoteOn(first, Measure + Quarter * 2, 0, 62);
+        AddNoteOff(first, Measure * 2 + Quarter, 0, 62);
+        AddEndOfTrack(first, Measure * 3);
+
+        MidiEventTable second = new MidiEventTable();
+        AddNoteOn(second, 0, 1, 48);
+        AddNoteOff(second, Quarter * 2, 1, 48);
+        AddNoteOn(second, Measure, 1, 50);
+        AddNoteOff(second, Measure + Quarter * 2, 1, 50);
+        AddNoteOn(second, Measure * 2, 1, 53);
+        AddNoteOff(second, Measure * 2 + Quarter * 2, 1, 53);
+        AddEndOfTrack(second, Measure * 3);
+
+        ArrayList<MidiEventTable> tracks = new ArrayList<>();
+        tracks.add(conductor);
+        tracks.add(first);
+        tracks.add(second);
+        MidiFileWriter writer = new MidiFileWriter();
+        writer.write(tracks, 1, Quarter);
+        return writer.toByteArray();
+    }
+
+    /**
+     * Return the events of the given track as text, e.g. "0 on 1 52, 384 end"
+     */
+    private static String Describe(MidiEventTable events) {
+        StringBuilder result = new StringBuilder();
+        for (int i = 0; i < events.size(); i++) {
+            if (i > 0) {
+                result.append(", ");
+            }
+            result.append(events.getTick(i)).append(' ');
+            byte eventFlag = events.getEventFlag(i);
+            int channel = events.getChannel(i);
+            if (eventFlag == MidiFile.EventNoteOn) {
+                result.append("on ").append(channel).append(' ').append(events.getData1(i));
+            } else if (eventFlag == MidiFile.EventNoteOff) {
+                result.append("off ").append(channel).append(' ').append(events.getData1(i));
+            } else if (eventFlag == MidiFile.EventControlChange) {
+                result.append("cc ").append(channel).append(' ').append(events.getData1(i))
+                        .append(' ').append(events.getData2(i));
+            } else if (events.getMetaevent(i) == MidiFile.MetaEventTempo) {
+                result.append("tempo ").append(events.getTempo(i));
+            } else if (events.getMetaevent(i) == MidiFile.MetaEventTimeSignature) {
+                result.append("timesig");
+            } else if (events.getMetaevent(i) == MidiFile.MetaEventEndOfTrack) {
+                result.append("end");
+            } else {
+                result.append("status ").append(events.getStatus(i) & 0xFF);
+            }
+        }
+        return result.toString();
+    }
+
+    private static void AddNoteOn(MidiEventTable track, int tick, int channel, int number) {
+        track.add(tick, MidiEventTable.Status(MidiFile.EventNoteOn, channel), (byte) number, (byte) 80, true);
+    }
+
+    private static void AddNoteOff(MidiEventTable track, int tick, int channel, int number) {
+        track.add(tick, MidiEventTable.Status(MidiFile.EventNoteOff, channel), (byte) number, (byte) 0, true);
+    }
+
+    private static void AddEndOfTrack(MidiEventTable track, int tick) {
+        track.addMeta(tick, MidiFile.MetaEvent, MidiFile.MetaEventEndOfTrack, new byte[0], 0, 0, true);
+    }
+}
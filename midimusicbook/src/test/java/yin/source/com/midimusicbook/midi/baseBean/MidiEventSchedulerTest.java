@@ -0,0 +1,252 @@
+package yin.source.com.midimusicbook.midi.baseBean;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+
+import static org.junit.Assert.*;
+
+/**
+ * Play songs with a MidiEventScheduler into a MidiRecordingSink, and
+ * check the messages received and their timestamps.
+ * 用MidiEventScheduler把歌曲播放到MidiRecordingSink中，检查收到的消息和时间戳
+ */
+public class MidiEventSchedulerTest {
+
+    private static final int Quarter = 96;
+    private static final int Measure = Quarter * 4;
+    private static final long TimeoutMillis = 10000;
+
+    @Test
+    public void play_sendsTheEventsInOrderAtTheirTicks() throws InterruptedException {
+        MidiFile song = new MidiFile(CreateShortSong(), "song.mid");
+        MidiOptions options = CreateOptions(song);
+        /* Ten times as fast: a quarter note lasts 50 msec */
+        options.tempo = 50000;
+        MidiRecordingSink sink = new MidiRecordingSink();
+        MidiEventScheduler scheduler = new MidiEventScheduler(song, options, sink);
+
+        scheduler.start(0);
+        WaitUntilStopped(scheduler);
+
+        /* The channel messages of both tracks by tick, the first track first
+         * on a tie, and their times in msec */
+        int[][] expected = {
+                {0, 0xC0, 0, 0},
+                {0, 0x90, 60, 90},
+                {0, 0xC1, 40, 0},
+                {25, 0xB1, 7, 100},
+                {25, 0x91, 67, 90},
+                {50, 0x80, 60, 0},
+                {100, 0x90, 64, 90},
+                {125, 0x81, 67, 0},
+                {150, 0x80, 64, 0},
+        };
+        assertEquals(sink.toString(), expected.length, sink.size());
+        assertEquals(expected.length, scheduler.getEventCount());
+        for (int i = 0; i < expected.length; i++) {
+            int[] event = expected[i];
+            String name = "message " + i;
+            assertEquals(name, (byte) event[1], sink.getStatus(i));
+            assertEquals(name, (byte) event[2], sink.getData1(i));
+            assertEquals(name, (byte) event[3], sink.getData2(i));
+            assertEquals(name, event[0] * 1000000L, sink.getTimestamp(i) - sink.getTimestamp(0), 1000);
+        }
+        assertEquals(Measure, scheduler.getCurrentPulse(), Quarter);
+    }
+
+    @Test
+    public void mute_sendsNoteOffsForTheSoundingNotes() throws InterruptedException {
+        MidiFile song = new MidiFile(CreateLongNotes(), "song.mid");
+        MidiOptions options = CreateOptions(song);
+        /* A note of a measure lasts half a second */
+        options.tempo = 125000;
+        MidiRecordingSink sink = new MidiRecordingSink();
+        MidiEventScheduler scheduler = new MidiEventScheduler(song, options, sink);
+
+        scheduler.start(Measure);
+        int noteOn = WaitForNoteOn(sink, 0, 0);
+        /* The note of the second measure */
+        assertEquals(62, sink.getData1(noteOn));
+        MidiOptions muted = options.copy();
+        muted.mute[0] = true;
+        scheduler.setOptions(muted);
+        long mutedNanos = System.nanoTime();
+        WaitUntilStopped(scheduler);
+
+        /* The note sounding on channel 0 is turned off when the track is muted */
+        int noteOff = -1;
+        for (int i = noteOn + 1; i < sink.size() && noteOff < 0; i++) {
+            if (IsNoteOff(sink, i) && (sink.getStatus(i) & 0x0F) == 0 && sink.getData1(i) == sink.getData1(noteOn)) {
+                noteOff = i;
+            }
+        }
+        assertTrue(noteOff > noteOn);
+        /* A measure at 4 times the speed */
+        long noteNanos = 500000000;
+        assertTrue(sink.getTimestamp(noteOff) < sink.getTimestamp(noteOn) + noteNanos);
+        assertTrue(sink.getReceivedNanos(noteOff) <= mutedNanos + noteNanos);
+        /* Then only channel 1 plays */
+        for (int i = noteOff + 1; i < sink.size(); i++) {
+            assertFalse("message " + i, sink.isNoteOn(i) && (sink.getStatus(i) & 0x0F) == 0);
+        }
+        assertNoNoteHangs(sink);
+    }
+
+    @Test
+    public void stop_leavesNoNoteHanging() throws InterruptedException {
+        MidiFile song = new MidiFile(CreateLongNotes(), "song.mid");
+        MidiOptions options = CreateOptions(song);
+        options.tempo = 125000;
+        MidiRecordingSink sink = new MidiRecordingSink();
+        MidiEventScheduler scheduler = new MidiEventScheduler(song, options, sink);
+
+        scheduler.start(0);
+        WaitForNoteOn(sink, 1, 0);
+        scheduler.stop();
+        int stopped = sink.size();
+        int pulse = scheduler.getCurrentPulse();
+
+        assertFalse(scheduler.isPlaying());
+        assertTrue("pulse " + pulse, pulse > 0 && pulse < Measure * 4);
+        assertNoNoteHangs(sink);
+        Thread.sleep(50);
+        assertEquals(stopped, sink.size());
+    }
+
+    private static void assertNoNoteHangs(MidiRecordingSink sink) {
+        int[] sounding = new int[16 * 128];
+        for (int i = 0; i < sink.size(); i++) {
+            int key = (sink.getStatus(i) & 0x0F) * 128 + sink.getData1(i);
+            if (sink.isNoteOn(i)) {
+                sounding[key]++;
+            } else if (IsNoteOff(sink, i)) {
+                assertTrue("message " + i, sounding[key] > 0);
+                sounding[key]--;
+            }
+        }
+        for (int key = 0; key < sounding.length; key++) {
+            assertEquals("note " + key, 0, sounding[key]);
+        }
+    }
+
+    private static boolean IsNoteOff(MidiRecordingSink sink, int index) {
+        int eventFlag = sink.getStatus(index) & 0xF0;
+        return eventFlag == (MidiFile.EventNoteOff & 0xF0)
+                || (eventFlag == (MidiFile.EventNoteOn & 0xF0) && sink.getData2(index) == 0);
+    }
+
+    /**
+     * Wait until the sink receives a NoteOn on the given channel after the
+     * given index, and return its index
+     */
+    private static int WaitForNoteOn(MidiRecordingSink sink, int channel, int from) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + TimeoutMillis;
+        while (System.currentTimeMillis() < deadline) {
+            for (int i = from; i < sink.size(); i++) {
+                if (sink.isNoteOn(i) && (sink.getStatus(i) & 0x0F) == channel) {
+                    return i;
+                }
+            }
+            Thread.sleep(1);
+        }
+        fail("No NoteOn on channel " + channel);
+        return -1;
+    }
+
+    private static void WaitUntilStopped(MidiEventScheduler scheduler) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + TimeoutMillis;
+        while (scheduler.isPlaying() && System.currentTimeMillis() < deadline) {
+            Thread.sleep(5);
+        }
+        assertFalse(scheduler.isPlaying());
+    }
+
+    /**
+     * Create options that play every track, without the Android defaults
+     * of MidiOptions(MidiFile)
+     */
+    private static MidiOptions CreateOptions(MidiFile song) {
+        int numtracks = song.getTracks().size();
+        MidiOptions options = new MidiOptions();
+        options.tracks = new boolean[numtracks];
+        options.mute = new boolean[numtracks];
+        options.instruments = new int[numtracks];
+        for (int i = 0; i < numtracks; i++) {
+            options.tracks[i] = true;
+            options.instruments[i] = song.getTracks().get(i).getInstrument();
+        }
+        options.useDefaultInstruments = true;
+        options.tempo = song.getTime().getTempo();
+        return options;
+    }
+
+    /**
+     * Create a measure of notes at 120 beats per minute: on channel 0, two
+     * quarter notes with a rest between them, and on channel 1 a volume
+     * change and a half note, an eighth note behind
+     */
+    private static byte[] CreateShortSong() {
+        MidiEventTable first = new MidiEventTable();
+        first.add(0, MidiEventTable.Status(MidiFile.EventProgramChange, 0), (byte) 0, (byte) 0, true);
+        AddNote(first, 0, 0, 60, Quarter);
+        AddNote(first, Quarter * 2, 0, 64, Quarter);
+        AddEndOfTrack(first, Measure);
+
+        MidiEventTable second = new MidiEventTable();
+        second.add(0, MidiEventTable.Status(MidiFile.EventProgramChange, 1), (byte) 40, (byte) 0, true);
+        second.add(Quarter / 2, MidiEventTable.Status(MidiFile.EventControlChange, 1), (byte) 7, (byte) 100, true);
+        AddNote(second, Quarter / 2, 1, 67, Quarter * 2);
+        AddEndOfTrack(second, Measure);
+        return Write(first, second);
+    }
+
+    /**
+     * Create four measures of notes a measure long, on channel 0 from the
+     * start and on channel 1 half a measure behind
+     */
+    private static byte[] CreateLongNotes() {
+        MidiEventTable first = new MidiEventTable();
+        AddNote(first, 0, 0, 60, Measure);
+        AddNote(first, Measure, 0, 62, Measure);
+        AddNote(first, Measure * 2, 0, 64, Measure);
+        AddNote(first, Measure * 3, 0, 65, Measure);
+        AddEndOfTrack(first, Measure * 4);
+
+        MidiEventTable second = new MidiEventTable();
+        AddNote(second, Measure / 2, 1, 67, Measure);
+        AddNote(second, Measure * 3 / 2, 1, 69, Measure);
+        AddNote(second, Measure * 5 / 2, 1, 71, Measure);
+        AddEndOfTrack(second, Measure * 4);
+        return Write(first, second);
+    }
+
+    private static void AddNote(MidiEventTable track, int tick, int channel, int number, int duration) {
+        track.add(tick, MidiEventTable.Status(MidiFile.EventNoteOn, channel), (byte) number, (byte) 90, true);
+        track.add(tick + duration, MidiEventTable.Status(MidiFile.EventNoteOff, channel), (byte) number, (byte) 0, true);
+    }
+
+    /**
+     * Return a file of a conductor track in 4/4 at 120 beats per minute,
+     * followed by the given tracks
+     */
+    private static byte[] Write(MidiEventTable... tracks) {
+        ArrayList<MidiEventTable> tables = new ArrayList<>();
+        MidiEventTable conductor = new MidiEventTable();
+        byte[] timeSignature = {4, 2, 24, 8};
+        conductor.addMeta(0, MidiFile.MetaEvent, MidiFile.MetaEventTimeSignature, timeSignature, 0, 4, true);
+        conductor.addTempo(0, 500000);
+        AddEndOfTrack(conductor, tracks[0].getTick(tracks[0].size() - 1));
+        tables.add(conductor);
+        for (MidiEventTable track : tracks) {
+            tables.add(track);
+        }
+        MidiFileWriter writer = new MidiFileWriter();
+        writer.write(tables, 1, Quarter);
+        return writer.toByteArray();
+    }
+
+    private static void AddEndOfTrack(MidiEventTable track, int tick) {
+        track.addMeta(tick, MidiFile.MetaEvent, MidiFile.MetaEventEndOfTrack, new byte[0], 0, 0, true);
+    }
+}
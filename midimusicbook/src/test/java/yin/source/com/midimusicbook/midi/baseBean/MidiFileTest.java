@@ -0,0 +1,146 @@
+package yin.source.com.midimusicbook.midi.baseBean;
+
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import yin.source.com.midimusicbook.exception.MidiFileException;
+
+import static org.junit.Assert.*;
+
+/**
+ * Parse small hand-built midi files and check what MidiFile finds in them.
+ * 解析手工构造的midi文件，检查MidiFile的解析结果
+ */
+public class MidiFileTest {
+
+    private static final int Quarter = 480;
+
+    @Test
+    public void footBoards_sameChannelInTwoTracks_onePressPerPedal() {
+        /* Both tracks pedal channel 0, the way a piano part split into two
+         * staffs often does: the same presses twice, and presses that
+         * overlap a press of the other track.
+         */
+        MidiEventTable right = new MidiEventTable();
+        AddPedal(right, 0, 0, 127);
+        AddNote(right, 0, 0, 60, 300);
+        AddPedal(right, 480, 0, 0);
+        AddPedal(right, 960, 0, 127);
+        AddPedal(right, 1440, 0, 0);
+        AddEndOfTrack(right, 1920);
+
+        MidiEventTable left = new MidiEventTable();
+        AddPedal(left, 0, 0, 127);
+        AddNote(left, 100, 0, 48, 200);
+        AddPedal(left, 480, 0, 0);
+        /* Another channel, never released */
+        AddPedal(left, 1000, 1, 127);
+        /* Down while the other track's press is down: no new press */
+        AddPedal(left, 1200, 0, 100);
+        AddNote(left, 1200, 1, 36, 280);
+        /* Up after the other track released it: nothing to end */
+        AddPedal(left, 1680, 0, 0);
+        AddEndOfTrack(left, 1920);
+
+        MidiFile song = new MidiFile(Write(right, left), "pedal.mid");
+
+        List<FootBoard> footBoards = song.getFootBoards();
+        assertEquals(3, footBoards.size());
+        AssertFootBoard(footBoards.get(0), 0, 0, 480);
+        AssertFootBoard(footBoards.get(1), 0, 960, 1440);
+        AssertFootBoard(footBoards.get(2), 1, 1000, 1920);
+        assertEquals(127, footBoards.get(1).getVelocity());
+        /* 120 beats per minute: a quarter note lasts 500 msec */
+        assertEquals(1000, footBoards.get(1).getStartTimeInMills());
+        assertEquals(1500, footBoards.get(1).getEndTimeInMills());
+
+        /* The notes ending while the pedal is down sound until it is released */
+        ArrayList<MidiNote> notes = new ArrayList<>();
+        for (MidiTrack track : song.getTracks()) {
+            notes.addAll(track.getNotes());
+        }
+        assertEquals(3, notes.size());
+        for (MidiNote note : notes) {
+            if (note.getNoteNumber() == 60) {
+                assertEquals(480 - 300, note.getPedalActionTime());
+            } else if (note.getNoteNumber() == 48) {
+                assertEquals(480 - 300, note.getPedalActionTime());
+            } else {
+                assertEquals(1920 - 1480, note.getPedalActionTime());
+            }
+        }
+    }
+
+    @Test
+    public void openLazily_fileRewrittenWithTheSameLength_throws() throws IOException {
+        MidiEventTable track = new MidiEventTable();
+        AddNote(track, 0, 0, 60, Quarter);
+        AddEndOfTrack(track, Quarter);
+        byte[] data = Write(track);
+        File file = File.createTempFile("lazy", ".mid");
+        try {
+            WriteFile(file, data);
+            MidiFile song = MidiFile.OpenLazily(file, "lazy.mid");
+            assertFalse(song.isParsed());
+
+            /* Same length, other notes, a later modification time */
+            data[data.length - 6] = 62;
+            WriteFile(file, data);
+            assertTrue(file.setLastModified(file.lastModified() + 10000));
+            try {
+                song.getTracks();
+                fail("The changed file was parsed with the old chunk offsets");
+            } catch (MidiFileException e) {
+                assertFalse(song.isParsed());
+            }
+        } finally {
+            assertTrue(file.delete());
+        }
+    }
+
+    private static void AssertFootBoard(FootBoard footBoard, int channel, int startTime, int endTime) {
+        assertEquals(footBoard.toString(), channel, footBoard.getChannel());
+        assertEquals(footBoard.toString(), startTime, footBoard.getStartTime());
+        assertEquals(footBoard.toString(), endTime, footBoard.getEndTime());
+    }
+
+    private static void AddPedal(MidiEventTable track, int tick, int channel, int value) {
+        track.add(tick, MidiEventTable.Status(MidiFile.EventControlChange, channel), (byte) 64, (byte) value, true);
+    }
+
+    private static void AddNote(MidiEventTable track, int tick, int channel, int number, int duration) {
+        track.add(tick, MidiEventTable.Status(MidiFile.EventNoteOn, channel), (byte) number, (byte) 80, true);
+        track.add(tick + duration, MidiEventTable.Status(MidiFile.EventNoteOff, channel), (byte) number, (byte) 0, true);
+    }
+
+    private static void AddEndOfTrack(MidiEventTable track, int tick) {
+        track.addMeta(tick, MidiFile.MetaEvent, MidiFile.MetaEventEndOfTrack, new byte[0], 0, 0, true);
+    }
+
+    private static void WriteFile(File file, byte[] data) throws IOException {
+        FileOutputStream out = new FileOutputStream(file);
+        try {
+            out.write(data);
+        } finally {
+            out.close();
+        }
+    }
+
+    /**
+     * Return a file of the given tracks at 120 beats per minute
+     */
+    private static byte[] Write(MidiEventTable... tracks) {
+        ArrayList<MidiEventTable> tables = new ArrayList<>();
+        for (MidiEventTable track : tracks) {
+            tables.add(track);
+        }
+        MidiFileWriter writer = new MidiFileWriter();
+        writer.write(tables, 1, Quarter);
+        return writer.toByteArray();
+    }
+}
@@ -0,0 +1,174 @@
+package yin.source.com.midimusicbook.midi.musicBook;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * Check the corrections of PlaybackSync on a few samples worked out by
+ * hand, then follow a simulated player the way MidiPlayer does: the
+ * player's position is sampled every 200 msec, and the shading position
+ * is read once per frame.
+ * 先用几个手工计算的采样检查PlaybackSync的修正，再跟随模拟的播放器：每200毫秒采样一次位置，每帧读取一次标记位置
+ */
+public class PlaybackSyncTest {
+
+    private static final long FrameNanos = 16666667;
+    private static final long SampleNanos = 200000000;
+    private static final long SongNanos = 60000000000L;
+    private static final long SettleNanos = 10000000000L;
+    private static final double[] Jitter = {0.5, -1, 0.25, 1, -0.75, 0, -0.5, 0.5};
+    /**
+     * The jitter of the reported positions, as a part of jitterMillis, one
+     * after another.  Their mean is 0.
+     */
+
+    @Test
+    public void lateStart_errorConverges() {
+        Follow(120, 1.0, 15);
+    }
+
+    @Test
+    public void fastPlayer_errorConverges() {
+        Follow(250, 1.003, 20);
+    }
+
+    @Test
+    public void slowPlayer_errorConverges() {
+        Follow(60, 0.995, 30);
+    }
+
+    @Test
+    public void exactPlayer_isBarelyCorrected() {
+        /* Only the rounding of the reported positions is corrected */
+        PlaybackSync sync = Follow(0, 1.0, 0);
+        assertTrue(sync.getTotalCorrectionMillis() < 1);
+        assertTrue(sync.getMaxErrorMillis() < 1);
+    }
+
+    @Test
+    public void oneSample_shadingMovesTowardsItAtMostMaxSlew() {
+        PlaybackSync sync = new PlaybackSync();
+        sync.start(0);
+        /* The sound is 20 msec behind the clock */
+        sync.addSample(Millis(100), 80);
+
+        /* 5% of the 116 msec since the start */
+        assertEquals(110.2, sync.positionAt(Millis(116)), 1e-9);
+        assertEquals(-20, sync.getLastErrorMillis(), 1e-9);
+        /* 5% of the 16 msec since the last frame */
+        assertEquals(125.4, sync.positionAt(Millis(132)), 1e-9);
+        assertEquals(-14.2, sync.getLastErrorMillis(), 1e-9);
+        assertEquals(6.6, sync.getTotalCorrectionMillis(), 1e-9);
+        assertEquals(0, sync.getSnapCount());
+    }
+
+    @Test
+    public void samplesOnALine_giveItsDriftAndNoJitter() {
+        PlaybackSync sync = new PlaybackSync();
+        sync.start(0);
+        /* The sound starts 100 msec late, and runs 0.1% fast */
+        for (int millis = 200; millis <= 1000; millis += 200) {
+            sync.addSample(Millis(millis), millis * 1.001 - 100);
+        }
+
+        /* The line is at 901 msec at 1 second: 99 msec to correct, 50 of them at once */
+        assertEquals(950, sync.positionAt(Millis(1000)), 1e-9);
+        assertEquals(-99, sync.getLastErrorMillis(), 1e-9);
+        assertEquals(1000, sync.getDriftPpm(), 1e-6);
+        assertEquals(0, sync.getJitterMillis(), 1e-6);
+    }
+
+    @Test
+    public void lateStart_snapsOnlyBeforeTheSoundStarts() {
+        PlaybackSync sync = new PlaybackSync();
+        sync.start(0);
+        /* After a second the sound hasn't started yet: the shading waits at 0 */
+        sync.addSample(Millis(1000), 0);
+        assertEquals(0, sync.positionAt(Millis(1000)), 1e-9);
+        assertEquals(1, sync.getSnapCount());
+
+        /* It started then, and the shading follows it without a jump */
+        sync.addSample(Millis(1200), 200);
+        assertEquals(200, sync.positionAt(Millis(1200)), 1e-9);
+        assertEquals(0, sync.getLastErrorMillis(), 1e-9);
+        assertEquals(216, sync.positionAt(Millis(1216)), 1e-9);
+        assertEquals(1, sync.getSnapCount());
+    }
+
+    private static long Millis(int millis) {
+        return millis * 1000000L;
+    }
+
+    /**
+     * Play 60 seconds of a player that starts latencyMillis late, runs
+     * rate times as fast as the system clock, and reports positions
+     * rounded to 10 msec plus or minus up to jitterMillis (see Jitter).  Check that the
+     * shading converges to the sound without a jump.
+     */
+    private static PlaybackSync Follow(double latencyMillis, double rate, double jitterMillis) {
+        String name = "latency " + latencyMillis + ", rate " + rate + ", jitter " + jitterMillis;
+        Player player = new Player(latencyMillis, rate, jitterMillis);
+        PlaybackSync sync = new PlaybackSync();
+        long start = 1000000000L;
+        long lastSample = start;
+        double previous = 0;
+        double settledError = 0;
+        sync.start(start);
+        for (long t = start + FrameNanos; t <= start + SongNanos; t += FrameNanos) {
+            if (t - lastSample >= SampleNanos) {
+                lastSample = t;
+                sync.addSample(t, player.reportedPosition(t - start));
+            }
+            double position = sync.positionAt(t);
+
+            /* Each frame moves forward by one frame, sped up or slowed down by at most maxSlew */
+            double step = position - previous;
+            previous = position;
+            double frameMillis = FrameNanos / 1e6;
+            assertTrue(name + ": step " + step, step >= frameMillis * (1 - PlaybackSync.DefaultMaxSlew) - 1e-6);
+            assertTrue(name + ": step " + step, step <= frameMillis * (1 + PlaybackSync.DefaultMaxSlew) + 1e-6);
+
+            if (t - start > SettleNanos) {
+                settledError = Math.max(settledError, Math.abs(position - player.position(t - start)));
+            }
+        }
+        assertEquals(name, 0, sync.getSnapCount());
+        assertTrue(name + ": error " + settledError, settledError < jitterMillis + 10);
+        assertEquals(name, (rate - 1) * 1e6, sync.getDriftPpm(), 1000);
+        assertTrue(name + ": jitter " + sync.getJitterMillis(), sync.getJitterMillis() <= jitterMillis + 10);
+        return sync;
+    }
+
+    /**
+     * A player whose sound starts latencyMillis after play, and runs
+     * rate times as fast as the system clock
+     */
+    private static class Player {
+        private final double latencyMillis;
+        private final double rate;
+        private final double jitterMillis;
+        private int reports;
+
+        Player(double latencyMillis, double rate, double jitterMillis) {
+            this.latencyMillis = latencyMillis;
+            this.rate = rate;
+            this.jitterMillis = jitterMillis;
+        }
+
+        /**
+         * Return the true position of the sound, nanos after play
+         */
+        double position(long nanos) {
+            return Math.max(0, (nanos / 1e6 - latencyMillis) * rate);
+        }
+
+        /**
+         * Return the position the player reports, nanos after play
+         */
+        double reportedPosition(long nanos) {
+            double reported = Math.floor(position(nanos) / 10) * 10;
+            return reported + Jitter[reports++ % Jitter.length] * jitterMillis;
+        }
+    }
+}
@@ -0,0 +1,196 @@
+package yin.source.com.midimusicbook.midi.musicBook;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+
+import yin.source.com.midimusicbook.midi.baseBean.MidiNote;
+import yin.source.com.midimusicbook.midi.baseBean.MidiTrack;
+
+import static org.junit.Assert.*;
+
+/**
+ * Play a small song on a FakePlaybackClock the way MidiPlayer's frame
+ * callback does, with its ShadeDecision, and check when the shading is
+ * redrawn and what the PlaybackClockStats report.
+ * 用FakePlaybackClock模拟MidiPlayer的每帧回调，检查重新标记的时机和统计数据
+ */
+public class ShadeTimelineTest {
+
+    private static final int Quarter = 96;
+    private static final int MaxShadeDuration = Quarter * 2;
+    /* 120 beats per minute: a frame lasts 3.2 pulses */
+    private static final double PulsesPerNano = Quarter / 500000e3;
+    private static final long FrameNanos = 16666667;
+    private static final long CallbackDelayNanos = 4000000;
+
+    @Test
+    public void timeline_segmentsStartAtNoteStartsEndsAndShadeEnds() {
+        ShadeTimeline timeline = new ShadeTimeline(CreateTracks(), MaxShadeDuration);
+
+        /* 0 40 70 85 120 191 231 250 311 322 420 441 */
+        assertEquals(13, timeline.size());
+        assertEquals(Integer.MIN_VALUE, timeline.getSegmentStart(0));
+        assertEquals(0, timeline.getSegmentStart(1));
+        assertEquals(191, timeline.getSegmentStart(6));
+        assertEquals(441, timeline.getSegmentStart(12));
+        assertEquals(0, timeline.segmentOf(-1));
+        assertEquals(1, timeline.segmentOf(0));
+        assertEquals(1, timeline.segmentOf(39.9));
+        assertEquals(2, timeline.segmentOf(40));
+        assertEquals(5, timeline.segmentOf(190.5));
+        assertEquals(6, timeline.segmentOf(191));
+        assertEquals(12, timeline.segmentOf(10000));
+    }
+
+    @Test
+    public void frames_shadeOnlyWhenTheSegmentChanges() {
+        ArrayList<MidiTrack> tracks = CreateTracks();
+        final ShadeTimeline timeline = new ShadeTimeline(tracks, MaxShadeDuration);
+        final ArrayList<MidiNote> notes = new ArrayList<>();
+        for (MidiTrack track : tracks) {
+            notes.addAll(track.getNotes());
+        }
+        final FakePlaybackClock clock = new FakePlaybackClock(FrameNanos);
+        final PlaybackClockStats stats = new PlaybackClockStats();
+        final ShadeDecision decision = new ShadeDecision();
+        final StringBuilder shades = new StringBuilder();
+
+        clock.setCallbackDelay(CallbackDelayNanos);
+        stats.start();
+        decision.shaded(timeline.segmentOf(0), 0);
+        clock.start(new PlaybackClock.FrameCallback() {
+            String shadedNotes = ShadedNotes(notes, 0);
+
+            @Override
+            public void doFrame(long frameTimeNanos) {
+                /* As in MidiPlayer's frame callback */
+                stats.addFrame(frameTimeNanos, clock.nanoTime());
+                double pulseTime = frameTimeNanos * PulsesPerNano;
+                int shade = decision.frame(timeline.segmentOf(pulseTime), frameTimeNanos);
+                if (decision.advanced()) {
+                    int start = timeline.getSegmentStart(decision.getShadedSegment());
+                    stats.addShade((long) ((pulseTime - start) / PulsesPerNano));
+                }
+
+                String currentNotes = ShadedNotes(notes, pulseTime);
+                long frame = frameTimeNanos / FrameNanos;
+                if (shade == ShadeDecision.ShadeSheetAndPiano) {
+                    shades.append(frame).append("P ");
+                    shadedNotes = currentNotes;
+                } else {
+                    /* The piano isn't shaded, so its notes must not have changed */
+                    assertEquals("frame " + frame, shadedNotes, currentNotes);
+                    if (shade == ShadeDecision.ShadeSheet) {
+                        shades.append(frame).append("S ");
+                    }
+                }
+            }
+        });
+
+        /* 40 frames, in uneven steps as the main thread would run them */
+        long end = 40 * FrameNanos + CallbackDelayNanos;
+        for (int i = 0; clock.nanoTime() < end; i++) {
+            clock.advance(Math.min(i % 2 == 0 ? 7000000 : 40000000, end - clock.nanoTime()));
+        }
+        clock.stop();
+
+        /* The piano is shaded in the first frame of segments 2 (40 pulses,
+         * frame 13), 3 (70, frame 22), 4 (85, frame 27) and 5 (120, frame
+         * 38).  The sheet is also shaded 6 frames (100 msec) after its last
+         * shading. */
+        assertEquals("6S 12S 13P 19S 22P 27P 33S 38P ", shades.toString());
+        assertEquals(40, clock.getFrameCount());
+        assertEquals(40, stats.getFrameCount());
+        assertEquals(4, stats.getShadeCount());
+        assertEquals(FrameNanos / 1e6, stats.getAverageIntervalMillis(), 1e-3);
+        assertEquals(0, stats.getJitterMillis(), 1e-3);
+        assertEquals(FrameNanos / 1e6, stats.getMaxIntervalMillis(), 1e-3);
+        assertEquals(CallbackDelayNanos / 1e6, stats.getAverageLatencyMillis(), 1e-6);
+        assertEquals(CallbackDelayNanos / 1e6, stats.getMaxLatencyMillis(), 1e-6);
+        /* The lags are 1.6, 0.4, 1.4 and 1.6 pulses, of 500 / 96 msec */
+        assertEquals(1.6 * 500 / 96, stats.getMaxLagMillis(), 1e-3);
+        assertEquals(1.25 * 500 / 96, stats.getAverageLagMillis(), 1e-3);
+    }
+
+    @Test
+    public void decision_shadesTheSheetEvery100MsecAndBothOnAChange() {
+        ShadeDecision decision = new ShadeDecision();
+        decision.shaded(3, 0);
+
+        assertEquals(ShadeDecision.DontShade, decision.frame(3, 99999999));
+        assertEquals(ShadeDecision.ShadeSheet, decision.frame(3, 100000000));
+        assertFalse(decision.advanced());
+        assertEquals(ShadeDecision.DontShade, decision.frame(3, 110000000));
+        assertEquals(ShadeDecision.ShadeSheetAndPiano, decision.frame(5, 120000000));
+        assertTrue(decision.advanced());
+        assertEquals(5, decision.getShadedSegment());
+
+        /* Going back, e.g. when the loop starts again, has no lag */
+        decision.clear();
+        assertEquals(ShadeDecision.ShadeSheetAndPiano, decision.frame(1, 130000000));
+        assertFalse(decision.advanced());
+        assertEquals(ShadeDecision.DontShade, decision.frame(1, 140000000));
+        assertEquals(ShadeDecision.ShadeSheetAndPiano, decision.frame(0, 150000000));
+        assertFalse(decision.advanced());
+    }
+
+    @Test
+    public void stats_jitterIsTheDeviationOfTheFrameInterval() {
+        PlaybackClockStats stats = new PlaybackClockStats();
+        stats.start();
+        long frame = 1000000000L;
+        for (int i = 0; i < 100; i++) {
+            frame += i % 2 == 0 ? 10000000 : 20000000;
+            stats.addFrame(frame, frame + i % 3 * 1000000);
+        }
+        assertEquals(100, stats.getFrameCount());
+        assertEquals(15, stats.getAverageIntervalMillis(), 0.1);
+        assertEquals(5, stats.getJitterMillis(), 0.1);
+        assertEquals(20, stats.getMaxIntervalMillis(), 1e-6);
+        assertEquals(2, stats.getMaxLatencyMillis(), 1e-6);
+
+        /* After start() the gap to the next frame isn't an interval */
+        stats.start();
+        stats.addFrame(frame + 5000000000L, frame + 5000000000L);
+        assertEquals(20, stats.getMaxIntervalMillis(), 1e-6);
+
+        stats.clear();
+        assertEquals(0, stats.getFrameCount());
+        assertEquals(0, stats.getJitterMillis(), 0);
+    }
+
+    /**
+     * Return the notes the piano shades at the given pulse time (see
+     * Piano.ShadeNotes()), found by checking every note
+     */
+    private static String ShadedNotes(ArrayList<MidiNote> notes, double pulseTime) {
+        StringBuilder result = new StringBuilder();
+        for (int i = 0; i < notes.size(); i++) {
+            MidiNote note = notes.get(i);
+            int start = note.getPulsesOfStartTime();
+            int end = Math.min(note.getEndTime(), start + MaxShadeDuration - 1);
+            if (start <= pulseTime && pulseTime < end) {
+                result.append(i).append(' ');
+            }
+        }
+        return result.toString();
+    }
+
+    /**
+     * Create two tracks: notes at 0-70 and 120-420 (longer than the
+     * piano shades it, so until 311), and 40-85 and 250-322
+     */
+    private static ArrayList<MidiTrack> CreateTracks() {
+        ArrayList<MidiTrack> tracks = new ArrayList<>();
+        MidiTrack first = new MidiTrack(0);
+        first.AddNote(new MidiNote(0, 0, 60, 70));
+        first.AddNote(new MidiNote(120, 0, 62, 300));
+        tracks.add(first);
+        MidiTrack second = new MidiTrack(1);
+        second.AddNote(new MidiNote(40, 1, 48, 45));
+        second.AddNote(new MidiNote(250, 1, 50, 72));
+        tracks.add(second);
+        return tracks;
+    }
+}
@@ -0,0 +1,162 @@
+package yin.source.com.midimusicbook.midi.musicBook;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+/**
+ * Request tiles from a TileCache whose tiles remember which renderer drew
+ * them, and run what the render thread posts to the UI thread by hand.
+ * 向TileCache请求方块，方块记录绘制它的渲染器，手动执行绘制线程发给UI线程的任务
+ */
+public class TileCacheTest {
+
+    private static final long TimeoutMillis = 10000;
+
+    private final LinkedBlockingQueue<Runnable> posted = new LinkedBlockingQueue<>();
+    private final Cache cache = new Cache(posted);
+
+    @After
+    public void release() {
+        cache.release();
+    }
+
+    @Test
+    public void request_drawsTheTileAndNotifies() throws InterruptedException {
+        Renderer renderer = new Renderer(1, true);
+        cache.setRenderer(renderer);
+        cache.request(1.0f, 2, 3);
+
+        RunPosted();
+        assertEquals(1, cache.get(1.0f, 2, 3)[0]);
+        assertEquals(1, renderer.draws.get());
+        assertEquals(1, cache.notified);
+
+        /* A drawn tile isn't drawn again */
+        cache.request(1.0f, 2, 3);
+        assertNull(posted.poll(50, TimeUnit.MILLISECONDS));
+        assertEquals(1, renderer.draws.get());
+    }
+
+    @Test
+    public void publishTwiceWhileDrawing_tileIsDrawnAgainAndNotifies() throws InterruptedException {
+        Renderer first = new Renderer(1, false);
+        cache.setRenderer(first);
+        cache.request(1.0f, 0, 0);
+        Await(first.started);
+
+        /* Two longer layouts of the same song while the tile is drawn, each
+         * followed by a frame that asks for the tile again */
+        Renderer second = new Renderer(2, true);
+        cache.setRenderer(second, 0);
+        cache.cancelRequests();
+        cache.request(1.0f, 0, 0);
+        Renderer third = new Renderer(3, true);
+        cache.setRenderer(third, 0);
+        cache.cancelRequests();
+        cache.request(1.0f, 0, 0);
+        first.gate.countDown();
+        Await(third.started);
+
+        /* The tile of the first layout is dropped, and the view is told */
+        RunPosted();
+        assertNull(cache.get(1.0f, 0, 0));
+        assertEquals(1, cache.notified);
+
+        /* The tile is drawn again for the last layout */
+        RunPosted();
+        assertEquals(3, cache.get(1.0f, 0, 0)[0]);
+        assertEquals(2, cache.notified);
+        assertEquals(1, first.draws.get());
+        assertEquals(0, second.draws.get());
+        assertEquals(1, third.draws.get());
+        assertEquals(1, cache.getRenderedCount());
+    }
+
+    /**
+     * Run the next task posted to the UI thread
+     */
+    private void RunPosted() throws InterruptedException {
+        Runnable runnable = posted.poll(TimeoutMillis, TimeUnit.MILLISECONDS);
+        assertNotNull("Nothing was posted to the UI thread", runnable);
+        runnable.run();
+    }
+
+    private static void Await(CountDownLatch latch) throws InterruptedException {
+        assertTrue("Timed out", latch.await(TimeoutMillis, TimeUnit.MILLISECONDS));
+    }
+
+    /**
+     * Draws the number of the renderer into the tile, once the gate is open
+     */
+    private static class Renderer {
+        final int id;
+        final CountDownLatch started = new CountDownLatch(1);
+        final CountDownLatch gate;
+        final AtomicInteger draws = new AtomicInteger();
+
+        Renderer(int id, boolean open) {
+            this.id = id;
+            gate = new CountDownLatch(open ? 0 : 1);
+        }
+
+        void draw(int[] tile) {
+            started.countDown();
+            try {
+                gate.await();
+            } catch (InterruptedException e) {
+                return;
+            }
+            tile[0] = id;
+            draws.incrementAndGet();
+        }
+    }
+
+    /**
+     * A TileCache of one-int tiles, that posts to the given queue
+     */
+    private static class Cache extends TileCache<Renderer, int[]> {
+        int notified;
+
+        Cache(final LinkedBlockingQueue<Runnable> posted) {
+            super(Long.MAX_VALUE, new Executor() {
+                @Override
+                public void execute(Runnable runnable) {
+                    posted.add(runnable);
+                }
+            }, "TileCacheTest");
+        }
+
+        @Override
+        int[] createTile() {
+            return new int[1];
+        }
+
+        @Override
+        void drawTile(Renderer renderer, int[] tile, TileKey key) {
+            tile[0] = 0;
+            renderer.draw(tile);
+        }
+
+        @Override
+        void freeTile(int[] tile) {
+        }
+
+        @Override
+        long getByteCount(int[] tile) {
+            return 4;
+        }
+
+        @Override
+        void notifyTilesReady() {
+            notified++;
+        }
+    }
+}